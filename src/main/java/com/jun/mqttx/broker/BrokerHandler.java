@@ -16,7 +16,6 @@
 
 package com.jun.mqttx.broker;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.jun.mqttx.broker.handler.AbstractMqttSessionHandler;
 import com.jun.mqttx.broker.handler.ConnectHandler;
 import com.jun.mqttx.broker.handler.MessageDelegatingHandler;
@@ -28,10 +27,9 @@ import com.jun.mqttx.entity.Authentication;
 import com.jun.mqttx.entity.InternalMessage;
 import com.jun.mqttx.entity.Session;
 import com.jun.mqttx.exception.AuthorizationException;
+import com.jun.mqttx.service.IClientRouteService;
 import com.jun.mqttx.service.ISessionService;
 import com.jun.mqttx.service.ISubscriptionService;
-import com.jun.mqttx.utils.JsonSerializer;
-import com.jun.mqttx.utils.Serializer;
 import com.jun.mqttx.utils.TopicUtils;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -47,6 +45,7 @@ import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 import org.springframework.util.CollectionUtils;
@@ -71,7 +70,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 @Slf4j
 @ChannelHandler.Sharable
 @Component
-public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> implements Watcher {
+public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> implements Watcher<Authentication> {
     //@formatter:off
     /** channel 群组 */
     public static final ChannelGroup CHANNELS = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
@@ -83,7 +82,8 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
     private final ISessionService sessionService;
     private final ISubscriptionService subscriptionService;
     private final PublishHandler publishHandler;
-    private final Serializer serializer;
+    /** 客户端路由服务, 仅集群模式下可用 */
+    private final IClientRouteService clientRouteService;
     private final boolean enableSysTopic;
     private final String brokerId;
     //@formatter:on
@@ -93,13 +93,13 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
                          ISessionService sessionService,
                          ISubscriptionService subscriptionService,
                          PublishHandler publishHandler,
-                         Serializer serializer) {
+                         @Nullable IClientRouteService clientRouteService) {
         MqttxConfig.SysTopic sysTopic = config.getSysTopic();
         this.messageDelegatingHandler = messageDelegatingHandler;
         this.sessionService = sessionService;
         this.subscriptionService = subscriptionService;
         this.publishHandler = publishHandler;
-        this.serializer = serializer;
+        this.clientRouteService = clientRouteService;
         this.enableSysTopic = sysTopic.getEnable();
         this.brokerId = config.getBrokerId();
     }
@@ -181,7 +181,10 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
                 });
 
         // session 处理
-        ConnectHandler.CLIENT_MAP.remove(clientId);
+        // 同一 clientId 可能已在当前 broker 上建立新连接, 仅移除当前 channel 的映射
+        if (ConnectHandler.CLIENT_MAP.remove(clientId, ctx.channel().id()) && clientRouteService != null) {
+            clientRouteService.unregister(clientId).subscribe();
+        }
         if (Boolean.TRUE.equals(session.getCleanSession())) {
             // 当 cleanSession = 1，清理会话状态。
             // MQTTX 为了提升性能，将 session/pub/pubRel 等信息保存在内存中，这部分信息关联 {@link io.netty.channel.Channel} 无需 clean 由 GC 自动回收.
@@ -360,15 +363,7 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
      * @deprecated 此逻辑
      */
     @Override
-    public void action(byte[] msg) {
-        InternalMessage<Authentication> im;
-        if (serializer instanceof JsonSerializer s) {
-            im = s.deserialize(msg, new TypeReference<>() {
-            });
-        } else {
-            //noinspection unchecked
-            im = serializer.deserialize(msg, InternalMessage.class);
-        }
+    public void action(InternalMessage<Authentication> im) {
         var data = im.getData();
         // 目的是为了兼容 v1.0.2(含) 之前的版本
         var clientId = data.getClientId();
@@ -16,6 +16,8 @@
 
 package com.jun.mqttx.broker;
 
+import com.jun.mqttx.broker.codec.MqttFlowControlCodec;
+import com.jun.mqttx.broker.codec.MqttTopicAliasCodec;
 import com.jun.mqttx.broker.codec.MqttWebsocketCodec;
 import com.jun.mqttx.broker.handler.ProbeHandler;
 import com.jun.mqttx.config.MqttxConfig;
@@ -86,6 +88,12 @@ public class BrokerInitializer implements DisposableBean {
     private final Boolean sslEnable;
     /** broker 允许报文最大字节数 */
     private final Integer maxBytesInMessage;
+    /** MQTT 5 主题别名上限 */
+    private final int topicAliasMaximum;
+    /** MQTT 5 接收最大值 */
+    private final int receiveMaximum;
+    /** 接收窗口已满时单个连接排队的消息上限 */
+    private final int pendingPublishMaximum;
     /** 客户端证书校验 */
     private final ClientAuth clientAuth;
     /** 证书工具 */
@@ -122,6 +130,9 @@ public class BrokerInitializer implements DisposableBean {
         this.clientAuth = ssl.getClientAuth();
         this.enableSysTopic = sysTopic.getEnable();
         this.maxBytesInMessage = mqttxConfig.getMaxBytesInMessage();
+        this.topicAliasMaximum = mqttxConfig.getTopicAliasMaximum();
+        this.receiveMaximum = mqttxConfig.getReceiveMaximum();
+        this.pendingPublishMaximum = mqttxConfig.getPendingPublishMaximum();
 
         // 配置检查
         Assert.isTrue(!Objects.equals(wsPort, port), "websocket 与 socket 监听端口不能相同");
@@ -222,6 +233,10 @@ public class BrokerInitializer implements DisposableBean {
                                 (int) heartbeat.getSeconds()));
                         pipeline.addLast(MqttEncoder.INSTANCE);
                         pipeline.addLast(new MqttDecoder(maxBytesInMessage));
+                        if (topicAliasMaximum > 0) {
+                            pipeline.addLast(new MqttTopicAliasCodec(topicAliasMaximum));
+                        }
+                        pipeline.addLast(new MqttFlowControlCodec(receiveMaximum, pendingPublishMaximum));
                         if (enableSysTopic) {
                             pipeline.addLast(probeHandler);
                         }
@@ -277,6 +292,10 @@ public class BrokerInitializer implements DisposableBean {
                         pipeline.addLast(new MqttWebsocketCodec());
                         pipeline.addLast(MqttEncoder.INSTANCE);
                         pipeline.addLast(new MqttDecoder(maxBytesInMessage));
+                        if (topicAliasMaximum > 0) {
+                            pipeline.addLast(new MqttTopicAliasCodec(topicAliasMaximum));
+                        }
+                        pipeline.addLast(new MqttFlowControlCodec(receiveMaximum, pendingPublishMaximum));
                         if (enableSysTopic) {
                             pipeline.addLast(probeHandler);
                         }
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.codec;
+
+import com.jun.mqttx.utils.MessageIdBitSet;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+
+/**
+ * MQTT 5 Receive Maximum 流控处理器, 每个连接独享一个实例(非线程共享).
+ * <ol>
+ *     <li>出站: 未完成确认(PUBACK, PUBCOMP 或 reason code &ge; 0x80 的 PUBREC)的 qos1,2 PUBLISH 数量不超过客户端 CONNECT
+ *     中声明的 Receive Maximum, 超出部分在本地排队, 待客户端确认后按序发送. 排队数量超过 maxPendingWrites 时以 reason code
+ *     0x97 断开连接, 非 cleanSession 会话的消息已持久化, 重连后补发</li>
+ *     <li>入站: 客户端未完成确认的 qos1,2 PUBLISH 超过 broker 通过 CONNACK 声明的 Receive Maximum 时, 以 reason code 0x93
+ *     断开连接. 按 packetId 计数, DUP 重发的报文不重复占用窗口</li>
+ * </ol>
+ * 处理器位于 {@link MqttTopicAliasCodec} 之后(靠近业务处理器), 排队中的报文在真正发送时才分配主题别名.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+public class MqttFlowControlCodec extends ChannelDuplexHandler {
+    //@formatter:off
+
+    /** Receive Maximum exceeded */
+    private static final byte RECEIVE_MAXIMUM_EXCEEDED = (byte) 0x93;
+    /** Quota exceeded */
+    private static final byte QUOTA_EXCEEDED = (byte) 0x97;
+    /** 协议默认值 */
+    private static final int DEFAULT_RECEIVE_MAXIMUM = 65535;
+
+    /** broker 声明的 Receive Maximum */
+    private final int serverReceiveMaximum;
+    /** 本地排队报文数量上限 */
+    private final int maxPendingWrites;
+    /** 客户端声明的 Receive Maximum */
+    private int clientReceiveMaximum;
+    /** 是否为 MQTT 5 连接 */
+    private boolean mqtt5;
+    /** 出站未确认的 qos1,2 报文数量 */
+    private int outboundInflight;
+    /** 入站未确认的 qos1,2 报文 packetId, 首次使用时分配 */
+    private MessageIdBitSet inboundInflight;
+    /** 超出客户端接收窗口的待发送报文 */
+    private ArrayDeque<PendingWrite> pendingWrites;
+
+    //@formatter:on
+
+    public MqttFlowControlCodec(int serverReceiveMaximum, int maxPendingWrites) {
+        this.serverReceiveMaximum = serverReceiveMaximum;
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof MqttMessage mqttMessage && mqttMessage.decoderResult().isSuccess()) {
+            if (mqttMessage instanceof MqttConnectMessage mcm) {
+                onConnect(mcm);
+            } else if (mqtt5) {
+                switch (mqttMessage.fixedHeader().messageType()) {
+                    case PUBLISH -> {
+                        if (mqttMessage.fixedHeader().qosLevel() != MqttQoS.AT_MOST_ONCE
+                                && mqttMessage instanceof MqttPublishMessage mpm) {
+                            if (inboundInflight == null) {
+                                inboundInflight = new MessageIdBitSet();
+                            }
+                            // DUP 重发的报文 packetId 已在窗口内, add 返回 false, 不重复计数
+                            if (inboundInflight.add(mpm.variableHeader().packetId())
+                                    && inboundInflight.size() > serverReceiveMaximum) {
+                                log.warn("客户端未确认的 qos1,2 消息数量超出限制: {}", serverReceiveMaximum);
+                                ReferenceCountUtil.release(msg);
+                                disconnect(ctx, RECEIVE_MAXIMUM_EXCEEDED);
+                                return;
+                            }
+                        }
+                    }
+                    case PUBACK, PUBCOMP -> releaseQuota(ctx);
+                    case PUBREC -> {
+                        if (mqttMessage.variableHeader() instanceof MqttPubReplyMessageVariableHeader vh
+                                && (vh.reasonCode() & 0xff) >= 0x80) {
+                            releaseQuota(ctx);
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (mqtt5 && msg instanceof MqttMessage mqttMessage) {
+            MqttFixedHeader fixedHeader = mqttMessage.fixedHeader();
+            switch (fixedHeader.messageType()) {
+                case PUBLISH -> {
+                    if (fixedHeader.qosLevel() != MqttQoS.AT_MOST_ONCE) {
+                        if (outboundInflight >= clientReceiveMaximum) {
+                            if (pendingWrites == null) {
+                                pendingWrites = new ArrayDeque<>();
+                            }
+                            if (pendingWrites.size() >= maxPendingWrites) {
+                                log.warn("客户端接收窗口已满且排队报文数量超出限制: {}", maxPendingWrites);
+                                ReferenceCountUtil.release(msg);
+                                promise.tryFailure(new ClosedChannelException());
+                                disconnect(ctx, QUOTA_EXCEEDED);
+                                return;
+                            }
+                            pendingWrites.offer(new PendingWrite(msg, promise));
+                            return;
+                        }
+                        outboundInflight++;
+                    }
+                }
+                case PUBACK, PUBCOMP -> {
+                    if (inboundInflight != null && mqttMessage.variableHeader() instanceof MqttMessageIdVariableHeader vh) {
+                        inboundInflight.remove(vh.messageId());
+                    }
+                }
+                case PUBREC -> {
+                    if (inboundInflight != null && mqttMessage.variableHeader() instanceof MqttPubReplyMessageVariableHeader vh
+                            && (vh.reasonCode() & 0xff) >= 0x80) {
+                        inboundInflight.remove(vh.messageId());
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (pendingWrites != null) {
+            PendingWrite pendingWrite;
+            while ((pendingWrite = pendingWrites.poll()) != null) {
+                ReferenceCountUtil.release(pendingWrite.msg);
+                pendingWrite.promise.tryFailure(new ClosedChannelException());
+            }
+        }
+    }
+
+    /**
+     * 以指定 reason code 断开连接
+     *
+     * @param ctx        {@link ChannelHandlerContext}
+     * @param reasonCode reason code
+     */
+    private void disconnect(ChannelHandlerContext ctx, byte reasonCode) {
+        ctx.writeAndFlush(MqttMessageBuilders.disconnect().reasonCode(reasonCode).build())
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * 记录协议版本及客户端的接收窗口
+     *
+     * @param mcm {@link MqttConnectMessage}
+     */
+    private void onConnect(MqttConnectMessage mcm) {
+        MqttConnectVariableHeader variableHeader = mcm.variableHeader();
+        mqtt5 = variableHeader.version() == MqttVersion.MQTT_5.protocolLevel();
+        if (!mqtt5) {
+            return;
+        }
+
+        clientReceiveMaximum = DEFAULT_RECEIVE_MAXIMUM;
+        MqttProperties.MqttProperty<?> property = variableHeader.properties()
+                .getProperty(MqttProperties.MqttPropertyType.RECEIVE_MAXIMUM.value());
+        if (property != null && property.value() instanceof Integer receiveMaximum && receiveMaximum > 0) {
+            clientReceiveMaximum = receiveMaximum;
+        }
+    }
+
+    /**
+     * 客户端完成一条出站报文的确认, 释放窗口并发送排队中的报文
+     *
+     * @param ctx {@link ChannelHandlerContext}
+     */
+    private void releaseQuota(ChannelHandlerContext ctx) {
+        if (outboundInflight > 0) {
+            outboundInflight--;
+        }
+        if (pendingWrites == null || pendingWrites.isEmpty()) {
+            return;
+        }
+
+        PendingWrite pendingWrite;
+        while (outboundInflight < clientReceiveMaximum && (pendingWrite = pendingWrites.poll()) != null) {
+            outboundInflight++;
+            ctx.write(pendingWrite.msg, pendingWrite.promise);
+        }
+        ctx.flush();
+    }
+
+    private record PendingWrite(Object msg, ChannelPromise promise) {
+    }
+}
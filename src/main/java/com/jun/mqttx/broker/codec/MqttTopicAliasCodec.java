@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.codec;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.ObjectUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MQTT 5 Topic Alias 编解码器, 每个连接独享一个实例(非线程共享).
+ * <ol>
+ *     <li>入站: 解析客户端 PUBLISH 报文携带的主题别名, 还原为完整主题后交给后续处理器, 后续处理器对别名无感知</li>
+ *     <li>出站: 客户端在 CONNECT 中声明了 Topic Alias Maximum 时, 为下发的主题按 LRU 分配别名, 已分配别名的主题以空字符串发送</li>
+ * </ol>
+ * 别名映射仅在当前网络连接内有效, 连接断开后随处理器一并销毁.
+ * <pre>
+ * The Topic Alias mappings used by the Client and Server are independent from each other. Topic Alias mappings exist
+ * only within a Network Connection and last only for the lifetime of that Network Connection.
+ * </pre>
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+public class MqttTopicAliasCodec extends ChannelDuplexHandler {
+    //@formatter:off
+
+    /** Topic Alias invalid */
+    private static final byte TOPIC_ALIAS_INVALID = (byte) 0x94;
+    /** Protocol Error */
+    private static final byte PROTOCOL_ERROR = (byte) 0x82;
+    private static final int TOPIC_ALIAS = MqttProperties.MqttPropertyType.TOPIC_ALIAS.value();
+
+    /** broker 允许客户端使用的最大别名值 */
+    private final int serverTopicAliasMaximum;
+    /** 是否为 MQTT 5 连接 */
+    private boolean mqtt5;
+    /** 入站别名映射, 下标即别名, 按需分配 */
+    private String[] inboundAliases;
+    /** 出站别名上限: min(客户端声明值, broker 配置值) */
+    private int outboundAliasMaximum;
+    /** 出站 主题 -> 别名 映射, accessOrder = true 实现 LRU */
+    private LinkedHashMap<String, Integer> outboundAliases;
+
+    //@formatter:on
+
+    public MqttTopicAliasCodec(int serverTopicAliasMaximum) {
+        this.serverTopicAliasMaximum = serverTopicAliasMaximum;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof MqttMessage mqttMessage && mqttMessage.decoderResult().isSuccess()) {
+            if (mqttMessage instanceof MqttConnectMessage mcm) {
+                onConnect(mcm);
+            } else if (mqtt5 && mqttMessage instanceof MqttPublishMessage mpm) {
+                msg = resolveInboundAlias(ctx, mpm);
+                if (msg == null) {
+                    return;
+                }
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (outboundAliasMaximum > 0 && msg instanceof MqttPublishMessage mpm) {
+            msg = assignOutboundAlias(mpm);
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * 记录协议版本及客户端可接受的别名上限
+     *
+     * @param mcm {@link MqttConnectMessage}
+     */
+    private void onConnect(MqttConnectMessage mcm) {
+        MqttConnectVariableHeader variableHeader = mcm.variableHeader();
+        mqtt5 = variableHeader.version() == MqttVersion.MQTT_5.protocolLevel();
+        if (!mqtt5) {
+            return;
+        }
+
+        MqttProperties.MqttProperty<?> property = variableHeader.properties()
+                .getProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS_MAXIMUM.value());
+        if (property != null && property.value() instanceof Integer clientTopicAliasMaximum) {
+            outboundAliasMaximum = Math.min(clientTopicAliasMaximum, serverTopicAliasMaximum);
+            if (outboundAliasMaximum > 0) {
+                outboundAliases = new LinkedHashMap<>(outboundAliasMaximum * 4 / 3 + 1, 0.75f, true);
+            }
+        }
+    }
+
+    /**
+     * 入站别名解析
+     *
+     * @param ctx {@link ChannelHandlerContext}
+     * @param mpm {@link MqttPublishMessage}
+     * @return 还原主题后的报文, 别名非法时返回 null 并断开连接
+     */
+    private MqttPublishMessage resolveInboundAlias(ChannelHandlerContext ctx, MqttPublishMessage mpm) {
+        MqttPublishVariableHeader variableHeader = mpm.variableHeader();
+        MqttProperties.MqttProperty<?> property = variableHeader.properties().getProperty(TOPIC_ALIAS);
+        if (property == null) {
+            return mpm;
+        }
+
+        // A Topic Alias value of 0 or greater than the Maximum Topic Alias is a Protocol Error, the receiver uses
+        // DISCONNECT with Reason Code of 0x94 (Topic Alias invalid) as described in section 4.13.
+        int alias = (Integer) property.value();
+        if (alias <= 0 || alias > serverTopicAliasMaximum) {
+            log.warn("非法的主题别名: {}, broker 允许的最大值: {}", alias, serverTopicAliasMaximum);
+            disconnect(ctx, mpm, TOPIC_ALIAS_INVALID);
+            return null;
+        }
+        if (inboundAliases == null) {
+            inboundAliases = new String[serverTopicAliasMaximum + 1];
+        }
+
+        String topic = variableHeader.topicName();
+        if (ObjectUtils.isEmpty(topic)) {
+            // It is a Protocol Error if the Topic Name is zero length and there is no Topic Alias.
+            topic = inboundAliases[alias];
+            if (topic == null) {
+                log.warn("主题别名 {} 未建立映射", alias);
+                disconnect(ctx, mpm, PROTOCOL_ERROR);
+                return null;
+            }
+            return new MqttPublishMessage(mpm.fixedHeader(),
+                    new MqttPublishVariableHeader(topic, variableHeader.packetId(), variableHeader.properties()),
+                    mpm.payload());
+        }
+
+        // If the Topic Name has a non-zero length, the receiver updates its mapping of Topic Alias to Topic Name
+        inboundAliases[alias] = topic;
+        return mpm;
+    }
+
+    /**
+     * 出站别名分配. 主题已映射则发送空主题 + 别名, 否则建立(或按 LRU 淘汰复用)映射并发送完整主题 + 别名
+     *
+     * @param mpm {@link MqttPublishMessage}
+     * @return 携带别名的报文
+     */
+    private MqttPublishMessage assignOutboundAlias(MqttPublishMessage mpm) {
+        MqttPublishVariableHeader variableHeader = mpm.variableHeader();
+        String topic = variableHeader.topicName();
+        if (ObjectUtils.isEmpty(topic)) {
+            return mpm;
+        }
+
+        String topicInMessage;
+        Integer alias = outboundAliases.get(topic);
+        if (alias != null) {
+            topicInMessage = "";
+        } else {
+            if (outboundAliases.size() < outboundAliasMaximum) {
+                alias = outboundAliases.size() + 1;
+            } else {
+                Map.Entry<String, Integer> eldest = outboundAliases.entrySet().iterator().next();
+                alias = eldest.getValue();
+                outboundAliases.remove(eldest.getKey());
+            }
+            outboundAliases.put(topic, alias);
+            topicInMessage = topic;
+        }
+
+        // 不能直接修改原 properties, 该对象可能被多个报文共享(如 MqttProperties.NO_PROPERTIES)
+        MqttProperties properties = new MqttProperties();
+        for (MqttProperties.MqttProperty<?> p : variableHeader.properties().listAll()) {
+            if (p.propertyId() != TOPIC_ALIAS) {
+                properties.add(p);
+            }
+        }
+        properties.add(new MqttProperties.IntegerProperty(TOPIC_ALIAS, alias));
+
+        return new MqttPublishMessage(mpm.fixedHeader(),
+                new MqttPublishVariableHeader(topicInMessage, variableHeader.packetId(), properties),
+                mpm.payload());
+    }
+
+    /**
+     * 按协议要求发送 DISCONNECT 后关闭连接
+     *
+     * @param ctx        {@link ChannelHandlerContext}
+     * @param mpm        需要释放的报文
+     * @param reasonCode disconnect reason code
+     */
+    private void disconnect(ChannelHandlerContext ctx, MqttPublishMessage mpm, byte reasonCode) {
+        ReferenceCountUtil.release(mpm);
+        ctx.writeAndFlush(MqttMessageBuilders.disconnect().reasonCode(reasonCode).build())
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+}
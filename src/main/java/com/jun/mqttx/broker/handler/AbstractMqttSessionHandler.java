@@ -17,9 +17,13 @@
 package com.jun.mqttx.broker.handler;
 
 import com.jun.mqttx.entity.Authentication;
+import com.jun.mqttx.entity.PubMsg;
 import com.jun.mqttx.entity.Session;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttQoS;
 import io.netty.handler.codec.mqtt.MqttVersion;
 import io.netty.util.AttributeKey;
 import org.springframework.util.ObjectUtils;
@@ -159,6 +163,58 @@ public abstract class AbstractMqttSessionHandler implements MqttMessageHandler {
         return getSession(ctx).getVersion();
     }
 
+    /**
+     * 判断 PUBLISH 报文是否超出客户端声明的 Maximum Packet Size.
+     * <p>
+     * [MQTT-3.1.2-25] Where a Packet is too large to send, the Server MUST discard it without sending it and then behave
+     * as if it had completed sending that Application Message.
+     *
+     * @param session 客户端会话
+     * @param pubMsg  待下发消息
+     * @param qos     下发 qos
+     * @return true if packet is too large to send
+     */
+    boolean exceedsMaximumPacketSize(Session session, PubMsg pubMsg, MqttQoS qos) {
+        int maximumPacketSize = session.getMaximumPacketSize();
+        if (maximumPacketSize <= 0) {
+            return false;
+        }
+
+        // topic length + topic + packetId + properties length + properties + payload
+        int remainingLength = 2 + ByteBufUtil.utf8Bytes(pubMsg.getTopic())
+                + (qos == MqttQoS.AT_MOST_ONCE ? 0 : 2)
+                + pubMsg.getPayload().length;
+        if (session.getVersion() == MqttVersion.MQTT_5) {
+            // message expiry interval: 1 + 4; topic alias: 1 + 2, 按首次分配别名(同时携带完整主题)的最大长度估算
+            int propertiesLength = (pubMsg.getExpireAt() > 0 ? 5 : 0) + (session.isTopicAlias() ? 3 : 0);
+            remainingLength += 1 + propertiesLength;
+        }
+        int remainingLengthBytes = remainingLength < 128 ? 1 : remainingLength < 16384 ? 2 : remainingLength < 2097152 ? 3 : 4;
+        return 1 + remainingLengthBytes + remainingLength > maximumPacketSize;
+    }
+
+    /**
+     * 组装下发 PUBLISH 报文的属性. 仅 MQTT 5 连接需要, 目前包含剩余的 Message Expiry Interval.
+     * <p>
+     * The PUBLISH packet sent to a Client by the Server MUST contain a Message Expiry Interval set to the received
+     * value minus the time that the Application Message has been waiting in the Server [MQTT-3.3.2-6].
+     *
+     * @param session 客户端会话
+     * @param pubMsg  待下发消息
+     * @return {@link MqttProperties}
+     */
+    MqttProperties publishProperties(Session session, PubMsg pubMsg) {
+        if (session.getVersion() != MqttVersion.MQTT_5 || pubMsg.getExpireAt() <= 0) {
+            return MqttProperties.NO_PROPERTIES;
+        }
+
+        long remaining = Math.max(1, (pubMsg.getExpireAt() - System.currentTimeMillis() + 999) / 1000);
+        var properties = new MqttProperties();
+        properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(),
+                (int) Math.min(remaining, Integer.MAX_VALUE)));
+        return properties;
+    }
+
     /**
      * 判断 broker 是否进入了集群模式
      *
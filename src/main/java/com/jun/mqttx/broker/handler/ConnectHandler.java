@@ -58,6 +58,12 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
     private static final String NONE_ID_PREFIX = "NONE_ID_";
     final private boolean enableTopicSubPubSecure, enableSysTopic, isMandatoryAuthentication;
     private final String brokerId;
+    /** MQTT 5 主题别名上限 */
+    private final int topicAliasMaximum;
+    /** MQTT 5 接收最大值 */
+    private final int receiveMaximum;
+    /** broker 允许的最大报文字节数 */
+    private final int maxBytesInMessage;
     /** 认证服务 */
     private final IAuthenticationService authenticationService;
     /** 会话服务 */
@@ -70,6 +76,8 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
     private final IPubRelMessageService pubRelMessageService;
     /** 内部消息发布服务 */
     private IInternalMessagePublishService internalMessagePublishService;
+    /** 客户端路由服务 */
+    private IClientRouteService clientRouteService;
 
     //@formatter:on
 
@@ -79,11 +87,15 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                           IPublishMessageService publishMessageService,
                           IPubRelMessageService pubRelMessageService,
                           MqttxConfig config,
-                          @Nullable IInternalMessagePublishService internalMessagePublishService) {
+                          @Nullable IInternalMessagePublishService internalMessagePublishService,
+                          @Nullable IClientRouteService clientRouteService) {
         super(config.getCluster().getEnable());
 
         MqttxConfig.SysTopic sysTopic = config.getSysTopic();
         brokerId = config.getBrokerId();
+        this.topicAliasMaximum = config.getTopicAliasMaximum();
+        this.receiveMaximum = config.getReceiveMaximum();
+        this.maxBytesInMessage = config.getMaxBytesInMessage();
         this.authenticationService = authenticationService;
         this.sessionService = sessionService;
         this.subscriptionService = subscriptionService;
@@ -96,6 +108,8 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
         if (isClusterMode()) {
             this.internalMessagePublishService = internalMessagePublishService;
             Assert.notNull(internalMessagePublishService, "internalMessagePublishService can't be null");
+            this.clientRouteService = clientRouteService;
+            Assert.notNull(clientRouteService, "clientRouteService can't be null");
         }
     }
 
@@ -194,6 +208,9 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
 
         // 获取clientId
         final var clientId = auth.getClientId();
+        final var version = MqttVersion.fromProtocolNameAndLevel(variableHeader.name(), (byte) variableHeader.version());
+        final var maximumPacketSize = maximumPacketSize(variableHeader);
+        final var topicAlias = topicAlias(variableHeader);
 
         // 关闭之前可能存在的tcp链接
         // [MQTT-3.1.4-2] If the ClientId represents a Client already connected to the Server then the Server MUST
@@ -221,8 +238,13 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                     .publishOn(Schedulers.boundedElastic())
                     .doOnSuccess(unused -> {
                         // 新建会话并保存会话，同时判断sessionPresent
-                        final var session = Session.of(clientId, true);
+                        final var session = Session.of(clientId, true, version);
+                        session.setMaximumPacketSize(maximumPacketSize);
+                        session.setTopicAlias(topicAlias);
                         CLIENT_MAP.put(clientId, channel.id());
+                        if (isClusterMode()) {
+                            clientRouteService.register(clientId).subscribe();
+                        }
                         saveSessionWithChannel(ctx, session);
                         if (enableTopicSubPubSecure) {
                             saveAuthorizedTopics(ctx, auth);
@@ -245,6 +267,7 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                         var acceptAck = MqttMessageBuilders.connAck()
                                 .sessionPresent(false)
                                 .returnCode(MqttConnectReturnCode.CONNECTION_ACCEPTED)
+                                .properties(connAckProperties(version))
                                 .build();
                         ctx.writeAndFlush(acceptAck);
 
@@ -280,12 +303,19 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                         Session session = s;
                         boolean sessionPresent = false;
                         if (session == null) {
-                            session = Session.of(clientId, false);
+                            session = Session.of(clientId, false, version);
                         } else {
+                            // 客户端可能更换了协议版本
+                            session.setVersion(version);
                             sessionPresent = true;
                         }
+                        session.setMaximumPacketSize(maximumPacketSize);
+                        session.setTopicAlias(topicAlias);
 
                         CLIENT_MAP.put(clientId, ctx.channel().id());
+                        if (isClusterMode()) {
+                            clientRouteService.register(clientId).subscribe();
+                        }
                         saveSessionWithChannel(ctx, session);
                         if (enableTopicSubPubSecure) {
                             saveAuthorizedTopics(ctx, auth);
@@ -308,6 +338,7 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                         var acceptAck = MqttMessageBuilders.connAck()
                                 .sessionPresent(sessionPresent)
                                 .returnCode(MqttConnectReturnCode.CONNECTION_ACCEPTED)
+                                .properties(connAckProperties(version))
                                 .build();
                         ctx.writeAndFlush(acceptAck);
 
@@ -349,6 +380,7 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
      */
     private Mono<Void> republish(ChannelHandlerContext ctx) {
         final String clientId = clientId(ctx);
+        final Session session = getSession(ctx);
         return publishMessageService.search(clientId)
                 .doOnNext(pubMsg -> {
                     final var topic = pubMsg.getTopic();
@@ -358,13 +390,20 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                         return;
                     }
 
+                    // 超出客户端 Maximum Packet Size 的消息视同已完成发送
+                    if (exceedsMaximumPacketSize(session, pubMsg, MqttQoS.valueOf(qos))) {
+                        log.warn("消息超出客户端[{}]可接收的最大报文, 丢弃: topic={}, messageId={}", clientId, topic, pubMsg.getMessageId());
+                        publishMessageService.remove(clientId, pubMsg.getMessageId()).subscribe();
+                        return;
+                    }
+
                     // It MUST set the RETAIN flag to 0 when a PUBLISH Packet is sent to a Client because it matches an
                     // established subscription regardless of how the flag was set in the message it received [MQTT-3.3.1-9].
                     // The DUP flag MUST be set to 0 for all QoS 0 messages [MQTT-3.3.1-2].
                     final var dupFlag = qos != MqttQoS.AT_MOST_ONCE.value();
                     final var mqttMessage = MqttMessageFactory.newMessage(
                             new MqttFixedHeader(MqttMessageType.PUBLISH, dupFlag, MqttQoS.valueOf(pubMsg.getQoS()), false, 0),
-                            new MqttPublishVariableHeader(topic, pubMsg.getMessageId()),
+                            new MqttPublishVariableHeader(topic, pubMsg.getMessageId(), publishProperties(session, pubMsg)),
                             // 这是一个浅拷贝，任何对pubMsg中payload的修改都会反馈到wrappedBuffer
                             Unpooled.wrappedBuffer(pubMsg.getPayload())
                     );
@@ -385,6 +424,50 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                 .then();
     }
 
+    /**
+     * 组装 CONNACK 属性, 仅 MQTT 5 连接需要告知客户端 broker 的能力限制
+     *
+     * @param version mqtt 协议版本
+     * @return {@link MqttProperties}
+     */
+    private MqttProperties connAckProperties(MqttVersion version) {
+        if (version != MqttVersion.MQTT_5) {
+            return MqttProperties.NO_PROPERTIES;
+        }
+
+        var properties = new MqttProperties();
+        properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS_MAXIMUM.value(), topicAliasMaximum));
+        properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.RECEIVE_MAXIMUM.value(), receiveMaximum));
+        properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.MAXIMUM_PACKET_SIZE.value(), maxBytesInMessage));
+        return properties;
+    }
+
+    /**
+     * 获取客户端 CONNECT 中声明的 Maximum Packet Size
+     *
+     * @param variableHeader {@link MqttConnectVariableHeader}
+     * @return 最大报文字节数, 0 表示无限制
+     */
+    private int maximumPacketSize(MqttConnectVariableHeader variableHeader) {
+        var property = variableHeader.properties().getProperty(MqttProperties.MqttPropertyType.MAXIMUM_PACKET_SIZE.value());
+        if (property != null && property.value() instanceof Integer maximumPacketSize) {
+            return maximumPacketSize;
+        }
+        return 0;
+    }
+
+    /**
+     * 判断下发消息是否可能携带主题别名: broker 与客户端 CONNECT 中声明的 Topic Alias Maximum 均大于 0
+     *
+     * @param variableHeader {@link MqttConnectVariableHeader}
+     * @return true if outbound PUBLISH may carry a Topic Alias property
+     */
+    private boolean topicAlias(MqttConnectVariableHeader variableHeader) {
+        var property = variableHeader.properties().getProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS_MAXIMUM.value());
+        return topicAliasMaximum > 0 && property != null && property.value() instanceof Integer clientTopicAliasMaximum
+                && clientTopicAliasMaximum > 0;
+    }
+
     /**
      * 客户端连接成功处理
      *
@@ -16,15 +16,12 @@
 
 package com.jun.mqttx.broker.handler;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.jun.mqttx.broker.BrokerHandler;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.constants.InternalMessageEnum;
 import com.jun.mqttx.consumer.Watcher;
 import com.jun.mqttx.entity.InternalMessage;
 import com.jun.mqttx.entity.Session;
-import com.jun.mqttx.utils.JsonSerializer;
-import com.jun.mqttx.utils.Serializer;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundInvoker;
 import io.netty.handler.codec.mqtt.MqttMessage;
@@ -41,13 +38,10 @@ import java.util.Optional;
  */
 @Slf4j
 @Handler(type = MqttMessageType.DISCONNECT)
-public final class DisconnectHandler extends AbstractMqttSessionHandler implements Watcher {
+public final class DisconnectHandler extends AbstractMqttSessionHandler implements Watcher<String> {
 
-    private final Serializer serializer;
-
-    public DisconnectHandler(Serializer serializer, MqttxConfig config) {
+    public DisconnectHandler(MqttxConfig config) {
         super(config.getCluster().getEnable());
-        this.serializer = serializer;
     }
 
     /**
@@ -70,16 +64,7 @@ public final class DisconnectHandler extends AbstractMqttSessionHandler implemen
     }
 
     @Override
-    public void action(byte[] msg) {
-        InternalMessage<String> im;
-        if (serializer instanceof JsonSerializer se) {
-            im = se.deserialize(msg, new TypeReference<>() {
-            });
-        } else {
-            //noinspection unchecked
-            im = serializer.deserialize(msg, InternalMessage.class);
-        }
-
+    public void action(InternalMessage<String> im) {
         Optional.ofNullable(im.getData())
                 .map(ConnectHandler.CLIENT_MAP::get)
                 .map(BrokerHandler.CHANNELS::find)
@@ -16,7 +16,6 @@
 
 package com.jun.mqttx.broker.handler;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.jun.mqttx.broker.BrokerHandler;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.constants.InternalMessageEnum;
@@ -26,14 +25,15 @@ import com.jun.mqttx.entity.ClientSub;
 import com.jun.mqttx.entity.InternalMessage;
 import com.jun.mqttx.entity.PubMsg;
 import com.jun.mqttx.entity.Session;
+import com.jun.mqttx.entity.TopicMessageExpiry;
 import com.jun.mqttx.exception.AuthorizationException;
 import com.jun.mqttx.service.*;
-import com.jun.mqttx.utils.JsonSerializer;
 import com.jun.mqttx.utils.RateLimiter;
-import com.jun.mqttx.utils.Serializer;
+import com.jun.mqttx.utils.TopicUtils;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.*;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.lang.Nullable;
 import org.springframework.util.Assert;
@@ -50,6 +50,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.jun.mqttx.constants.ShareStrategy.random;
 import static com.jun.mqttx.constants.ShareStrategy.round;
@@ -60,8 +61,9 @@ import static com.jun.mqttx.constants.ShareStrategy.round;
  * @author Jun
  * @since 1.0.4
  */
+@Slf4j
 @Handler(type = MqttMessageType.PUBLISH)
-public class PublishHandler extends AbstractMqttTopicSecureHandler implements Watcher {
+public class PublishHandler extends AbstractMqttTopicSecureHandler implements Watcher<PubMsg> {
     //@formatter:off
 
     private final ISessionService sessionService;
@@ -77,13 +79,18 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
     private final Boolean enableMessageBridge;
     /** 主题限流器 */
     private final Map<String, RateLimiter> rateLimiterMap = new HashMap<>();
-    private final Serializer serializer;
     private IInternalMessagePublishService internalMessagePublishService;
+    /** 客户端路由服务 */
+    private IClientRouteService clientRouteService;
+    /** 主题过滤器路由服务 */
+    private ITopicFilterRouteService topicFilterRouteService;
     /** 需要桥接消息的主题 */
     private Set<String> bridgeTopics;
     private KafkaTemplate<String, byte[]> kafkaTemplate;
     /** 共享订阅轮询，存储轮询参数 */
     private Map<String, AtomicInteger> roundMap;
+    /** 主题默认消息过期时间 */
+    private final Set<TopicMessageExpiry> topicExpiries;
 
     //@formatter:on
 
@@ -95,14 +102,14 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                           @Nullable IInternalMessagePublishService internalMessagePublishService,
                           MqttxConfig config,
                           @Nullable KafkaTemplate<String, byte[]> kafkaTemplate,
-                          Serializer serializer) {
+                          @Nullable IClientRouteService clientRouteService,
+                          @Nullable ITopicFilterRouteService topicFilterRouteService) {
         super(config.getCluster().getEnable());
 
         var shareTopic = config.getShareTopic();
         var messageBridge = config.getMessageBridge();
         var rateLimiter = config.getRateLimiter();
         this.sessionService = sessionService;
-        this.serializer = serializer;
         this.publishMessageService = publishMessageService;
         this.retainMessageService = retainMessageService;
         this.subscriptionService = subscriptionService;
@@ -126,6 +133,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         if (round == shareStrategy) {
             roundMap = new ConcurrentHashMap<>();
         }
+        this.topicExpiries = config.getMessageExpiry().getTopicExpiries();
         this.enableMessageBridge = messageBridge.getEnable();
         if (enableMessageBridge) {
             this.bridgeTopics = messageBridge.getTopics();
@@ -137,6 +145,10 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         if (isClusterMode()) {
             this.internalMessagePublishService = internalMessagePublishService;
             Assert.notNull(internalMessagePublishService, "internalMessagePublishService can't be null");
+            this.clientRouteService = clientRouteService;
+            Assert.notNull(clientRouteService, "clientRouteService can't be null");
+            this.topicFilterRouteService = topicFilterRouteService;
+            Assert.notNull(topicFilterRouteService, "topicFilterRouteService can't be null");
         }
     }
 
@@ -193,6 +205,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         // was set in the message it received [MQTT-3.3.1-9].
         // 当新 topic 订阅触发 retain 消息时，retain flag 才应该置 1，其它状况都是 0.
         final var pubMsg = PubMsg.of(qos.value(), topic, false, data);
+        pubMsg.setExpireAt(expireAt(topic, mqttPublishVariableHeader.properties()));
 
         // 响应
         switch (qos) {
@@ -295,7 +308,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
      *     <li>{@link MqttMessageType#PUBLISH} 消息</li>
      *     <li>遗嘱消息</li>
      *     <li>retain 消息被新订阅触发 </li>
-     *     <li>集群消息 {@link #action(byte[])}</li>
+     *     <li>集群消息 {@link #action(InternalMessage)}</li>
      * </ol>
      *
      * @param pubMsg           publish message
@@ -331,9 +344,9 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                     }
                 });
 
-        // 共享订阅
+        // 共享订阅, 集群消息的共享订阅者已由源 broker 选定, 这里不再重复选择
         var f1 = clientSubFlux
-                .filter(ClientSub::isShareSub)
+                .filter(clientSub -> !isClusterMessage && clientSub.isShareSub())
                 .groupBy(ClientSub::getShareName)
                 .flatMap(GroupedFlux::collectList)
                 .map(t -> chooseClient(t, topic))
@@ -345,7 +358,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                         // 1 集群模式开启
                         // 2 订阅的客户端连接在其它实例上
                         if (isClusterMode() && !ConnectHandler.CLIENT_MAP.containsKey(clientSub.getClientId())) {
-                            internalMessagePublish(copied);
+                            internalMessagePublish(copied, List.of(clientSub), Set.of());
                         }
                     });
                 });
@@ -364,20 +377,25 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
 
                     // 将消息推送给集群中的 broker
                     if (isClusterMode() && !isClusterMessage) {
-                        // 判断是否需要进行集群消息分发
-                        var flag = false;
-                        for (var clientSub : lst) {
-                            if (!ConnectHandler.CLIENT_MAP.containsKey(clientSub.getClientId())) {
-                                flag = true;
-                                break;
-                            }
-                        }
-                        if (flag) {
-                            internalMessagePublish(copied);
+                        internalMessagePublish(copied, lst, topicFilterRouteService.route(topic));
+                    }
+
+                    // 离线的非 cleanSession 客户端批量持久化, 其余逐个处理
+                    var offline = new ArrayList<ClientSub>();
+                    var others = new ArrayList<ClientSub>(lst.size());
+                    for (var clientSub : lst) {
+                        if (!isClusterMessage && !clientSub.isCleanSession() && Math.min(clientSub.getQos(), copied.getQoS()) > 0
+                                && !ConnectHandler.CLIENT_MAP.containsKey(clientSub.getClientId())) {
+                            offline.add(clientSub);
+                        } else {
+                            others.add(clientSub);
                         }
                     }
 
-                    return Flux.fromIterable(lst).flatMap(clientSub -> publish0(clientSub, copied.copied(), isClusterMessage)).then();
+                    return Mono.when(
+                            Flux.fromIterable(others).flatMap(clientSub -> publish0(clientSub, copied.copied(), isClusterMessage)),
+                            saveOffline(offline, copied)
+                    );
                 });
 
         return Mono.when(f1, f2);
@@ -400,6 +418,11 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                 .orElse(null);
         final var topic = pubMsg.getTopic();
 
+        // 过期消息不再下发
+        if (pubMsg.isExpired(System.currentTimeMillis())) {
+            return Mono.empty();
+        }
+
         // 计算Qos
         final var pubQos = pubMsg.getQoS();
         final var subQos = clientSub.getQos();
@@ -434,6 +457,13 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         }
 
         // 处理 channel != null 的情况
+        // 超出客户端 Maximum Packet Size 的消息不发送，也不保存
+        final var session = getSession(channel);
+        if (exceedsMaximumPacketSize(session, pubMsg, qos)) {
+            log.debug("消息超出客户端[{}]可接收的最大报文, 丢弃: topic={}", clientId, topic);
+            return Mono.empty();
+        }
+
         // 计算 messageId
         int messageId;
 
@@ -443,20 +473,21 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
             // 假设消息由集群内其它 broker 分发，而 cleanSession 状态下 broker 消息走的内存，为了实现 qos1,2 我们必须将消息保存到内存
             if ((qos == MqttQoS.EXACTLY_ONCE || qos == MqttQoS.AT_LEAST_ONCE)) {
                 messageId = nextMessageId(channel);
-                getSession(channel).savePubMsg(messageId, pubMsg);
+                session.savePubMsg(messageId, pubMsg);
             } else {
                 // qos0
                 messageId = 0;
             }
         } else {
             // 4. channel != null && !cleanSession
+            // client 在线期间 messageId 从会话租用的区间内本地分配, 无需每条消息访问 redis
             if (qos == MqttQoS.EXACTLY_ONCE || qos == MqttQoS.AT_LEAST_ONCE) {
-                return sessionService.nextMessageId(clientId)
+                return sessionService.nextMessageId(session)
                         .flatMap(e -> {
                             if (isClusterMessage) {
                                 var mpm = new MqttPublishMessage(
                                         new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, retained, 0),
-                                        new MqttPublishVariableHeader(topic, e),
+                                        new MqttPublishVariableHeader(topic, e, publishProperties(session, pubMsg)),
                                         Unpooled.wrappedBuffer(payload)
                                 );
 
@@ -465,10 +496,10 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                             } else {
                                 pubMsg.setQoS(qos.value());
                                 pubMsg.setMessageId(e);
-                                return publishMessageService.save(clientId, pubMsg).doOnSuccess(unused -> {
+                                return publishMessageService.saveInflight(clientId, pubMsg).doOnSuccess(unused -> {
                                     var mpm = new MqttPublishMessage(
                                             new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, retained, 0),
-                                            new MqttPublishVariableHeader(topic, e),
+                                            new MqttPublishVariableHeader(topic, e, publishProperties(session, pubMsg)),
                                             Unpooled.wrappedBuffer(payload)
                                     );
 
@@ -487,7 +518,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         // mqttx 只有 ConnectHandler#republish(ChannelHandlerContext) 方法有必要将 dup flag 设置为 true(qos > 0), 其它应该为 false.
         var mpm = new MqttPublishMessage(
                 new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, retained, 0),
-                new MqttPublishVariableHeader(topic, messageId),
+                new MqttPublishVariableHeader(topic, messageId, publishProperties(session, pubMsg)),
                 Unpooled.wrappedBuffer(payload)
         );
 
@@ -495,6 +526,28 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         return Mono.empty();
     }
 
+    /**
+     * 将消息扇出保存给离线的非 cleanSession 客户端, 按 qos 分组后批量写入
+     *
+     * @param clientSubs 离线的非 cleanSession 客户端订阅
+     * @param pubMsg     待发布消息
+     * @see IPublishMessageService#saveAll(java.util.Collection, PubMsg)
+     */
+    private Mono<Void> saveOffline(List<ClientSub> clientSubs, PubMsg pubMsg) {
+        if (clientSubs.isEmpty() || pubMsg.isExpired(System.currentTimeMillis())) {
+            return Mono.empty();
+        }
+
+        var clientIdsByQos = clientSubs.stream()
+                .collect(Collectors.groupingBy(
+                        clientSub -> Math.min(clientSub.getQos(), pubMsg.getQoS()),
+                        Collectors.mapping(ClientSub::getClientId, Collectors.toList())
+                ));
+        return Flux.fromIterable(clientIdsByQos.entrySet())
+                .flatMap(e -> publishMessageService.saveAll(e.getValue(), pubMsg.copied().setQoS(e.getKey())))
+                .then();
+    }
+
     /**
      * 处理 retain 消息
      *
@@ -530,25 +583,78 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
     }
 
     /**
-     * 集群内部消息发布
+     * 集群内部消息发布, 消息仅发送给订阅者所在的 broker 及拥有匹配主题过滤器的 broker; 均不存在时不发送.
+     * <p>
+     * 非 cleanSession 订阅者在本地路由表副本中未命中时(路由广播可能丢失), 回源 redis 路由表查询, 查到的 broker 另行发送.
      *
-     * @param pubMsg {@link PubMsg}
+     * @param pubMsg     {@link PubMsg}
+     * @param clientSubs 订阅者
+     * @param routes     主题过滤器路由匹配的 broker, 这些 broker 上的 cleanSession 订阅者仅保存在其本地
+     * @see IClientRouteService#route(String)
+     * @see IClientRouteService#load(Collection)
+     * @see ITopicFilterRouteService#route(String)
      */
-    private void internalMessagePublish(PubMsg pubMsg) {
-        var im = new InternalMessage<>(pubMsg, System.currentTimeMillis(), brokerId);
-        internalMessagePublishService.publish(im, InternalMessageEnum.PUB.getChannel());
+    private void internalMessagePublish(PubMsg pubMsg, List<ClientSub> clientSubs, Set<String> routes) {
+        Set<String> brokerIds = null;
+        if (!routes.isEmpty()) {
+            brokerIds = new HashSet<>(routes);
+
+            // 目标 broker 需按本地订阅关系分发, 不能只发给指定的客户端
+            if (pubMsg.getAppointedClientId() != null) {
+                pubMsg = pubMsg.copied().setAppointedClientId(null);
+            }
+        }
+        List<String> missed = null;
+        for (var clientSub : clientSubs) {
+            var clientId = clientSub.getClientId();
+            if (ConnectHandler.CLIENT_MAP.containsKey(clientId)) {
+                continue;
+            }
+            var target = clientRouteService.route(clientId);
+            if (target == null) {
+                if (!clientSub.isCleanSession()) {
+                    if (missed == null) {
+                        missed = new ArrayList<>();
+                    }
+                    missed.add(clientId);
+                }
+            } else if (!brokerId.equals(target)) {
+                if (brokerIds == null) {
+                    brokerIds = new HashSet<>();
+                }
+                brokerIds.add(target);
+            }
+        }
+        if (brokerIds != null) {
+            var im = new InternalMessage<>(pubMsg, System.currentTimeMillis(), brokerId);
+            internalMessagePublishService.publish(im, InternalMessageEnum.PUB, brokerIds);
+        }
+        if (missed == null) {
+            return;
+        }
+
+        final var msg = pubMsg;
+        final var sent = brokerIds == null ? Set.<String>of() : brokerIds;
+        clientRouteService.load(missed)
+                .subscribe(loaded -> {
+                    Set<String> targets = null;
+                    for (var target : loaded.values()) {
+                        if (!brokerId.equals(target) && !sent.contains(target)) {
+                            if (targets == null) {
+                                targets = new HashSet<>();
+                            }
+                            targets.add(target);
+                        }
+                    }
+                    if (targets != null) {
+                        var im = new InternalMessage<>(msg, System.currentTimeMillis(), brokerId);
+                        internalMessagePublishService.publish(im, InternalMessageEnum.PUB, targets);
+                    }
+                }, t -> log.error(String.format("客户端路由回源失败: %s", t.getMessage()), t));
     }
 
     @Override
-    public void action(byte[] msg) {
-        InternalMessage<PubMsg> im;
-        if (serializer instanceof JsonSerializer s) {
-            im = s.deserialize(msg, new TypeReference<>() {
-            });
-        } else {
-            //noinspection unchecked
-            im = serializer.deserialize(msg, InternalMessage.class);
-        }
+    public void action(InternalMessage<PubMsg> im) {
         PubMsg data = im.getData();
         publish(data, null, true).subscribe();
     }
@@ -584,6 +690,29 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         throw new IllegalArgumentException("不可能到达的代码, strategy:" + shareStrategy);
     }
 
+    /**
+     * 计算消息过期时间戳, MQTT 5 Message Expiry Interval 优先, 其次为主题默认过期时间
+     *
+     * @param topic      主题
+     * @param properties PUBLISH 报文属性
+     * @return 过期时间戳(毫秒), 0 表示永不过期
+     */
+    private long expireAt(String topic, MqttProperties properties) {
+        var property = properties.getProperty(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value());
+        if (property != null && property.value() instanceof Integer interval) {
+            return System.currentTimeMillis() + (interval & 0xffffffffL) * 1000;
+        }
+
+        if (!CollectionUtils.isEmpty(topicExpiries)) {
+            for (var topicExpiry : topicExpiries) {
+                if (TopicUtils.match(topic, topicExpiry.getTopic())) {
+                    return System.currentTimeMillis() + topicExpiry.getExpiry().toMillis();
+                }
+            }
+        }
+        return 0;
+    }
+
     /**
      * 判断 clientId 关联的会话是否是 cleanSession 会话
      *
@@ -23,6 +23,7 @@ import com.jun.mqttx.entity.ClientSub;
 import com.jun.mqttx.entity.ShareTopic;
 import com.jun.mqttx.service.IRetainMessageService;
 import com.jun.mqttx.service.ISubscriptionService;
+import com.jun.mqttx.utils.BrokerMetrics;
 import com.jun.mqttx.utils.TopicUtils;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
@@ -203,6 +204,9 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
      * +------------------------------------------------------+---------------------------------------------------------+
      * | $SYS/broker/{brokerId}/clients/{clientId}/disconnected | 触发：当某个客户端掉线后，broker 会发送消息给该主题        |
      * +------------------------------------------------------+---------------------------------------------------------+
+     * | $SYS/broker/{brokerId}/dead                          | 集群模式下 broker 心跳超时被判定失效后，集群内各 broker    |
+     * |                                                      | 会发送消息给该主题                                        |
+     * +------------------------------------------------------+---------------------------------------------------------+
      * </pre>
      *
      * @param clientSub 客户端订阅信息
@@ -328,6 +332,12 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
                     .timestamp(now.toString())
                     .uptime((int) ((System.currentTimeMillis() - BrokerHandler.START_TIME) / 1000))
                     .version(this.version)
+                    .offlineDroppedOldest(BrokerMetrics.OFFLINE_DROPPED_OLDEST.get())
+                    .offlineDroppedNewest(BrokerMetrics.OFFLINE_DROPPED_NEWEST.get())
+                    .offlineConflated(BrokerMetrics.OFFLINE_CONFLATED.get())
+                    .payloadCacheHits(BrokerMetrics.PAYLOAD_CACHE_HITS.get())
+                    .payloadCacheMisses(BrokerMetrics.PAYLOAD_CACHE_MISSES.get())
+                    .payloadCacheEvictions(BrokerMetrics.PAYLOAD_CACHE_EVICTIONS.get())
                     .build().toJsonBytes();
             final var payload = Unpooled.wrappedBuffer(bytes);
             var mpm = MqttMessageBuilders.publish()
@@ -16,12 +16,15 @@
 
 package com.jun.mqttx.config;
 
+import com.jun.mqttx.constants.InternalMessageEnum;
 import com.jun.mqttx.consumer.DefaultInternalMessageSubscriber;
 import com.jun.mqttx.consumer.KafkaInternalMessageSubscriber;
+import com.jun.mqttx.consumer.NettyInternalMessageSubscriber;
 import com.jun.mqttx.consumer.Watcher;
 import com.jun.mqttx.service.IInternalMessagePublishService;
 import com.jun.mqttx.service.impl.DefaultInternalMessagePublishServiceImpl;
 import com.jun.mqttx.service.impl.KafkaInternalMessagePublishServiceImpl;
+import com.jun.mqttx.service.impl.NettyInternalMessagePublishServiceImpl;
 import com.jun.mqttx.utils.Serializer;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
@@ -30,21 +33,28 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.RedisSerializer;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.KafkaAdmin;
 import org.springframework.kafka.core.KafkaTemplate;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static com.jun.mqttx.constants.InternalMessageEnum.*;
 
 /**
- * 集群配置, 两种实现:
+ * 集群配置, 三种实现:
  * <ul>
  *     <li>redis</li>
  *     <li>kafka</li>
+ *     <li>netty: 节点间直连, 不经过消息中间件</li>
  * </ul>
  * 默认采用 redis 实现
  *
@@ -57,10 +67,11 @@ public class ClusterConfig {
 
     public static final String REDIS = "redis";
     public static final String KAFKA = "kafka";
+    public static final String NETTY = "netty";
 
     @Bean
     @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = REDIS, matchIfMissing = true)
-    public DefaultInternalMessageSubscriber defaultInternalMessageSubscriber(List<Watcher> watchers,
+    public DefaultInternalMessageSubscriber defaultInternalMessageSubscriber(List<Watcher<?>> watchers,
                                                                              Serializer serializer,
                                                                              MqttxConfig mqttxConfig) {
         return new DefaultInternalMessageSubscriber(watchers, serializer, mqttxConfig);
@@ -68,22 +79,57 @@ public class ClusterConfig {
 
     @Bean
     @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = KAFKA)
-    public KafkaInternalMessageSubscriber kafkaInternalMessageSubscriber(List<Watcher> watchers,
+    public KafkaInternalMessageSubscriber kafkaInternalMessageSubscriber(List<Watcher<?>> watchers,
                                                                          Serializer serializer, MqttxConfig mqttxConfig) {
         return new KafkaInternalMessageSubscriber(watchers, serializer, mqttxConfig);
     }
 
+    /**
+     * 集群消息 kafka topic, 含当前 broker 的定向 topic, 由 {@link KafkaAdmin} 在启动时创建或扩容分区
+     *
+     * @param mqttxConfig {@link MqttxConfig}
+     */
+    @Bean
+    @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = KAFKA)
+    public KafkaAdmin.NewTopics clusterTopics(MqttxConfig mqttxConfig) {
+        int partitions = mqttxConfig.getCluster().getKafkaPartitions();
+        return new KafkaAdmin.NewTopics(
+                Stream.concat(
+                                Arrays.stream(InternalMessageEnum.values()).map(InternalMessageEnum::getChannel),
+                                Stream.of(PUB.getChannel(mqttxConfig.getBrokerId()))
+                        )
+                        .map(topic -> TopicBuilder.name(topic).partitions(partitions).build())
+                        .toArray(NewTopic[]::new)
+        );
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = NETTY)
+    public NettyInternalMessageSubscriber nettyInternalMessageSubscriber(List<Watcher<?>> watchers,
+                                                                         Serializer serializer, MqttxConfig mqttxConfig) {
+        return new NettyInternalMessageSubscriber(watchers, serializer, mqttxConfig);
+    }
+
     @Bean
     @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = REDIS, matchIfMissing = true)
     public IInternalMessagePublishService defaultInternalMessagePublishServiceImpl(ReactiveRedisTemplate<String, byte[]> redisTemplate,
-                                                                                   Serializer serializer) {
-        return new DefaultInternalMessagePublishServiceImpl(redisTemplate, serializer);
+                                                                                   Serializer serializer,
+                                                                                   MqttxConfig mqttxConfig) {
+        return new DefaultInternalMessagePublishServiceImpl(redisTemplate, serializer, mqttxConfig);
     }
 
     @Bean
     @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = KAFKA)
-    public IInternalMessagePublishService kafkaInternalMessagePublishServiceImpl(KafkaTemplate<String, byte[]> kafkaTemplate, Serializer serializer) {
-        return new KafkaInternalMessagePublishServiceImpl(kafkaTemplate, serializer);
+    public IInternalMessagePublishService kafkaInternalMessagePublishServiceImpl(KafkaTemplate<String, byte[]> kafkaTemplate, Serializer serializer,
+                                                                                 MqttxConfig mqttxConfig) {
+        return new KafkaInternalMessagePublishServiceImpl(kafkaTemplate, serializer, mqttxConfig);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = NETTY)
+    public IInternalMessagePublishService nettyInternalMessagePublishServiceImpl(Serializer serializer, MqttxConfig mqttxConfig,
+                                                                                 ReactiveStringRedisTemplate stringRedisTemplate) {
+        return new NettyInternalMessagePublishServiceImpl(serializer, mqttxConfig, stringRedisTemplate);
     }
 
     /**
@@ -91,21 +137,28 @@ public class ClusterConfig {
      *
      * @param redisConnectionFactory {@link RedisConnectionFactory}
      * @param subscriber             {@link DefaultInternalMessageSubscriber}
+     * @param mqttxConfig            {@link MqttxConfig}
      */
     @Bean
     @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = REDIS, matchIfMissing = true)
     public ReactiveRedisMessageListenerContainer redisMessageListenerContainer(ReactiveRedisConnectionFactory redisConnectionFactory,
-                                                                               DefaultInternalMessageSubscriber subscriber) {
+                                                                               DefaultInternalMessageSubscriber subscriber,
+                                                                               MqttxConfig mqttxConfig) {
         var redisMessageListenerContainer = new ReactiveRedisMessageListenerContainer(redisConnectionFactory);
         var channelTopics = List.of(
                 new ChannelTopic(PUB.getChannel()),
+                new ChannelTopic(PUB.getChannel(mqttxConfig.getBrokerId())),
                 new ChannelTopic(PUB_ACK.getChannel()),
                 new ChannelTopic(PUB_REC.getChannel()),
                 new ChannelTopic(PUB_COM.getChannel()),
                 new ChannelTopic(PUB_REL.getChannel()),
                 new ChannelTopic(DISCONNECT.getChannel()),
                 new ChannelTopic(ALTER_USER_AUTHORIZED_TOPICS.getChannel()),
-                new ChannelTopic(SUB_UNSUB.getChannel())
+                new ChannelTopic(SUB_UNSUB.getChannel()),
+                new ChannelTopic(RETAIN.getChannel()),
+                new ChannelTopic(CLIENT_ROUTE.getChannel()),
+                new ChannelTopic(TOPIC_FILTER_ROUTE.getChannel()),
+                new ChannelTopic(BROKER_DEAD.getChannel())
         );
         redisMessageListenerContainer.receive(
                 channelTopics,
@@ -16,8 +16,11 @@
 
 package com.jun.mqttx.config;
 
+import com.jun.mqttx.constants.OverflowPolicy;
 import com.jun.mqttx.constants.SerializeStrategy;
 import com.jun.mqttx.constants.ShareStrategy;
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.TopicMessageExpiry;
 import com.jun.mqttx.entity.TopicRateLimit;
 import io.netty.handler.codec.mqtt.MqttConstant;
 import io.netty.handler.ssl.ClientAuth;
@@ -26,6 +29,8 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -71,6 +76,7 @@ public class MqttxConfig {
      * <ol>
      *     <li>{@link SerializeStrategy#JSON}: 默认项(兼容早期版本)</li>
      *     <li>{@link SerializeStrategy#KRYO}: 优选项，性能领先 json</li>
+     *     <li>{@link SerializeStrategy#BINARY}: 手写二进制格式, 体积最小, 仅支持 broker 内部对象</li>
      * </ol>
      */
     private String serializeStrategy = SerializeStrategy.JSON;
@@ -86,6 +92,26 @@ public class MqttxConfig {
     /** mqttx 可接受的最大报文大小 */
     private int maxBytesInMessage = MqttConstant.DEFAULT_MAX_BYTES_IN_MESSAGE;
 
+    /**
+     * MQTT 5 主题别名上限(Topic Alias Maximum), 0 表示不启用. 该值同时限制:
+     * <ol>
+     *     <li>客户端发布消息时可使用的别名, 通过 CONNACK 告知客户端</li>
+     *     <li>broker 下发消息时为单个连接分配的别名数量(不超过客户端 CONNECT 中声明的值)</li>
+     * </ol>
+     */
+    private int topicAliasMaximum = 16;
+
+    /**
+     * MQTT 5 接收最大值(Receive Maximum), 即 broker 愿意同时处理的客户端未确认 qos1,2 消息数量, 通过 CONNACK 告知客户端.
+     * 客户端 CONNECT 中声明的 Receive Maximum 则用于限制 broker 下发的未确认消息数量.
+     */
+    private int receiveMaximum = 65535;
+
+    /**
+     * 客户端接收窗口(Receive Maximum)已满时, broker 为单个连接排队的 qos1,2 消息数量上限, 超出后以 reason code 0x97 断开连接
+     */
+    private int pendingPublishMaximum = 1000;
+
     /*--------------------------------------------
     |                 模块配置项                   |
     ============================================*/
@@ -113,6 +139,15 @@ public class MqttxConfig {
     /** 共享载荷 */
     private SharablePayload sharablePayload = new SharablePayload();
 
+    /** 消息过期 */
+    private MessageExpiry messageExpiry = new MessageExpiry();
+
+    /** 离线消息队列 */
+    private OfflineQueue offlineQueue = new OfflineQueue();
+
+    /** 存储 */
+    private Storage storage = new Storage();
+
     /**
      * redis 配置
      * <p>
@@ -125,12 +160,43 @@ public class MqttxConfig {
         /** redis map key,应用于集群的会话存储 */
         private String clusterSessionHashKey = "mqttx:session:key";
 
+        /** 会话 key 前缀, 开启 {@link #clientKeyHashTag} 后每个会话独立保存在 {@code sessionKeyPrefix + {bucket} + clientId} 中 */
+        private String sessionKeyPrefix = "mqttx:session:";
+
+        /**
+         * 客户端相关 key(会话、messageId、pubMsg、pubRel) 是否使用 redis cluster hash tag. 开启后客户端按 clientId 分配到
+         * {@link #clientKeyHashTagBuckets} 个桶中, 同一桶内客户端的 key 位于同一 slot, 会话不再集中保存在
+         * {@link #clusterSessionHashKey} 中; 启动时自动迁移旧数据. 使用 redis cluster 时必须开启
+         */
+        private Boolean clientKeyHashTag = false;
+
+        /**
+         * hash tag 桶数量. 扇出保存按桶分组执行脚本, 共享载荷在每个桶内保存一份; 桶越多 slot 分布越均匀, 扇出的脚本调用及载荷
+         * 副本也越多. 修改后已保存的数据无法找到, 上线后不要修改
+         */
+        private Integer clientKeyHashTagBuckets = 64;
+
         /** 主题前缀 */
         private String topicPrefix = "mqttx:topic:";
 
         /** 保留消息前缀 */
         private String retainMessagePrefix = "mqttx:retain:";
 
+        /**
+         * 保留消息分片数量, 保留消息按主题 hash 分散到 {@code retainMessagePrefix + 分片编号} 多个 hash 中; 1 表示使用
+         * {@code retainMessagePrefix} 单个 hash. 修改后启动时自动迁移
+         */
+        private int retainMessageShards = 1;
+
+        /** 保留消息本地缓存容量(字节), 超出后按 W-TinyLFU 淘汰, 未命中时回源 redis */
+        private long retainMessageLocalCacheMaxBytes = 32 * 1024 * 1024;
+
+        /** 保留消息本地缓存写入后的有效期, 到期后回源 redis, 作为集群内缓存失效消息丢失时的兜底 */
+        private Duration retainMessageLocalCacheTtl = Duration.ofMinutes(1);
+
+        /** 集群模式下保留消息主题索引与 redis 的对账间隔, 修正 RETAIN 广播丢失导致的偏差 */
+        private Duration retainMessageReconcileInterval = Duration.ofMinutes(5);
+
         /** client pub消息 redis set 前缀 */
         private String pubMsgSetPrefix = "mqttx:client:pubmsg:";
 
@@ -143,6 +209,9 @@ public class MqttxConfig {
         /** 非 cleanSession messageId 获取前缀 */
         private String messageIdPrefix = "mqttx:messageId:";
 
+        /** 非 cleanSession 在线 client 每次从 redis 租用的 messageId 数量, 租期内 messageId 由本地分配 */
+        private Integer messageIdLeaseSize = 1024;
+
         /** client topic集合，redis set prefix值 */
         private String clientTopicSetPrefix = "mqttx:client:topicset:";
 
@@ -151,6 +220,15 @@ public class MqttxConfig {
 
         /** 每个 payload 关联的订阅用户 */
         private String msgPayLoadClientsSetKey = "mqttx:msg:payload:clients:";
+
+        /** 离线消息过期索引, redis zset key 前缀, score 为过期时间戳. 索引按客户端分片为 {@code key:分片} 或 {@code key:{bucket}} */
+        private String pubMsgExpiryIndexKey = "mqttx:client:pubmsg-expiry";
+
+        /** client pub 消息写入顺序索引, redis zset 前缀 */
+        private String pubMsgIndexPrefix = "mqttx:client:pubmsg-index:";
+
+        /** client pub 消息元数据(字节数、主题等), redis hash 前缀 */
+        private String pubMsgMetaPrefix = "mqttx:client:pubmsg-meta:";
     }
 
     /**
@@ -167,6 +245,100 @@ public class MqttxConfig {
 
         /** 处理集群消息的中间件类型 */
         private String type = ClusterConfig.REDIS;
+
+        /**
+         * 客户端路由表, redis hash key, clientId -> 客户端所在 brokerId. 各节点保存路由表副本, 发布消息时仅将集群消息发送给
+         * 订阅者所在的 broker
+         */
+        private String clientRouteKey = "mqttx:cluster:client-route";
+
+        /** 客户端路由表副本与 redis 的对账间隔, 修正路由广播丢失导致的偏差 */
+        private Duration clientRouteResyncInterval = Duration.ofMinutes(1);
+
+        /**
+         * 主题过滤器路由表 redis set 前缀, {@code topicFilterRoutePrefix + brokerId} 保存该 broker 上 cleanSession 客户端的
+         * 非共享订阅. 此类订阅仅保存在客户端所在 broker, 其它节点据此路由表转发消息
+         */
+        private String topicFilterRoutePrefix = "mqttx:cluster:topic-filter-route:";
+
+        /** 主题过滤器路由表副本与 redis 的对账间隔, 修正 redis 写入失败或路由广播丢失导致的偏差 */
+        private Duration topicFilterRouteResyncInterval = Duration.ofMinutes(1);
+
+        /**
+         * 集群消息批量发送开关, 同一 channel 的消息合并为一个批量帧发送, 适用于 redis 与 kafka.
+         * 旧版本 broker 无法解析批量帧, 集群内全部 broker 升级后才能开启
+         */
+        private Boolean batchEnable = false;
+
+        /** 单批消息数量上限, 达到后立即发送 */
+        private Integer batchMaxSize = 64;
+
+        /** 批次首条消息的最长等待时间 */
+        private Duration batchMaxDelay = Duration.ofNanos(500_000);
+
+        /**
+         * 集群消息 kafka topic 分区数, type = kafka 时启动时创建或扩容集群 topic. 同一 key(clientId 或主题)的消息位于同一分区
+         */
+        private Integer kafkaPartitions = 8;
+
+        /** 集群消息 kafka 消费线程数, 各分区分配给不同线程并行处理 */
+        private Integer kafkaConcurrency = 4;
+
+        /** 集群消息 kafka topic 分区数量刷新间隔, 开启批量发送时按分区合并消息, 需感知分区扩容 */
+        private Duration kafkaPartitionRefreshInterval = Duration.ofMinutes(1);
+
+        /** 节点直连监听端口, type = netty 时生效 */
+        private Integer peerPort = 7883;
+
+        /** 节点直连监听地址, 为空时取 {@code mqttx.host}, type = netty 时生效 */
+        private String peerHost;
+
+        /**
+         * 节点间共享密钥, type = netty 时必须配置. 连接建立后以 HMAC-SHA256 质询应答校验, 未通过校验的连接不处理任何消息
+         */
+        private String peerSecret;
+
+        /** 静态节点列表, brokerId -> host:port, type = netty 时生效 */
+        private Map<String, String> peers = new HashMap<>();
+
+        /** 节点断线重连的初始间隔, 每次失败翻倍 */
+        private Duration peerReconnectMinDelay = Duration.ofSeconds(1);
+
+        /** 节点断线重连的最大间隔 */
+        private Duration peerReconnectMaxDelay = Duration.ofSeconds(30);
+
+        /** 节点未连接期间缓存的消息数量上限, 超出时丢弃最早的消息 */
+        private Integer peerPendingLimit = 10000;
+
+        /** 是否使用 redis 作为节点注册中心, 开启后各节点将自身地址写入 {@link #peerRegistryKey} 并定时发现新节点 */
+        private Boolean peerRegistry = false;
+
+        /** 节点注册中心 redis hash key, brokerId -> host:port */
+        private String peerRegistryKey = "mqttx:cluster:peers";
+
+        /** 注册到节点注册中心的地址, 为空时取本机地址 */
+        private String peerAdvertisedHost;
+
+        /** 节点注册中心刷新间隔 */
+        private Duration peerRegistryRefreshInterval = Duration.ofSeconds(10);
+
+        /** 订阅变更日志 redis stream key, 各节点按序号顺序回放 */
+        private String subscriptionLogKey = "mqttx:cluster:subscription-log";
+
+        /** 订阅变更日志最大长度(近似裁剪), 节点落后超出该长度时全量同步 */
+        private Integer subscriptionLogMaxLength = 100_000;
+
+        /** 订阅关系本地快照保存间隔, 快照保存在 mqttx.storage.path 目录下 */
+        private Duration subscriptionSnapshotInterval = Duration.ofMinutes(1);
+
+        /** broker 心跳 redis hash key: brokerId -> 最近一次心跳时间 */
+        private String brokerHeartbeatKey = "mqttx:brokers";
+
+        /** broker 心跳间隔 */
+        private Duration brokerHeartbeatInterval = Duration.ofSeconds(3);
+
+        /** broker 心跳超时, 超时的 broker 被判定失效并清理其路由及订阅, 须大于两倍心跳间隔 */
+        private Duration brokerHeartbeatTimeout = Duration.ofSeconds(15);
     }
 
     /**
@@ -305,13 +477,95 @@ public class MqttxConfig {
         /** 共享载荷存储 key prefix */
         private String payloadKeyPrefix = "mqttx:sharable-payload:";
 
-        /** 共享载荷关联的客户端 id 列表 */
-        private String uniqueIdClientIdsSetPrefix = "mqttx:unique-id:client-ids:";
+        /** 孤儿载荷修复开关. 载荷由引用计数删除, 修复任务仅用于清理引用计数缺失(如被 redis 淘汰)的载荷 */
+        private Boolean orphanRepairEnable = false;
 
-        /** 清理定时间隔 */
+        /** 孤儿载荷修复定时间隔 */
         private Duration cleanWorkInterval = Duration.ofMinutes(1);
 
         /** 当 pub msg 阈值大于指定值时，报文采用二级寻址方式处理 */
         private int thresholdInMessage = 128;
+
+        /** 共享载荷本地缓存容量(字节), 超出后按 W-TinyLFU 淘汰, 未命中时回源 redis */
+        private long localCacheMaxBytes = 64 * 1024 * 1024;
+    }
+
+    /**
+     * 消息过期配置.
+     * <p>
+     * 消息过期时间优先取自 MQTT 5 PUBLISH 报文中的 Message Expiry Interval, 其次为 {@link #topicExpiries} 中匹配的主题默认值.
+     * 过期的离线消息在客户端重连时不再补发, 并由定时任务惰性清理.
+     */
+    @Data
+    public static class MessageExpiry {
+
+        /** 主题默认消息过期时间 */
+        private Set<TopicMessageExpiry> topicExpiries;
+
+        /** 过期离线消息清理间隔 */
+        private Duration purgeInterval = Duration.ofMinutes(1);
+
+        /** 单批清理的最大消息数量, 一批数量不足时结束本轮清理 */
+        private int purgeBatchSize = 512;
+
+        /** 单轮清理的时间预算, 超出后剩余的过期消息留待下一轮处理 */
+        private Duration purgeTimeBudget = Duration.ofSeconds(5);
+
+        /** 过期索引分片数量, 未开启 {@link Redis#clientKeyHashTag} 时生效; 开启后每个 hash tag 桶一个分片 */
+        private int indexShards = 16;
+    }
+
+    /**
+     * 离线消息队列配置, 限制单个 cleanSession = false 客户端保存的 qos1,2 消息.
+     * <p>
+     * 限制及溢出策略由 redis lua 脚本原子执行, 溢出数量见 {@link com.jun.mqttx.utils.BrokerMetrics}.
+     */
+    @Data
+    public static class OfflineQueue {
+
+        /** 单个客户端最大消息数量, 0 表示不限制 */
+        private int maxLength = 0;
+
+        /** 单个客户端最大消息字节数, 0 表示不限制 */
+        private long maxBytes = 0;
+
+        /**
+         * 溢出策略
+         *
+         * @see OverflowPolicy
+         */
+        private OverflowPolicy overflowPolicy = OverflowPolicy.drop_oldest;
+    }
+
+    /**
+     * 存储配置.
+     * <p>
+     * 默认使用 redis; 单机部署可选用本地内存映射文件存储({@link StorageType#MMAP})或纯内存存储({@link StorageType#MEMORY}),
+     * 此时不依赖 redis 且不支持集群.
+     */
+    @Data
+    public static class Storage {
+
+        /**
+         * 存储类型
+         *
+         * @see StorageType
+         */
+        private String type = StorageType.REDIS;
+
+        /** 本地存储目录 */
+        private String path = "./data";
+
+        /** 单个日志段文件大小(字节), 同时也是单条记录的大小上限 */
+        private int segmentSize = 64 * 1024 * 1024;
+
+        /** 刷盘间隔 */
+        private Duration flushInterval = Duration.ofSeconds(1);
+
+        /** 压缩检查间隔 */
+        private Duration compactInterval = Duration.ofMinutes(10);
+
+        /** 失效数据占比超过该值时触发压缩 */
+        private double compactThreshold = 0.5;
     }
 }
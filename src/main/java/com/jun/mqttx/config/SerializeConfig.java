@@ -17,6 +17,7 @@
 package com.jun.mqttx.config;
 
 import com.jun.mqttx.constants.SerializeStrategy;
+import com.jun.mqttx.utils.BinarySerializer;
 import com.jun.mqttx.utils.JsonSerializer;
 import com.jun.mqttx.utils.KryoSerializer;
 import com.jun.mqttx.utils.Serializer;
@@ -38,4 +39,10 @@ public class SerializeConfig {
     public Serializer kryoSerializer() {
         return new KryoSerializer();
     }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "mqttx", name = "serialize-strategy", havingValue = SerializeStrategy.BINARY)
+    public Serializer binarySerializer() {
+        return new BinarySerializer();
+    }
 }
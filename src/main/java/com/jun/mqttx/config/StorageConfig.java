@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.config;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.store.LocalStore;
+import com.jun.mqttx.store.MmapLocalStore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * 本地存储配置. {@link StorageType#MMAP} 存储由 {@link LocalStore} 提供; {@link StorageType#MEMORY} 存储直接由各 Memory*ServiceImpl
+ * 以对象形式保存, 不需要 {@link LocalStore}.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Configuration
+public class StorageConfig {
+
+    public StorageConfig(MqttxConfig mqttxConfig) {
+        if (!StorageType.REDIS.equals(mqttxConfig.getStorage().getType())) {
+            Assert.isTrue(!mqttxConfig.getCluster().getEnable(), "本地存储不支持集群模式");
+        }
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MMAP)
+    public LocalStore mmapLocalStore(MqttxConfig mqttxConfig) throws IOException {
+        var storage = mqttxConfig.getStorage();
+        return new MmapLocalStore(Paths.get(storage.getPath()), storage.getSegmentSize(), storage.getFlushInterval(),
+                storage.getCompactInterval(), storage.getCompactThreshold());
+    }
+}
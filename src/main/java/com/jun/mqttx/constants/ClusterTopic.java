@@ -36,4 +36,12 @@ public interface ClusterTopic {
     String ALTER_USER_AUTHORIZED_TOPICS = "MQTTX_ALTER_USER_AUTHORIZED_TOPICS";
 
     String SUB_UNSUB = "MQTTX_INTERNAL_SUB_OR_UNSUB";
+
+    String RETAIN = "MQTTX_INTERNAL_RETAIN";
+
+    String CLIENT_ROUTE = "MQTTX_INTERNAL_CLIENT_ROUTE";
+
+    String TOPIC_FILTER_ROUTE = "MQTTX_INTERNAL_TOPIC_FILTER_ROUTE";
+
+    String BROKER_DEAD = "MQTTX_INTERNAL_BROKER_DEAD";
 }
@@ -16,6 +16,11 @@
 
 package com.jun.mqttx.constants;
 
+import com.jun.mqttx.entity.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 集群消息枚举
  *
@@ -24,21 +29,42 @@ package com.jun.mqttx.constants;
  */
 public enum InternalMessageEnum {
 
-    PUB(1, ClusterTopic.PUB),
+    PUB(1, ClusterTopic.PUB, PubMsg.class),
+
+    PUB_ACK(2, ClusterTopic.PUB_ACK, Object.class),
+
+    PUB_REC(3, ClusterTopic.PUB_REC, Object.class),
+
+    PUB_COM(4, ClusterTopic.PUB_COM, Object.class),
+
+    PUB_REL(5, ClusterTopic.PUB_REL, Object.class),
+
+    DISCONNECT(6, ClusterTopic.DISCONNECT, String.class),
 
-    PUB_ACK(2, ClusterTopic.PUB_ACK),
+    ALTER_USER_AUTHORIZED_TOPICS(7, ClusterTopic.ALTER_USER_AUTHORIZED_TOPICS, Authentication.class),
 
-    PUB_REC(3, ClusterTopic.PUB_REC),
+    SUB_UNSUB(8, ClusterTopic.SUB_UNSUB, ClientSubOrUnsubMsg.class),
 
-    PUB_COM(4, ClusterTopic.PUB_COM),
+    RETAIN(9, ClusterTopic.RETAIN, RetainTopicMsg.class),
 
-    PUB_REL(5, ClusterTopic.PUB_REL),
+    CLIENT_ROUTE(10, ClusterTopic.CLIENT_ROUTE, ClientRouteMsg.class),
 
-    DISCONNECT(6, ClusterTopic.DISCONNECT),
+    TOPIC_FILTER_ROUTE(11, ClusterTopic.TOPIC_FILTER_ROUTE, TopicFilterRouteMsg.class),
 
-    ALTER_USER_AUTHORIZED_TOPICS(7, ClusterTopic.ALTER_USER_AUTHORIZED_TOPICS),
+    BROKER_DEAD(12, ClusterTopic.BROKER_DEAD, String.class);
 
-    SUB_UNSUB(8, ClusterTopic.SUB_UNSUB);
+    /** 定向 channel 分隔符, 定向 channel 格式为 channel + 分隔符 + brokerId */
+    private static final char TARGET_SEPARATOR = '.';
+
+    private static final Map<String, InternalMessageEnum> CHANNELS = new HashMap<>();
+    private static final InternalMessageEnum[] TYPES = new InternalMessageEnum[16];
+
+    static {
+        for (InternalMessageEnum e : values()) {
+            CHANNELS.put(e.channel, e);
+            TYPES[e.type] = e;
+        }
+    }
 
     private final int type;
 
@@ -47,16 +73,64 @@ public enum InternalMessageEnum {
      */
     private final String channel;
 
-    InternalMessageEnum(int type, String channel) {
+    /**
+     * {@link InternalMessage#getData()} 类别
+     */
+    private final Class<?> dataType;
+
+    InternalMessageEnum(int type, String channel, Class<?> dataType) {
         this.type = type;
         this.channel = channel;
+        this.dataType = dataType;
+    }
+
+    /**
+     * 按 channel 查找集群消息类别, 支持定向 channel
+     *
+     * @param channel redis pub/sub channel 或 kafka topic
+     * @return {@link InternalMessageEnum}, 未知 channel 返回 null
+     * @see #getChannel(String)
+     */
+    public static InternalMessageEnum ofChannel(String channel) {
+        var e = CHANNELS.get(channel);
+        if (e == null) {
+            int i = channel.indexOf(TARGET_SEPARATOR);
+            if (i > 0) {
+                e = CHANNELS.get(channel.substring(0, i));
+            }
+        }
+        return e;
+    }
+
+    /**
+     * 按类别值查找集群消息类别
+     *
+     * @param type 类别值
+     * @return {@link InternalMessageEnum}, 未知类别返回 null
+     */
+    public static InternalMessageEnum ofType(int type) {
+        return type >= 0 && type < TYPES.length ? TYPES[type] : null;
     }
 
     public String getChannel() {
         return channel;
     }
 
+    /**
+     * 定向 channel, 仅由 brokerId 对应的 broker 订阅
+     *
+     * @param brokerId 目标 broker id
+     * @return redis pub/sub channel 或 kafka topic
+     */
+    public String getChannel(String brokerId) {
+        return channel + TARGET_SEPARATOR + brokerId;
+    }
+
     public int getType() {
         return type;
     }
+
+    public Class<?> getDataType() {
+        return dataType;
+    }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.constants;
+
+/**
+ * 离线消息队列溢出策略.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public enum OverflowPolicy {
+    /** 丢弃最早的消息 */
+    drop_oldest,
+    /** 丢弃新到达的消息 */
+    drop_newest,
+    /** 同一主题只保留最新的消息, 仍溢出时丢弃最早的消息 */
+    conflate;
+}
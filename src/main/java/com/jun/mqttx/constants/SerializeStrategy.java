@@ -24,4 +24,6 @@ public interface SerializeStrategy {
     String JSON = "json";
 
     String KRYO = "kryo";
+
+    String BINARY = "binary";
 }
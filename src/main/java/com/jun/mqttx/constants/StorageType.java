@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.constants;
+
+/**
+ * 持久化存储类型
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public interface StorageType {
+
+    /** 默认项, 全部状态保存在 redis, 支持集群 */
+    String REDIS = "redis";
+
+    /** 本地内存映射文件, 仅支持单机 */
+    String MMAP = "mmap";
+
+    /** 纯内存, 仅支持单机, 进程退出后数据丢失 */
+    String MEMORY = "memory";
+}
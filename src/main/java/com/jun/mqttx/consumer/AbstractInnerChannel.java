@@ -19,28 +19,35 @@ package com.jun.mqttx.consumer;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.constants.InternalMessageEnum;
 import com.jun.mqttx.entity.InternalMessage;
+import com.jun.mqttx.utils.InternalMessageCodec;
 import com.jun.mqttx.utils.Serializer;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.util.Assert;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
- * 该抽象类有两个子类 {@link KafkaInternalMessageSubscriber} 和 {@link DefaultInternalMessageSubscriber},
+ * 该抽象类有三个子类 {@link KafkaInternalMessageSubscriber}、{@link DefaultInternalMessageSubscriber} 和
+ * {@link NettyInternalMessageSubscriber},
  * 具体采用哪个实现取决于用户配置 <code>mqttx.enable-cluster.type</code>
  */
+@Slf4j
 public abstract class AbstractInnerChannel {
 
     private final String brokerId;
+    private final byte[] brokerIdBytes;
     private final Serializer serializer;
-    private final List<Watcher> watchers;
+    private final List<Watcher<?>> watchers;
 
-    public AbstractInnerChannel(List<Watcher> watchers, Serializer serializer, MqttxConfig mqttxConfig) {
+    public AbstractInnerChannel(List<Watcher<?>> watchers, Serializer serializer, MqttxConfig mqttxConfig) {
         Assert.notNull(watchers, "watchers can't be null");
         Assert.notNull(mqttxConfig, "mqttxConfig can't be null");
         Assert.notNull(serializer, "serializer can't be null");
 
         this.watchers = watchers;
         this.brokerId = mqttxConfig.getBrokerId();
+        this.brokerIdBytes = brokerId.getBytes(StandardCharsets.UTF_8);
         this.serializer = serializer;
     }
 
@@ -56,21 +63,74 @@ public abstract class AbstractInnerChannel {
      *     <li>发布消息完成_qos2 {@link InternalMessageEnum#PUB_COM}</li>
      *     <li>用户权限修改 {@link InternalMessageEnum#ALTER_USER_AUTHORIZED_TOPICS}</li>
      *     <li>订阅与删除订阅 {@link InternalMessageEnum#SUB_UNSUB}</li>
+     *     <li>保留消息变更 {@link InternalMessageEnum#RETAIN}</li>
+     *     <li>客户端路由变更 {@link InternalMessageEnum#CLIENT_ROUTE}</li>
+     *     <li>主题过滤器路由变更 {@link InternalMessageEnum#TOPIC_FILTER_ROUTE}</li>
+     *     <li>broker 失效 {@link InternalMessageEnum#BROKER_DEAD}</li>
      * </ol>
      *
+     * <p>
+     * 消息帧格式见 {@link InternalMessageCodec}: 先读取头部, 本节点发出的消息直接丢弃, 批量帧拆分后逐条分发; 消息体仅在存在
+     * 支持该 channel 的 {@link Watcher} 时解码一次, 解码结果由这些 {@link Watcher} 共享.
+     * <p>
+     * 发往本节点定向 channel({@link InternalMessageEnum#getChannel(String)}) 的消息与对应类别的广播消息由相同的
+     * {@link Watcher} 处理.
+     *
      * @param message 消息内容
      * @param channel 订阅频道
      */
+    @SuppressWarnings({"rawtypes", "unchecked"})
     public void dispatch(byte[] message, String channel) {
+        boolean framed = InternalMessageCodec.isFramed(message);
+
         // 同 broker 消息屏蔽
-        var internalMessage = serializer.deserialize(message, InternalMessage.class);
-        if (brokerId.equals(internalMessage.getBrokerId())) {
+        if (framed && InternalMessageCodec.isFrom(message, brokerIdBytes)) {
+            return;
+        }
+
+        // 批量帧逐条分发, 批量帧内的消息帧属于同一 channel
+        if (framed && InternalMessageCodec.isBatch(message)) {
+            List<byte[]> frames;
+            try {
+                frames = InternalMessageCodec.unpackBatch(message);
+            } catch (Exception e) {
+                log.error(String.format("集群消息处理失败, channel: %s", channel), e);
+                return;
+            }
+            for (byte[] frame : frames) {
+                dispatch(frame, channel);
+            }
+            return;
+        }
+
+        // 定向 channel 按其所属类别的 channel 分发
+        InternalMessageEnum type = framed ? InternalMessageCodec.type(message) : InternalMessageEnum.ofChannel(channel);
+        if (type == null || !(type.getChannel().equals(channel) || type.getChannel(brokerId).equals(channel))) {
+            log.warn("非法的集群消息, channel: {}", channel);
             return;
         }
+        channel = type.getChannel();
 
+        // 异常不能抛出, 否则会终止集群消息订阅
+        InternalMessage im = null;
         for (Watcher watcher : watchers) {
             if (watcher.support(channel)) {
-                watcher.action(message);
+                try {
+                    if (im == null) {
+                        im = framed ?
+                                InternalMessageCodec.decode(message, type.getDataType(), serializer) :
+                                InternalMessageCodec.decodeLegacy(message, type.getDataType(), serializer);
+                        if (!framed && brokerId.equals(im.getBrokerId())) {
+                            return;
+                        }
+                    }
+                    watcher.action(im);
+                } catch (Exception e) {
+                    log.error(String.format("集群消息处理失败, channel: %s", channel), e);
+                    if (im == null) {
+                        return;
+                    }
+                }
             }
         }
     }
@@ -29,7 +29,7 @@ import java.util.List;
  */
 public class DefaultInternalMessageSubscriber extends AbstractInnerChannel {
 
-    public DefaultInternalMessageSubscriber(List<Watcher> watchers, Serializer serializer, MqttxConfig mqttxConfig) {
+    public DefaultInternalMessageSubscriber(List<Watcher<?>> watchers, Serializer serializer, MqttxConfig mqttxConfig) {
         super(watchers, serializer, mqttxConfig);
     }
 
@@ -27,19 +27,24 @@ import org.springframework.kafka.listener.ConsumerSeekAware;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
- * 集群消息订阅分发处理器, kafka 实现
+ * 集群消息订阅分发处理器, kafka 实现.
+ * <p>
+ * 监听容器并发数为 {@code mqttx.cluster.kafka-concurrency}, 各分区分配给不同的消费线程, 同一分区(即同一 key)的消息按序处理.
  *
  * @since v1.0.6
  */
 @Slf4j
 public class KafkaInternalMessageSubscriber extends AbstractInnerChannel implements ConsumerSeekAware {
 
-    private volatile boolean onceFlag = false;
+    /** 已重置 offset 的分区 */
+    private final Set<TopicPartition> seekedPartitions = ConcurrentHashMap.newKeySet();
 
-    public KafkaInternalMessageSubscriber(List<Watcher> watchers, Serializer serializer, MqttxConfig mqttxConfig) {
+    public KafkaInternalMessageSubscriber(List<Watcher<?>> watchers, Serializer serializer, MqttxConfig mqttxConfig) {
         super(watchers, serializer, mqttxConfig);
     }
 
@@ -48,15 +53,20 @@ public class KafkaInternalMessageSubscriber extends AbstractInnerChannel impleme
      *
      * @param record {@link ConsumerRecord}
      */
-    @KafkaListener(topics = {
+    @KafkaListener(concurrency = "${mqttx.cluster.kafka-concurrency:4}", topics = {
             ClusterTopic.PUB,
+            ClusterTopic.PUB + ".${mqttx.broker-id}",
             ClusterTopic.PUB_ACK,
             ClusterTopic.PUB_REC,
             ClusterTopic.PUB_REL,
             ClusterTopic.PUB_COM,
             ClusterTopic.DISCONNECT,
             ClusterTopic.ALTER_USER_AUTHORIZED_TOPICS,
-            ClusterTopic.SUB_UNSUB
+            ClusterTopic.SUB_UNSUB,
+            ClusterTopic.RETAIN,
+            ClusterTopic.CLIENT_ROUTE,
+            ClusterTopic.TOPIC_FILTER_ROUTE,
+            ClusterTopic.BROKER_DEAD
     })
     public void handlerMessage(ConsumerRecord<String, byte[]> record) {
         byte[] value = record.value();
@@ -66,15 +76,17 @@ public class KafkaInternalMessageSubscriber extends AbstractInnerChannel impleme
 
     /**
      * 当 partition assignment 变化时，重置消费者的 offset 为 latest, 此举为避免集群消费者重新上线后消费之前的消息导致数据不一致的问题。
-     * 仅在项目初始化时执行一次此函数.
+     * 每个分区仅在首次分配时重置一次, 之后在并发消费者之间重新分配时从已提交的 offset 继续消费.
      * <p>
      * ps: redis pub/sub 客户端重连后只会收到最新的消息，而 kafka 会保存 consumer 消费的 offset, 该方法可在逻辑上使其行为一致。
      */
     @Override
     public void onPartitionsAssigned(Map<TopicPartition, Long> assignments, ConsumerSeekCallback callback) {
-        if (!onceFlag) {
-            onceFlag = true;
-            callback.seekToEnd(assignments.keySet());
+        var partitions = assignments.keySet().stream()
+                .filter(seekedPartitions::add)
+                .toList();
+        if (!partitions.isEmpty()) {
+            callback.seekToEnd(partitions);
         }
     }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.consumer;
+
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.utils.InternalMessageCodec;
+import com.jun.mqttx.utils.PeerHandshake;
+import com.jun.mqttx.utils.Serializer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群消息订阅分发处理器, netty 节点直连实现.
+ * <p>
+ * 监听 {@code mqttx.cluster.peer-host:peer-port}, 接收其它节点 {@link com.jun.mqttx.service.impl.NettyInternalMessagePublishServiceImpl}
+ * 建立的长连接. 报文格式: 4 字节长度 + {@link InternalMessageCodec} 消息帧, 消息类别取自帧头部.
+ * <p>
+ * 连接建立后先按 {@link PeerHandshake} 完成共享密钥校验, 校验通过前收到的任何数据均不处理.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+public class NettyInternalMessageSubscriber extends AbstractInnerChannel implements DisposableBean {
+
+    /** 消息帧头部及主题等除 mqtt 报文外的额外字节数 */
+    private static final int FRAME_OVERHEAD = 64 * 1024;
+    private final String host;
+    private final int port;
+    private final int maxFrameLength;
+    private final String secret;
+    private EventLoopGroup boss, work;
+
+    public NettyInternalMessageSubscriber(List<Watcher<?>> watchers, Serializer serializer, MqttxConfig mqttxConfig) {
+        super(watchers, serializer, mqttxConfig);
+
+        var cluster = mqttxConfig.getCluster();
+        this.host = StringUtils.hasText(cluster.getPeerHost()) ? cluster.getPeerHost() : mqttxConfig.getHost();
+        this.port = cluster.getPeerPort();
+        this.maxFrameLength = mqttxConfig.getMaxBytesInMessage() + FRAME_OVERHEAD;
+        this.secret = cluster.getPeerSecret();
+        Assert.hasText(secret, "mqttx.cluster.peer-secret can't be null");
+    }
+
+    /**
+     * 启动节点监听服务
+     */
+    @PostConstruct
+    public void start() throws InterruptedException {
+        ServerBootstrap b = new ServerBootstrap();
+        if (Epoll.isAvailable()) {
+            boss = new EpollEventLoopGroup(1);
+            work = new EpollEventLoopGroup();
+            b.channel(EpollServerSocketChannel.class);
+        } else {
+            boss = new NioEventLoopGroup(1);
+            work = new NioEventLoopGroup();
+            b.channel(NioServerSocketChannel.class);
+        }
+
+        b
+                .group(boss, work)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel socketChannel) {
+                        socketChannel.pipeline()
+                                .addLast(new LengthFieldBasedFrameDecoder(maxFrameLength, 0, 4, 0, 4))
+                                .addLast(new LengthFieldPrepender(4))
+                                .addLast(new PeerHandler());
+                    }
+                });
+        b.bind(host, port).sync();
+        log.info("集群节点监听地址: {}:{}", host, port);
+    }
+
+    /**
+     * 集群消息处理
+     *
+     * @param frame 消息帧
+     */
+    public void handleMessage(byte[] frame) {
+        InternalMessageEnum type;
+        if (!InternalMessageCodec.isFramed(frame) || (type = InternalMessageCodec.type(frame)) == null) {
+            log.warn("非法的集群消息帧, 长度: {}", frame.length);
+            return;
+        }
+        dispatch(frame, type.getChannel());
+    }
+
+    @Override
+    public void destroy() {
+        if (boss != null) {
+            boss.shutdownGracefully();
+        }
+        if (work != null) {
+            work.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 节点连接处理器, 每个连接独享一个实例
+     */
+    private final class PeerHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        /** 质询随机数, 握手完成后置空 */
+        private byte[] challenge;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            log.info("集群节点已连接: {}", ctx.channel().remoteAddress());
+            challenge = PeerHandshake.challenge();
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(challenge));
+            ctx.executor().schedule(() -> {
+                if (challenge != null) {
+                    log.warn("集群节点握手超时: {}", ctx.channel().remoteAddress());
+                    ctx.close();
+                }
+            }, PeerHandshake.TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            log.info("集群节点连接断开: {}", ctx.channel().remoteAddress());
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+            if (challenge == null) {
+                handleMessage(ByteBufUtil.getBytes(msg));
+                return;
+            }
+
+            if (msg.readableBytes() != PeerHandshake.RESPONSE_LENGTH
+                    || !PeerHandshake.verify(secret, challenge, ByteBufUtil.getBytes(msg))) {
+                log.warn("集群节点握手失败, 共享密钥不匹配: {}", ctx.channel().remoteAddress());
+                ctx.close();
+                return;
+            }
+            challenge = null;
+            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER);
+            log.info("集群节点握手成功: {}", ctx.channel().remoteAddress());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.error(String.format("集群节点连接异常: %s", ctx.channel().remoteAddress()), cause);
+            ctx.close();
+        }
+    }
+}
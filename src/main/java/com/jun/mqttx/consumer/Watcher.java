@@ -17,22 +17,25 @@
 package com.jun.mqttx.consumer;
 
 import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.entity.InternalMessage;
 
 /**
  * 观察者，实现此接口.
  *
+ * @param <T> {@link InternalMessage#getData()} 类别, 与 {@link InternalMessageEnum#getDataType()} 一致
+ *
  * @author Jun
  * @since 1.0.4
  */
-public interface Watcher {
+public interface Watcher<T> {
 
     /**
      * 每当有新的集群消息达到是，触发行为。
      * 注意：实现方法不应该有耗时操作(e.g. 访问数据库)
      *
-     * @param msg 集群消息
+     * @param im 集群消息, 同一条消息的多个 Watcher 共享解码结果, 实现方法不应修改其内容
      */
-    void action(byte[] msg);
+    void action(InternalMessage<T> im);
 
     /**
      * Watcher 支持的 channel 类别
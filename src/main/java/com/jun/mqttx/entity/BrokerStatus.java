@@ -48,6 +48,24 @@ public class BrokerStatus {
 
     private final Integer uptime;
 
+    /** @see com.jun.mqttx.utils.BrokerMetrics#OFFLINE_DROPPED_OLDEST */
+    private final Long offlineDroppedOldest;
+
+    /** @see com.jun.mqttx.utils.BrokerMetrics#OFFLINE_DROPPED_NEWEST */
+    private final Long offlineDroppedNewest;
+
+    /** @see com.jun.mqttx.utils.BrokerMetrics#OFFLINE_CONFLATED */
+    private final Long offlineConflated;
+
+    /** @see com.jun.mqttx.utils.BrokerMetrics#PAYLOAD_CACHE_HITS */
+    private final Long payloadCacheHits;
+
+    /** @see com.jun.mqttx.utils.BrokerMetrics#PAYLOAD_CACHE_MISSES */
+    private final Long payloadCacheMisses;
+
+    /** @see com.jun.mqttx.utils.BrokerMetrics#PAYLOAD_CACHE_EVICTIONS */
+    private final Long payloadCacheEvictions;
+
     //@formatter:on
 
     /**
@@ -69,6 +69,9 @@ public class PubMsg {
     /** 判断 payload 是否是共享数据，采用二级寻址方式获取 */
     private boolean payloadSharable = false;
 
+    /** 消息过期时间戳(毫秒), 0 表示永不过期 */
+    private long expireAt;
+
     //@formatter:on
 
     public static PubMsg of(int qos, String topic, boolean retain, byte[] payload) {
@@ -108,6 +111,17 @@ public class PubMsg {
                 .setWillFlag(willFlag)
                 .setDup(dup)
                 .setPayload(payload)
-                .setUuid(uuid);
+                .setUuid(uuid)
+                .setExpireAt(expireAt);
+    }
+
+    /**
+     * 消息是否已过期
+     *
+     * @param now 当前时间戳(毫秒)
+     * @return true if message expired
+     */
+    public boolean isExpired(long now) {
+        return expireAt > 0 && expireAt <= now;
     }
 }
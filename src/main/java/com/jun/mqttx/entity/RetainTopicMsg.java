@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 保留消息变更消息, 用于集群内部广播, 各节点据此维护本地保留消息主题索引并失效本地缓存
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class RetainTopicMsg {
+
+    private String topic;
+
+    /**
+     * Defined in {@link com.jun.mqttx.service.impl.DefaultRetainMessageServiceImpl}
+     * <ol>
+     *     <li>1 -> 保存</li>
+     *     <li>2 -> 移除</li>
+     * </ol>
+     */
+    private int type;
+}
@@ -16,15 +16,13 @@
 
 package com.jun.mqttx.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.jun.mqttx.utils.MessageIdBitSet;
+import com.jun.mqttx.utils.MessageIdRing;
 import com.jun.mqttx.utils.MessageIdUtils;
 import io.netty.handler.codec.mqtt.MqttVersion;
 import lombok.Data;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-
 /**
  * MQTT 会话
  *
@@ -50,20 +48,36 @@ public class Session {
     /** 清理会话标志 */
     private Boolean cleanSession;
 
-    /** 用于 cleanSession 连接，负责存储 qos > 0 的消息 */
-    private  Map<Integer, PubMsg> pubMsgStore;
+    /** 用于 cleanSession 连接，负责存储 qos > 0 的消息, 首次使用时分配 */
+    @JsonIgnore
+    private transient MessageIdRing<PubMsg> pubMsgStore;
 
-    /** @see com.jun.mqttx.service.IPubRelMessageService */
-    private transient Set<Integer> outPubRelMsgStore;
+    /** 用于 cleanSession 连接, 首次使用时分配. @see com.jun.mqttx.service.IPubRelMessageService */
+    @JsonIgnore
+    private transient MessageIdBitSet outPubRelMsgStore;
 
-    /** @see com.jun.mqttx.service.IPubRelMessageService */
-    private transient Set<Integer> inPubRelMsgStore;
+    /** 用于 cleanSession 连接, 首次使用时分配. @see com.jun.mqttx.service.IPubRelMessageService */
+    @JsonIgnore
+    private transient MessageIdBitSet inPubRelMsgStore;
 
     /** 遗嘱消息 */
     private transient PubMsg willMessage;
 
+    /** MQTT 5 客户端可接收的最大报文字节数, 0 表示无限制 */
+    private transient int maximumPacketSize;
+
+    /** MQTT 5 连接下发消息时是否可能携带主题别名 */
+    private transient boolean topicAlias;
+
     /** 用于生成 msgId */
     private int messageId = -1;
+
+    /** 非 cleanSession 在线期间从 redis 租用的 messageId 区间 [leasedMessageId, leasedMessageIdEnd] */
+    @JsonIgnore
+    private transient long leasedMessageId;
+
+    @JsonIgnore
+    private transient long leasedMessageIdEnd = -1;
     //@formatter:on
 
     private Session() {
@@ -93,11 +107,6 @@ public class Session {
         session.setClientId(clientId);
         session.setCleanSession(cleanSession);
         session.setVersion(version);
-        if (cleanSession) {
-            session.setPubMsgStore(new HashMap<>());
-            session.setOutPubRelMsgStore(new HashSet<>());
-            session.setInPubRelMsgStore(new HashSet<>());
-        }
         return session;
     }
 
@@ -116,6 +125,33 @@ public class Session {
         return MessageIdUtils.trimMessageId(++messageId);
     }
 
+    /**
+     * 从租用的区间内分配 messageId, 非 cleanSession 使用.
+     *
+     * @return messageId, 租用的区间耗尽时返回 -1
+     * @see com.jun.mqttx.service.ISessionService#nextMessageId(Session)
+     */
+    public synchronized int nextLeasedMessageId() {
+        while (leasedMessageId <= leasedMessageIdEnd) {
+            long id = leasedMessageId++;
+            if ((id & 0xffff) != 0) {
+                return MessageIdUtils.trimMessageId(id);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 更新租用的 messageId 区间
+     *
+     * @param start 起始值(包含)
+     * @param end   结束值(包含)
+     */
+    public synchronized void leaseMessageIds(long start, long end) {
+        this.leasedMessageId = start;
+        this.leasedMessageIdEnd = end;
+    }
+
     /**
      * 清理遗嘱消息
      */
@@ -129,8 +165,11 @@ public class Session {
      * @param messageId 消息id
      * @param pubMsg    {@link PubMsg}
      */
-    public void savePubMsg(Integer messageId, PubMsg pubMsg) {
+    public void savePubMsg(int messageId, PubMsg pubMsg) {
         if (cleanSession) {
+            if (pubMsgStore == null) {
+                pubMsgStore = new MessageIdRing<>();
+            }
             pubMsgStore.put(messageId, pubMsg);
         }
     }
@@ -141,7 +180,7 @@ public class Session {
      * @param messageId 消息id
      */
     public void removePubMsg(int messageId) {
-        if (cleanSession) {
+        if (cleanSession && pubMsgStore != null) {
             pubMsgStore.remove(messageId);
         }
     }
@@ -153,6 +192,9 @@ public class Session {
      */
     public void savePubRelInMsg(int messageId) {
         if (cleanSession) {
+            if (inPubRelMsgStore == null) {
+                inPubRelMsgStore = new MessageIdBitSet();
+            }
             inPubRelMsgStore.add(messageId);
         }
     }
@@ -164,6 +206,9 @@ public class Session {
      */
     public void savePubRelOutMsg(int messageId) {
         if (cleanSession) {
+            if (outPubRelMsgStore == null) {
+                outPubRelMsgStore = new MessageIdBitSet();
+            }
             outPubRelMsgStore.add(messageId);
         }
     }
@@ -174,7 +219,7 @@ public class Session {
      * @param messageId 消息id
      */
     public void removePubRelInMsg(int messageId) {
-        if (cleanSession) {
+        if (cleanSession && inPubRelMsgStore != null) {
             inPubRelMsgStore.remove(messageId);
         }
     }
@@ -185,12 +230,18 @@ public class Session {
      * @param messageId 消息id
      */
     public void removePubRelOutMsg(int messageId) {
-        if (cleanSession) {
+        if (cleanSession && outPubRelMsgStore != null) {
             outPubRelMsgStore.remove(messageId);
         }
     }
 
+    /**
+     * 判断客户端发送的 qos2 消息是否重复(已收到 PUBLISH, 尚未收到 PUBREL)
+     *
+     * @param messageId 消息id
+     * @return true if duplicated
+     */
     public boolean isDupMsg(int messageId) {
-        return outPubRelMsgStore.contains(messageId);
+        return inPubRelMsgStore != null && inPubRelMsgStore.contains(messageId);
     }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.entity;
+
+import lombok.Data;
+
+import java.time.Duration;
+
+/**
+ * 主题默认消息过期时间
+ */
+@Data
+public class TopicMessageExpiry {
+    //@formatter:off
+
+    /** 主题, 支持通配符 */
+    private String topic;
+
+    /** 过期时间 */
+    private Duration expiry;
+}
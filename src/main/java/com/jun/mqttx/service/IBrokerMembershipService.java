@@ -0,0 +1,27 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.service;
+
+/**
+ * 集群成员服务, 各 broker 定期发送心跳, 心跳超时的 broker 被判定失效, 其拥有的路由及订阅由集群清理. 仅在集群模式下可用.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public interface IBrokerMembershipService {
+}
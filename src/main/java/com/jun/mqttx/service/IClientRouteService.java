@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 客户端路由服务, 维护集群内 clientId -> brokerId 的路由表, 仅在集群模式下可用
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public interface IClientRouteService {
+
+    /**
+     * 登记客户端连接至当前 broker
+     *
+     * @param clientId 客户端 id
+     */
+    Mono<Void> register(String clientId);
+
+    /**
+     * 注销客户端在当前 broker 上的路由, 路由已指向其它 broker 时不做处理
+     *
+     * @param clientId 客户端 id
+     */
+    Mono<Void> unregister(String clientId);
+
+    /**
+     * 查询客户端所在 broker, 仅访问本地路由表副本
+     *
+     * @param clientId 客户端 id
+     * @return brokerId, 客户端不在线返回 null
+     */
+    String route(String clientId);
+
+    /**
+     * 本地路由表副本未命中时回源 redis 路由表查询, 补偿丢失的路由广播. 查到的路由写回本地副本; redis 中同样不存在的客户端
+     * 在一段时间内不再回源, 避免离线客户端的每条消息都访问 redis.
+     *
+     * @param clientIds 客户端 id
+     * @return clientId -> brokerId, 仅包含在线的客户端
+     */
+    Mono<Map<String, String>> load(Collection<String> clientIds);
+
+    /**
+     * 移除本地路由表副本中指向失效 broker 的路由
+     *
+     * @param brokerId 失效的 broker id
+     * @return 被移除路由的客户端 id
+     */
+    Set<String> removeBroker(String brokerId);
+
+    /**
+     * 清理 redis 路由表中指向失效 broker 的路由, 仅由判定 broker 失效的节点调用
+     *
+     * @param brokerId 失效的 broker id
+     * @return 被清理路由的客户端 id, 已重连至其它 broker 的客户端不在其中
+     */
+    Flux<String> purgeBroker(String brokerId);
+}
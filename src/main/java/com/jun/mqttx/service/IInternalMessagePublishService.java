@@ -16,8 +16,11 @@
 
 package com.jun.mqttx.service;
 
+import com.jun.mqttx.constants.InternalMessageEnum;
 import com.jun.mqttx.entity.InternalMessage;
 
+import java.util.Collection;
+
 /**
  * 内部消息发布服务
  *
@@ -34,4 +37,14 @@ public interface IInternalMessagePublishService {
      * @param channel         推送频道
      */
     <T> void publish(InternalMessage<T> internalMessage, String channel);
+
+    /**
+     * 发布集群消息给指定的 broker, 消息只编码一次
+     *
+     * @param internalMessage {@link InternalMessage}
+     * @param <T>             {@link InternalMessage#getData()} 类别
+     * @param type            消息类别
+     * @param brokerIds       目标 broker id 集合, 消息推送至各 broker 的定向频道 {@link InternalMessageEnum#getChannel(String)}
+     */
+    <T> void publish(InternalMessage<T> internalMessage, InternalMessageEnum type, Collection<String> brokerIds);
 }
@@ -20,6 +20,8 @@ import com.jun.mqttx.entity.PubMsg;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collection;
+
 /**
  * publish msg service
  *
@@ -36,6 +38,23 @@ public interface IPublishMessageService {
      */
     Mono<Void> save(String clientId, PubMsg pubMsg);
 
+    /**
+     * 保存已下发给在线客户端、等待确认的消息. 此类消息不计入离线队列限制, 也不会被溢出策略淘汰.
+     *
+     * @param clientId 客户id
+     * @param pubMsg   publish 消息体
+     */
+    Mono<Void> saveInflight(String clientId, PubMsg pubMsg);
+
+    /**
+     * 将同一消息扇出保存给多个离线客户端, messageId 由存储层分配, 客户端重连时通过 {@link #search(String)} 取回.
+     * 实现应避免逐个客户端地访问存储.
+     *
+     * @param clientIds 客户id列表
+     * @param pubMsg    publish 消息体, 其 messageId 会被忽略
+     */
+    Mono<Void> saveAll(Collection<String> clientIds, PubMsg pubMsg);
+
     /**
      * 清理与客户相关连的 publish 消息
      *
@@ -65,4 +65,13 @@ public interface ISessionService {
      * @return next message id
      */
     Mono<Integer> nextMessageId(String clientId);
+
+    /**
+     * 获取在线 client 的下一个 messageId. messageId 从 session 租用的区间内本地分配, 区间耗尽时才向存储租用新的区间,
+     * 租用的区间与 {@link #nextMessageId(String)} 共享同一计数器, 保证与离线消息的 messageId 不冲突.
+     *
+     * @param session 在线 client 的会话
+     * @return next message id
+     */
+    Mono<Integer> nextMessageId(Session session);
 }
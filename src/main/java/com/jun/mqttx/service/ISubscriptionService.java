@@ -21,6 +21,7 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * 订阅相关服务, 为两种主题提供服务:
@@ -73,6 +74,13 @@ public interface ISubscriptionService {
      */
     Mono<Void> clearUnAuthorizedClientSub(String clientId, List<String> authorizedSub);
 
+    /**
+     * 移除客户端在集群中共享的 cleanSession 订阅. 客户端所在 broker 失效后, 其 cleanSession 会话随之失效, 订阅不会再由该 broker 清理.
+     *
+     * @param clientIds 失效 broker 上的客户端 id
+     */
+    Mono<Void> clearCleanSessionSubscriptions(Set<String> clientIds);
+
 
     /**
      * 获取订阅系统主题 topic 的客户端集合
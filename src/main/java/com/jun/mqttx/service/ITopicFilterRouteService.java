@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service;
+
+import reactor.core.publisher.Mono;
+
+import java.util.Set;
+
+/**
+ * 主题过滤器路由服务, 维护集群内 topicFilter -> brokerIds 的路由表, 仅在集群模式下可用.
+ * <p>
+ * 路由表只记录 cleanSession 客户端的非共享订阅, 此类订阅仅保存在客户端所在 broker.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public interface ITopicFilterRouteService {
+
+    /**
+     * 当前 broker 新增一个订阅, 主题过滤器首个订阅时通知集群
+     *
+     * @param topicFilter 主题过滤器
+     */
+    void add(String topicFilter);
+
+    /**
+     * 当前 broker 移除一个订阅, 主题过滤器最后一个订阅移除时通知集群
+     *
+     * @param topicFilter 主题过滤器
+     */
+    void remove(String topicFilter);
+
+    /**
+     * 查询存在匹配订阅的其它 broker, 仅访问本地路由表副本
+     *
+     * @param topic 发布消息的主题
+     * @return brokerId 集合, 不含当前 broker
+     */
+    Set<String> route(String topic);
+
+    /**
+     * 移除本地路由表副本中失效 broker 的路由
+     *
+     * @param brokerId 失效的 broker id
+     */
+    void removeBroker(String brokerId);
+
+    /**
+     * 删除 redis 中失效 broker 的路由表, 仅由判定 broker 失效的节点调用
+     *
+     * @param brokerId 失效的 broker id
+     */
+    Mono<Void> purgeBroker(String brokerId);
+}
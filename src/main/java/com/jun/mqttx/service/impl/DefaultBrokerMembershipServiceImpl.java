@@ -0,0 +1,270 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.broker.BrokerHandler;
+import com.jun.mqttx.broker.handler.ConnectHandler;
+import com.jun.mqttx.config.ClusterConfig;
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.consumer.Watcher;
+import com.jun.mqttx.entity.InternalMessage;
+import com.jun.mqttx.service.*;
+import com.jun.mqttx.utils.TopicUtils;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 集群成员服务.
+ * <p>
+ * 各 broker 每隔 {@link MqttxConfig.Cluster#getBrokerHeartbeatInterval()} 将 redis 服务器时间写入心跳 hash
+ * {@link MqttxConfig.Cluster#getBrokerHeartbeatKey()}, 同一脚本删除心跳超时的 broker, 因此每个失效 broker 只会被一个节点判定.
+ * 判定节点清理 redis 中失效 broker 的客户端路由、主题过滤器路由及其客户端的 cleanSession 共享订阅, 并通过集群消息
+ * {@link InternalMessageEnum#BROKER_DEAD} 广播; 各节点据此清理本地路由副本并发布系统主题 {@link TopicUtils#BROKER_DEAD}.
+ * <p>
+ * 判定节点同时在心跳 hash 中写入失效标记. 当前 broker 若因停顿被集群判定失效, 其路由及订阅已被清理, 恢复心跳时读取到
+ * 失效标记, 断开全部客户端连接, 由客户端重连后重新建立. redis 数据丢失(心跳 hash 整体丢失)时不存在失效标记, 不会断开连接.
+ * 失效标记保留 {@link #EVICTED_TTL_FACTOR} 倍心跳超时, 停顿超过保留时间的 broker 读取不到标记, 按停顿时长自行判定失效.
+ * <p>
+ * broker 正常关闭时自行完成上述清理并广播, 而不是等待心跳超时或依赖连接断开时的逐个清理.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+@Service
+@ConditionalOnExpression("${mqttx.cluster.enable:false}")
+public class DefaultBrokerMembershipServiceImpl implements IBrokerMembershipService, Watcher<String>, DisposableBean {
+
+    //@formatter:off
+    /** 失效标记保留时间为心跳超时的倍数 */
+    private static final int EVICTED_TTL_FACTOR = 20;
+    private final ReactiveStringRedisTemplate stringRedisTemplate;
+    private final IInternalMessagePublishService internalMessagePublishService;
+    private final IClientRouteService clientRouteService;
+    private final ITopicFilterRouteService topicFilterRouteService;
+    private final ISubscriptionService subscriptionService;
+    private final String brokerId;
+    private final String brokerHeartbeatKey;
+    private final long heartbeatInterval, heartbeatTimeout, evictedTtl;
+    private final boolean enableSysTopic;
+    /** type = netty 且启用节点注册中心时, 失效 broker 同时从注册中心移除 */
+    private final String peerRegistryKey;
+    @SuppressWarnings("unchecked")
+    private final RedisScript<List<Object>> heartbeatScript = RedisScript.of(new ClassPathResource("lua/broker-heartbeat.lua"), (Class<List<Object>>) (Class<?>) List.class);
+    private final ScheduledExecutorService heartbeatExecutor;
+    /** 最近一次心跳成功时间, 0 表示尚未加入集群 */
+    private volatile long lastHeartbeat;
+    //@formatter:on
+
+    public DefaultBrokerMembershipServiceImpl(ReactiveStringRedisTemplate stringRedisTemplate,
+                                              IInternalMessagePublishService internalMessagePublishService,
+                                              IClientRouteService clientRouteService,
+                                              ITopicFilterRouteService topicFilterRouteService,
+                                              ISubscriptionService subscriptionService,
+                                              MqttxConfig mqttxConfig) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.internalMessagePublishService = internalMessagePublishService;
+        this.clientRouteService = clientRouteService;
+        this.topicFilterRouteService = topicFilterRouteService;
+        this.subscriptionService = subscriptionService;
+        this.brokerId = mqttxConfig.getBrokerId();
+        this.enableSysTopic = mqttxConfig.getSysTopic().getEnable();
+
+        var cluster = mqttxConfig.getCluster();
+        this.brokerHeartbeatKey = cluster.getBrokerHeartbeatKey();
+        this.heartbeatInterval = cluster.getBrokerHeartbeatInterval().toMillis();
+        this.heartbeatTimeout = cluster.getBrokerHeartbeatTimeout().toMillis();
+        this.evictedTtl = heartbeatTimeout * EVICTED_TTL_FACTOR;
+        Assert.hasText(brokerHeartbeatKey, "brokerHeartbeatKey can't be null");
+        Assert.isTrue(heartbeatTimeout > heartbeatInterval * 2, "brokerHeartbeatTimeout must be greater than twice brokerHeartbeatInterval");
+        if (ClusterConfig.NETTY.equals(cluster.getType()) && Boolean.TRUE.equals(cluster.getPeerRegistry())) {
+            this.peerRegistryKey = cluster.getPeerRegistryKey();
+        } else {
+            this.peerRegistryKey = null;
+        }
+
+        this.heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "broker-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, 0, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void action(InternalMessage<String> im) {
+        var dead = im.getData();
+        // 当前 broker 被判定失效由心跳处理
+        if (brokerId.equals(dead)) {
+            return;
+        }
+        onBrokerDead(dead, false);
+    }
+
+    @Override
+    public boolean support(String channel) {
+        return InternalMessageEnum.BROKER_DEAD.getChannel().equals(channel);
+    }
+
+    /**
+     * 当前 broker 关闭: 按失效流程清理自身的路由及订阅并广播, 最后删除心跳
+     */
+    @Override
+    public void destroy() {
+        heartbeatExecutor.shutdownNow();
+        if (lastHeartbeat == 0) {
+            return;
+        }
+
+        var im = new InternalMessage<>(brokerId, System.currentTimeMillis(), brokerId);
+        internalMessagePublishService.publish(im, InternalMessageEnum.BROKER_DEAD.getChannel());
+        purge(brokerId)
+                .then(stringRedisTemplate.opsForHash().remove(brokerHeartbeatKey, brokerId))
+                .doOnError(t -> log.error(String.format("broker 关闭时清理路由及订阅失败: %s", t.getMessage()), t))
+                .onErrorResume(t -> Mono.empty())
+                .block(Duration.ofSeconds(10));
+    }
+
+    /**
+     * 发送心跳并检测失效的 broker.
+     * <p>
+     * 当前 broker 上一次心跳失败(如 redis 不可用)时本次不检测, 避免 redis 恢复后将尚未恢复心跳的 broker 误判为失效.
+     */
+    private void heartbeat() {
+        var now = System.currentTimeMillis();
+        var detect = lastHeartbeat > 0 && now - lastHeartbeat <= heartbeatInterval * 2;
+        List<Object> result;
+        try {
+            result = stringRedisTemplate.execute(heartbeatScript, List.of(brokerHeartbeatKey),
+                            List.of(brokerId, String.valueOf(detect ? heartbeatTimeout : 0), String.valueOf(evictedTtl)))
+                    .single()
+                    .block(Duration.ofMillis(heartbeatInterval));
+        } catch (Exception e) {
+            log.error("broker 心跳发送失败", e);
+            return;
+        }
+        if (result == null) {
+            return;
+        }
+
+        // 启动前遗留的失效标记仅需清除, 此时尚无客户端连接; 停顿超过失效标记保留时间时标记可能已被删除
+        var evicted = (Long) result.get(0) == 1 || now - lastHeartbeat > evictedTtl;
+        if (evicted && lastHeartbeat > 0) {
+            log.warn("当前 broker 已被集群判定失效, 断开全部客户端连接以重新建立路由及订阅");
+            BrokerHandler.CHANNELS.close();
+        }
+        lastHeartbeat = now;
+
+        for (int i = 1; i < result.size(); i++) {
+            onBrokerDead((String) result.get(i), true);
+        }
+    }
+
+    /**
+     * 清理失效 broker 拥有的路由及订阅
+     *
+     * @param dead    失效的 broker id
+     * @param claimed 是否由当前 broker 判定失效, 判定节点负责清理 redis 并集群广播
+     */
+    private void onBrokerDead(String dead, boolean claimed) {
+        var clientIds = clientRouteService.removeBroker(dead);
+        log.warn("broker [{}] 失效, 清理其路由及订阅, 本地路由副本: {}", dead, clientIds.size());
+        topicFilterRouteService.removeBroker(dead);
+        deadNotice(dead).subscribe();
+        if (!claimed) {
+            return;
+        }
+
+        var im = new InternalMessage<>(dead, System.currentTimeMillis(), brokerId);
+        internalMessagePublishService.publish(im, InternalMessageEnum.BROKER_DEAD.getChannel());
+
+        purge(dead)
+                .then(Mono.defer(() -> {
+                    if (peerRegistryKey == null) {
+                        return Mono.empty();
+                    }
+                    return stringRedisTemplate.opsForHash().remove(peerRegistryKey, dead).then();
+                }))
+                .doOnError(t -> log.error(t.getMessage(), t))
+                .subscribe();
+    }
+
+    /**
+     * 清理 redis 中失效 broker 的客户端路由、其客户端的 cleanSession 共享订阅及主题过滤器路由
+     *
+     * @param dead 失效的 broker id
+     */
+    private Mono<Void> purge(String dead) {
+        // 仅清理 redis 路由仍指向失效 broker 的客户端, 已重连至其它 broker 的客户端可能已重新订阅
+        return clientRouteService.purgeBroker(dead)
+                .collect(Collectors.toSet())
+                .flatMap(purged -> {
+                    log.info("broker [{}] 失效, 清理客户端路由: {}", dead, purged.size());
+                    return subscriptionService.clearCleanSessionSubscriptions(purged);
+                })
+                .then(topicFilterRouteService.purgeBroker(dead));
+    }
+
+    /**
+     * broker 失效通知
+     *
+     * @param dead 失效的 broker id
+     */
+    private Mono<Void> deadNotice(String dead) {
+        if (!enableSysTopic) {
+            return Mono.empty();
+        }
+
+        final var topic = String.format(TopicUtils.BROKER_DEAD, dead);
+        var bytes = LocalDateTime.now().toString().getBytes(StandardCharsets.UTF_8);
+        var mpm = MqttMessageBuilders.publish()
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(topic)
+                .payload(Unpooled.buffer(bytes.length).writeBytes(bytes))
+                .build();
+        return subscriptionService.searchSysTopicClients(topic)
+                .doOnNext(clientSub ->
+                        Optional.ofNullable(ConnectHandler.CLIENT_MAP.get(clientSub.getClientId()))
+                                .map(BrokerHandler.CHANNELS::find)
+                                .ifPresent(channel -> channel.writeAndFlush(mpm.retain()))
+                )
+                .doOnComplete(mpm::release)
+                .then();
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.consumer.Watcher;
+import com.jun.mqttx.entity.ClientRouteMsg;
+import com.jun.mqttx.entity.InternalMessage;
+import com.jun.mqttx.service.IClientRouteService;
+import com.jun.mqttx.service.IInternalMessagePublishService;
+import com.jun.mqttx.service.ISubscriptionService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 客户端路由服务.
+ * <p>
+ * redis hash {@link MqttxConfig.Cluster#getClientRouteKey()} 保存完整路由表, 供新启动的节点加载; 路由变更通过集群消息
+ * {@link InternalMessageEnum#CLIENT_ROUTE} 广播, 各节点据此维护本地副本, 查询路由无需访问 redis.
+ * <p>
+ * 广播不保证送达, 因此:
+ * <ol>
+ *     <li>本地副本未命中时可通过 {@link #load(Collection)} 回源 redis, 不存在的客户端短时间内不再回源</li>
+ *     <li>按 {@code clientRouteResyncInterval} 定时通过 HSCAN 读取完整路由表, 与本地副本对账</li>
+ * </ol>
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+@Service
+@ConditionalOnExpression("${mqttx.cluster.enable:false}")
+public class DefaultClientRouteServiceImpl implements IClientRouteService, Watcher<ClientRouteMsg>, DisposableBean {
+
+    //@formatter:off
+    /** 按顺序 -> 上线、下线 */
+    private static final int CONNECT = 1, DISCONNECT = 2;
+    private static final int REDIS_SCAN_COUNT = 1000;
+    /** redis 中不存在路由的客户端, 在此期间不再回源 */
+    private static final Duration MISS_TTL = Duration.ofSeconds(10);
+    private final ReactiveStringRedisTemplate stringRedisTemplate;
+    private final IInternalMessagePublishService internalMessagePublishService;
+    private final ISubscriptionService subscriptionService;
+    private final String brokerId;
+    private final String clientRouteKey;
+    private final RedisScript<Long> clientRouteScript = RedisScript.of(new ClassPathResource("lua/client-route.lua"), Long.class);
+    /** clientId -> brokerId 路由表副本 */
+    private final Map<String, String> routes = new ConcurrentHashMap<>();
+    /** 回源未命中的客户端 */
+    private final Cache<String, Boolean> misses = Caffeine.newBuilder()
+            .expireAfterWrite(MISS_TTL)
+            .maximumSize(100_000)
+            .build();
+    /** 本轮对账开始后路由发生过变更的客户端, 对账时以变更为准 */
+    private final Set<String> touchedClients = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService resyncExecutor;
+    //@formatter:on
+
+    public DefaultClientRouteServiceImpl(ReactiveStringRedisTemplate stringRedisTemplate,
+                                         IInternalMessagePublishService internalMessagePublishService,
+                                         ISubscriptionService subscriptionService,
+                                         MqttxConfig mqttxConfig) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.internalMessagePublishService = internalMessagePublishService;
+        this.subscriptionService = subscriptionService;
+        this.brokerId = mqttxConfig.getBrokerId();
+        this.clientRouteKey = mqttxConfig.getCluster().getClientRouteKey();
+        Assert.hasText(clientRouteKey, "clientRouteKey can't be null");
+
+        initRoutes();
+
+        var interval = mqttxConfig.getCluster().getClientRouteResyncInterval().toMillis();
+        this.resyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "client-route-resync");
+            t.setDaemon(true);
+            return t;
+        });
+        resyncExecutor.scheduleWithFixedDelay(this::resyncRoutes, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Mono<Void> register(String clientId) {
+        touchedClients.add(clientId);
+        misses.invalidate(clientId);
+        routes.put(clientId, brokerId);
+        broadcast(clientId, CONNECT);
+        return stringRedisTemplate.opsForHash().put(clientRouteKey, clientId, brokerId).then();
+    }
+
+    @Override
+    public Mono<Void> unregister(String clientId) {
+        touchedClients.add(clientId);
+        if (routes.remove(clientId, brokerId)) {
+            broadcast(clientId, DISCONNECT);
+        }
+        return stringRedisTemplate.execute(clientRouteScript, List.of(clientRouteKey), List.of(clientId, brokerId)).then();
+    }
+
+    @Override
+    public String route(String clientId) {
+        return routes.get(clientId);
+    }
+
+    @Override
+    public Mono<Map<String, String>> load(Collection<String> clientIds) {
+        var keys = new ArrayList<Object>(clientIds.size());
+        for (var clientId : clientIds) {
+            if (misses.getIfPresent(clientId) == null) {
+                keys.add(clientId);
+            }
+        }
+        if (keys.isEmpty()) {
+            return Mono.just(Map.of());
+        }
+
+        return stringRedisTemplate.opsForHash().multiGet(clientRouteKey, keys)
+                .map(values -> {
+                    var result = new HashMap<String, String>();
+                    for (int i = 0; i < keys.size(); i++) {
+                        var clientId = (String) keys.get(i);
+                        var target = (String) values.get(i);
+                        if (target == null) {
+                            misses.put(clientId, Boolean.TRUE);
+                        } else {
+                            // 不覆盖期间收到的路由变更
+                            routes.putIfAbsent(clientId, target);
+                            result.put(clientId, target);
+                        }
+                    }
+                    return result;
+                });
+    }
+
+    @Override
+    public Set<String> removeBroker(String brokerId) {
+        var clientIds = new HashSet<String>();
+        routes.forEach((clientId, target) -> {
+            if (brokerId.equals(target) && routes.remove(clientId, brokerId)) {
+                clientIds.add(clientId);
+            }
+        });
+        return clientIds;
+    }
+
+    @Override
+    public Flux<String> purgeBroker(String brokerId) {
+        return stringRedisTemplate.<String, String>opsForHash().entries(clientRouteKey)
+                .filter(e -> brokerId.equals(e.getValue()))
+                .concatMap(e -> stringRedisTemplate.execute(clientRouteScript, List.of(clientRouteKey), List.of(e.getKey(), brokerId))
+                        .filter(n -> n > 0)
+                        .map(n -> e.getKey()));
+    }
+
+    @Override
+    public void action(InternalMessage<ClientRouteMsg> im) {
+        final var data = im.getData();
+        final var clientId = data.getClientId();
+        touchedClients.add(clientId);
+        switch (data.getType()) {
+            case CONNECT -> {
+                misses.invalidate(clientId);
+                routes.put(clientId, im.getBrokerId());
+            }
+            // 客户端可能已重连至其它 broker
+            case DISCONNECT -> routes.remove(clientId, im.getBrokerId());
+            default -> log.error("非法的 ClientRouteMsg: [{}] ", data);
+        }
+    }
+
+    @Override
+    public boolean support(String channel) {
+        return InternalMessageEnum.CLIENT_ROUTE.getChannel().equals(channel);
+    }
+
+    @Override
+    public void destroy() {
+        resyncExecutor.shutdownNow();
+    }
+
+    /**
+     * 本地副本与 redis 路由表对账: 以 redis 为准补充或修正路由, 移除 redis 中已不存在的路由. 对账开始后路由发生过变更
+     * (本地上下线或收到广播)的客户端以变更结果为准, 不参与修正. 指向当前 broker 的路由以本地连接为准, 由上下线维护.
+     */
+    private void resyncRoutes() {
+        try {
+            touchedClients.clear();
+            var actual = new HashMap<String, String>();
+            stringRedisTemplate.<String, String>opsForHash()
+                    .scan(clientRouteKey, ScanOptions.scanOptions().count(REDIS_SCAN_COUNT).build())
+                    .doOnNext(e -> actual.put(e.getKey(), e.getValue()))
+                    .blockLast();
+
+            int updated = 0, removed = 0;
+            for (var e : actual.entrySet()) {
+                var clientId = e.getKey();
+                var target = e.getValue();
+                if (brokerId.equals(target) || touchedClients.contains(clientId)) {
+                    continue;
+                }
+                if (!target.equals(routes.put(clientId, target))) {
+                    updated++;
+                }
+            }
+            for (var e : routes.entrySet()) {
+                var clientId = e.getKey();
+                var target = e.getValue();
+                if (!brokerId.equals(target) && !actual.containsKey(clientId) && !touchedClients.contains(clientId)
+                        && routes.remove(clientId, target)) {
+                    removed++;
+                }
+            }
+            if (updated > 0 || removed > 0) {
+                log.info("客户端路由表对账完成: 修正 {} 个, 移除 {} 个", updated, removed);
+            }
+        } catch (Throwable throwable) {
+            log.error(String.format("客户端路由表对账失败: %s", throwable.getMessage()), throwable);
+        }
+    }
+
+    /**
+     * 加载路由表, 当前 broker 刚启动, 指向自身的路由均为上次运行遗留, 直接清理. 当前 broker 在心跳超时前重启时不会被集群
+     * 判定失效, 遗留路由对应客户端的 cleanSession 共享订阅同样在这里清理.
+     */
+    private void initRoutes() {
+        var stale = stringRedisTemplate.<String, String>opsForHash().entries(clientRouteKey)
+                .filter(e -> {
+                    if (brokerId.equals(e.getValue())) {
+                        return true;
+                    }
+                    routes.put(e.getKey(), e.getValue());
+                    return false;
+                })
+                .concatMap(e -> stringRedisTemplate.execute(clientRouteScript, List.of(clientRouteKey), List.of(e.getKey(), brokerId))
+                        .filter(n -> n > 0)
+                        .map(n -> e.getKey()))
+                .collect(Collectors.toSet())
+                .flatMap(clientIds -> subscriptionService.clearCleanSessionSubscriptions(clientIds).thenReturn(clientIds.size()))
+                .doOnError(t -> log.error(t.getMessage(), t))
+                // 这里我们应该阻塞
+                .block();
+
+        log.info("客户端路由表加载完成, 数量: {}, 清理遗留路由: {}", routes.size(), stale);
+    }
+
+    /**
+     * 集群广播路由变更
+     *
+     * @param clientId 客户端 id
+     * @param type     变更类型
+     */
+    private void broadcast(String clientId, int type) {
+        var im = new InternalMessage<>(new ClientRouteMsg(clientId, type), System.currentTimeMillis(), brokerId);
+        internalMessagePublishService.publish(im, InternalMessageEnum.CLIENT_ROUTE.getChannel());
+    }
+}
@@ -16,13 +16,20 @@
 
 package com.jun.mqttx.service.impl;
 
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.InternalMessageEnum;
 import com.jun.mqttx.entity.InternalMessage;
 import com.jun.mqttx.service.IInternalMessagePublishService;
+import com.jun.mqttx.utils.InternalMessageBatcher;
+import com.jun.mqttx.utils.InternalMessageCodec;
 import com.jun.mqttx.utils.Serializer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.RedisTemplate;
 
+import java.util.Collection;
+
 /**
  * 基于 Redis 的实现
  *
@@ -30,18 +37,56 @@ import org.springframework.data.redis.core.RedisTemplate;
  * @since 1.0.4
  */
 @Slf4j
-public class DefaultInternalMessagePublishServiceImpl implements IInternalMessagePublishService {
+public class DefaultInternalMessagePublishServiceImpl implements IInternalMessagePublishService, DisposableBean {
 
     private final ReactiveRedisTemplate<String, byte[]> redisTemplate;
     private final Serializer serializer;
+    /** 微批处理器, 未开启批量发送时为 null */
+    private final InternalMessageBatcher<String> batcher;
 
-    public DefaultInternalMessagePublishServiceImpl(ReactiveRedisTemplate<String, byte[]> redisTemplate, Serializer serializer) {
+    public DefaultInternalMessagePublishServiceImpl(ReactiveRedisTemplate<String, byte[]> redisTemplate, Serializer serializer,
+                                                    MqttxConfig mqttxConfig) {
         this.redisTemplate = redisTemplate;
         this.serializer = serializer;
+
+        var cluster = mqttxConfig.getCluster();
+        if (Boolean.TRUE.equals(cluster.getBatchEnable())) {
+            this.batcher = new InternalMessageBatcher<>(this::send, cluster.getBatchMaxSize(), cluster.getBatchMaxDelay());
+        } else {
+            this.batcher = null;
+        }
     }
 
     @Override
     public <T> void publish(InternalMessage<T> internalMessage, String channel) {
-        redisTemplate.convertAndSend(channel, serializer.serialize(internalMessage)).subscribe();
+        byte[] frame = InternalMessageCodec.encode(internalMessage, InternalMessageEnum.ofChannel(channel), serializer);
+        publish(channel, frame);
+    }
+
+    @Override
+    public <T> void publish(InternalMessage<T> internalMessage, InternalMessageEnum type, Collection<String> brokerIds) {
+        byte[] frame = InternalMessageCodec.encode(internalMessage, type, serializer);
+        for (String brokerId : brokerIds) {
+            publish(type.getChannel(brokerId), frame);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
+    private void publish(String channel, byte[] frame) {
+        if (batcher == null) {
+            send(channel, frame);
+        } else {
+            batcher.add(channel, frame);
+        }
+    }
+
+    private void send(String channel, byte[] frame) {
+        redisTemplate.convertAndSend(channel, frame).subscribe();
     }
 }
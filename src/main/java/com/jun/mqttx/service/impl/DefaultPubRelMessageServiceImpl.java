@@ -17,7 +17,9 @@
 package com.jun.mqttx.service.impl;
 
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.StorageType;
 import com.jun.mqttx.service.IPubRelMessageService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
@@ -25,6 +27,9 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.util.Arrays;
+import java.util.List;
+
+import static com.jun.mqttx.utils.RedisKeyUtils.clientKey;
 
 /**
  * 基于 redis 的实现
@@ -33,18 +38,25 @@ import java.util.Arrays;
  * @since 1.0.4
  */
 @Component
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.REDIS, matchIfMissing = true)
 public class DefaultPubRelMessageServiceImpl implements IPubRelMessageService {
 
     private static final String IN = "_IN";
     private static final String OUT = "_OUT";
+    /** key 后缀, 供会话迁移使用 */
+    static final List<String> KEY_SUFFIXES = List.of(IN, OUT);
     private final ReactiveRedisTemplate<String, byte[]> redisTemplate;
     private final String pubRelMsgSetPrefix;
+    /** hash tag 桶数量, 0 表示不使用 hash tag */
+    private final int hashTagBuckets;
 
     public DefaultPubRelMessageServiceImpl(ReactiveRedisTemplate<String, byte[]> redisTemplate, MqttxConfig mqttxConfig) {
         this.redisTemplate = redisTemplate;
 
         this.pubRelMsgSetPrefix = mqttxConfig.getRedis().getPubRelMsgSetPrefix();
         Assert.notNull(pubRelMsgSetPrefix, "pubRelMsgSetPrefix can't be null");
+        var redis = mqttxConfig.getRedis();
+        this.hashTagBuckets = redis.getClientKeyHashTag() ? redis.getClientKeyHashTagBuckets() : 0;
     }
 
     @Override
@@ -94,11 +106,11 @@ public class DefaultPubRelMessageServiceImpl implements IPubRelMessageService {
     }
 
     private String inKey(String clientId) {
-        return pubRelMsgSetPrefix + clientId + OUT;
+        return clientKey(pubRelMsgSetPrefix, clientId, hashTagBuckets) + OUT;
     }
 
     private String outKey(String clientId) {
-        return pubRelMsgSetPrefix + clientId + IN;
+        return clientKey(pubRelMsgSetPrefix, clientId, hashTagBuckets) + IN;
     }
 
     private byte[] int2bytes(int msg) {
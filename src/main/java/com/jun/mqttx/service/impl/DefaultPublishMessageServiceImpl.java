@@ -16,28 +16,51 @@
 
 package com.jun.mqttx.service.impl;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.OverflowPolicy;
+import com.jun.mqttx.constants.StorageType;
 import com.jun.mqttx.entity.PubMsg;
 import com.jun.mqttx.service.IPublishMessageService;
+import com.jun.mqttx.utils.BrokerMetrics;
 import com.jun.mqttx.utils.Serializer;
 import com.jun.mqttx.utils.Uuids;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.jun.mqttx.utils.RedisKeyUtils.bucket;
+import static com.jun.mqttx.utils.RedisKeyUtils.bucketKey;
+import static com.jun.mqttx.utils.RedisKeyUtils.clientKey;
 
 /**
  * publish message store by redis.
@@ -47,31 +70,71 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 @Slf4j
 @Service
-public class DefaultPublishMessageServiceImpl implements IPublishMessageService, Runnable {
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.REDIS, matchIfMissing = true)
+public class DefaultPublishMessageServiceImpl implements IPublishMessageService, DisposableBean {
     //@formatter:off
 
     private static final DateTimeFormatter DF = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     private static final ZoneId EAST_8 = ZoneOffset.ofHours(8);
-    private static final int REDIS_SCAN_COUNT = 10;
+    private static final int REDIS_SCAN_COUNT = 1000;
+    /** 孤儿载荷修复时并发检查的载荷数量 */
+    private static final int REDIS_SCAN_CONCURRENCY = 64;
+    /** 共享载荷 hash 中保存载荷的 field */
+    private static final String PAYLOAD_FIELD = "p";
+    /** 共享载荷 hash 中保存引用计数的 field */
+    private static final String REF_COUNT_FIELD = "r";
+    /** 早期版本共享载荷关联的客户端集合前缀(mqttx.sharable-payload.unique-id-client-ids-set-prefix 的默认值) */
+    private static final String LEGACY_CLIENT_IDS_SET_PREFIX = "mqttx:unique-id:client-ids:";
+    /** 本地缓存单个条目的估算额外开销(字节) */
+    private static final int CACHE_ENTRY_OVERHEAD = 64;
+    /** 扇出保存时单次脚本调用处理的客户端数量上限, 避免单个脚本长时间阻塞 redis */
+    private static final int FAN_OUT_BATCH_SIZE = 512;
+    /** 扇出保存并发执行的脚本数量 */
+    private static final int FAN_OUT_CONCURRENCY = 16;
     private final ReactiveRedisTemplate<String, byte[]> redisTemplate;
     private final ReactiveStringRedisTemplate stringRedisTemplate;
     private final Serializer serializer;
     private final String pubMsgSetPrefix;
 
     /**
+     * 共享载荷本地缓存, 按字节数限制容量, 未命中时回源 redis.
+     * <p>
      * key: {@link PubMsg#uniqueId()}
      * value: 报文内容
      */
-    private final Map<String, byte[]> uniqueIdAndPayloadMap = new ConcurrentHashMap<>();
-    private final Map<String, String> clientIdMessageIdAndUniqueIdMap = new ConcurrentHashMap<>();
+    private final Cache<String, byte[]> uniqueIdAndPayloadCache;
     /** 当 pub msg 阈值大于指定值时，报文采用二级寻址方式处理 */
     private final int thresholdInMessage;
     /** 共享载荷存储 key prefix */
     private final String sharablePayloadKeyPrefix;
-    /** 共享载荷关联的客户端 id 列表 */
-    private final String uniqueIdClientIdsSetPrefix;
     private final Duration payloadCleanWorkInterval;
-    private final String brokerId;
+    /** 离线消息过期索引 key 前缀, 索引按客户端分片 */
+    private final String pubMsgExpiryIndexKey;
+    /** 未开启 hash tag 时过期索引的分片数量 */
+    private final int expiryIndexShards;
+    /** 单批清理的最大过期消息数量 */
+    private final int expiryPurgeBatchSize;
+    /** 单轮清理的时间预算 */
+    private final long expiryPurgeTimeBudget;
+    /** 下一轮清理开始的分片下标, 时间预算耗尽时由下一轮从中断处继续, 避免靠后的分片始终得不到处理 */
+    private int expiryPurgeCursor;
+    private final ScheduledExecutorService scheduledExecutor;
+    /** 离线消息顺序索引 */
+    private final String pubMsgIndexPrefix;
+    /** 离线消息元数据 */
+    private final String pubMsgMetaPrefix;
+    /** 非 cleanSession messageId 计数器前缀 */
+    private final String messageIdPrefix;
+    /** hash tag 桶数量, 0 表示不使用 hash tag */
+    private final int hashTagBuckets;
+    /** 离线队列限制 */
+    private final int offlineQueueMaxLength;
+    private final long offlineQueueMaxBytes;
+    private final OverflowPolicy overflowPolicy;
+    /** 离线消息存储脚本, 脚本返回的数组作为一个 List 整体发出 */
+    @SuppressWarnings("unchecked")
+    private final RedisScript<List<Object>> pubMsgScript = RedisScript.of(new ClassPathResource("lua/pub-msg.lua"),
+            (Class<List<Object>>) (Class<?>) List.class);
 
     //@formatter:on
 
@@ -82,20 +145,55 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
         this.redisTemplate = redisTemplate;
         this.stringRedisTemplate = stringRedisTemplate;
         this.serializer = serializer;
-        this.brokerId = mqttxConfig.getBrokerId();
         var redisKey = mqttxConfig.getRedis();
         this.pubMsgSetPrefix = redisKey.getPubMsgSetPrefix();
+        this.pubMsgExpiryIndexKey = redisKey.getPubMsgExpiryIndexKey();
+        this.pubMsgIndexPrefix = redisKey.getPubMsgIndexPrefix();
+        this.pubMsgMetaPrefix = redisKey.getPubMsgMetaPrefix();
+        this.messageIdPrefix = redisKey.getMessageIdPrefix();
+        this.hashTagBuckets = redisKey.getClientKeyHashTag() ? redisKey.getClientKeyHashTagBuckets() : 0;
+        // 离线消息脚本同时操作客户端的多个 key, redis cluster 下必须通过 hash tag 使其位于同一 slot
+        Assert.state(hashTagBuckets > 0 || !(redisTemplate.getConnectionFactory() instanceof LettuceConnectionFactory f && f.isClusterAware()),
+                "redis cluster 模式下必须开启 mqttx.redis.client-key-hash-tag");
+
+        var offlineQueue = mqttxConfig.getOfflineQueue();
+        this.offlineQueueMaxLength = offlineQueue.getMaxLength();
+        this.offlineQueueMaxBytes = offlineQueue.getMaxBytes();
+        this.overflowPolicy = offlineQueue.getOverflowPolicy();
 
         var sharableConfig = mqttxConfig.getSharablePayload();
         this.sharablePayloadKeyPrefix = sharableConfig.getPayloadKeyPrefix();
         this.thresholdInMessage = sharableConfig.getThresholdInMessage();
-        this.uniqueIdClientIdsSetPrefix = sharableConfig.getUniqueIdClientIdsSetPrefix();
+        this.uniqueIdAndPayloadCache = Caffeine.newBuilder()
+                .maximumWeight(sharableConfig.getLocalCacheMaxBytes())
+                .<String, byte[]>weigher((uniqueId, payload) -> payload.length + uniqueId.length() + CACHE_ENTRY_OVERHEAD)
+                .evictionListener((uniqueId, payload, cause) -> BrokerMetrics.PAYLOAD_CACHE_EVICTIONS.incrementAndGet())
+                .build();
         this.payloadCleanWorkInterval = sharableConfig.getCleanWorkInterval();
 
-        Assert.hasText(brokerId, "brokerId can't be null");
-
-        // 启动定时清理任务
-        new Thread(this).start();
+        var messageExpiry = mqttxConfig.getMessageExpiry();
+        this.expiryPurgeBatchSize = messageExpiry.getPurgeBatchSize();
+        this.expiryPurgeTimeBudget = messageExpiry.getPurgeTimeBudget().toMillis();
+        this.expiryIndexShards = messageExpiry.getIndexShards();
+        Assert.isTrue(expiryPurgeBatchSize > 0, "mqttx.message-expiry.purge-batch-size 必须大于 0");
+        Assert.isTrue(expiryIndexShards > 0, "mqttx.message-expiry.index-shards 必须大于 0");
+
+        // 过期消息清理任务
+        var purgeInterval = messageExpiry.getPurgeInterval().toMillis();
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "pub-msg-purge");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduledExecutor.scheduleWithFixedDelay(this::purgeExpiredMessages, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+
+        migrateLegacyPayloads();
+
+        // 共享载荷由引用计数负责删除, 孤儿载荷修复任务按需开启
+        if (Boolean.TRUE.equals(sharableConfig.getOrphanRepairEnable())) {
+            var repairInterval = payloadCleanWorkInterval.toMillis();
+            this.scheduledExecutor.scheduleWithFixedDelay(this::repairOrphanPayloads, repairInterval, repairInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -109,98 +207,184 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
      */
     @Override
     public Mono<Void> save(String clientId, PubMsg pubMsg) {
+        return save(clientId, pubMsg, false);
+    }
+
+    /**
+     * 保存已下发给在线客户端的消息. 此类消息不计入离线队列限制, 也不会被溢出策略淘汰.
+     *
+     * @param clientId 客户id
+     * @param pubMsg   publish 消息体
+     */
+    @Override
+    public Mono<Void> saveInflight(String clientId, PubMsg pubMsg) {
+        return save(clientId, pubMsg, true);
+    }
+
+    /**
+     * 保存单条消息
+     *
+     * @param clientId 客户id
+     * @param pubMsg   publish 消息体
+     * @param inflight 是否为已下发给在线客户端的消息
+     */
+    private Mono<Void> save(String clientId, PubMsg pubMsg, boolean inflight) {
         // 1. 共享主题报文，只需要保存一份，不考虑二级寻址
         // 2. 普通报文，检查报文大小是否超过指定阈值
         //   超过：共享存储
         //   未超过：分别存储
+        // 队列长度、字节数限制、溢出策略及共享载荷的引用计数由 lua 脚本原子执行，脚本返回被删除载荷的 uniqueId
 
-        var messageId = pubMsg.getMessageId();
-        if (!isPayloadShouldShare(pubMsg)) {
+        final var messageId = pubMsg.getMessageId();
+        final var payload = pubMsg.getPayload();
+        final var isPayloadSharable = isPayloadShouldShare(pubMsg);
+        if (isPayloadSharable) {
+            pubMsg.setPayloadSharable(true).setPayload(null);
+        } else {
             pubMsg.setUuid(null); // 非共享载荷不需要 uuid, 减少字段值.
-            return redisTemplate.opsForHash()
-                    .put(key(clientId), String.valueOf(messageId), serializer.serialize(pubMsg))
-                    .then();
+        }
+        final var uniqueId = isPayloadSharable ? pubMsg.uniqueId() : "";
+        final var value = serializer.serialize(pubMsg);
+        final var size = isPayloadSharable ? value.length + payload.length : value.length;
+
+        if (isPayloadSharable) {
+            uniqueIdAndPayloadCache.asMap().putIfAbsent(uniqueId, payload);
+        }
+        return pubMsgScript(clientId, "save", messageId, value, size, pubMsg.getTopic(), uniqueId,
+                offlineQueueMaxLength, offlineQueueMaxBytes, overflowPolicy.name(), isPayloadSharable ? payload : new byte[0],
+                payloadPrefix(clientId), inflight ? 1 : 0)
+                .flatMap(result -> {
+                    BrokerMetrics.OFFLINE_DROPPED_OLDEST.addAndGet(toLong(result.get(1)));
+                    BrokerMetrics.OFFLINE_DROPPED_NEWEST.addAndGet(toLong(result.get(2)));
+                    BrokerMetrics.OFFLINE_CONFLATED.addAndGet(toLong(result.get(3)));
+
+                    if (toLong(result.get(0)) != 1) {
+                        log.debug("客户端[{}]离线消息队列已满, 丢弃消息: topic={}", clientId, pubMsg.getTopic());
+                        return Mono.empty();
+                    }
+                    return indexExpiry(clientId, pubMsg);
+                });
+    }
+
+    /**
+     * 扇出保存. 消息只序列化一次, 客户端按过期索引分片分组, 同组客户端每 {@link #FAN_OUT_BATCH_SIZE} 个通过一次脚本调用完成
+     * messageId 分配、队列限制、过期索引及共享载荷关联, 各批次的脚本调用并发执行(由 lettuce 在同一连接上 pipeline).
+     * <p>
+     * 脚本涉及的 key 必须位于同一 slot: 开启 hash tag 时分片即桶, 每个桶使用自己的过期索引及共享载荷副本.
+     *
+     * @param clientIds 客户id列表
+     * @param pubMsg    publish 消息体
+     */
+    @Override
+    public Mono<Void> saveAll(Collection<String> clientIds, PubMsg pubMsg) {
+        if (clientIds.isEmpty()) {
+            return Mono.empty();
         }
 
-        // 报文单独保存
-        // redis 中保存
-        // 1. payload
-        // 2. pubMsg.uniqueId() -> clientId 哪些客户端关联 uniqueId, 只有当 redis set 中的客户端清空后，我们才能删除 redis 中的载荷
         final var payload = pubMsg.getPayload();
-        pubMsg.setPayloadSharable(true).setPayload(null);
-        var uniqueId = pubMsg.uniqueId();
-        var m1 = redisTemplate.opsForHash().put(key(clientId), String.valueOf(messageId), serializer.serialize(pubMsg));
-        var m2 = stringRedisTemplate.opsForSet().add(uniqueIdClientIdsSetKey(uniqueId), clientId);
-        if (uniqueIdAndPayloadMap.containsKey(uniqueId)) {
-            clientIdMessageIdAndUniqueIdMap.put(clientIdMessageIdKey(clientId, messageId), uniqueId);
-            return Mono.when(m1, m2);
+        final var isPayloadSharable = isPayloadShouldShare(pubMsg);
+        final var msg = pubMsg.copied().setMessageId(0);
+        if (isPayloadSharable) {
+            msg.setPayloadSharable(true).setPayload(null);
         } else {
-            uniqueIdAndPayloadMap.put(uniqueId, payload);
-            clientIdMessageIdAndUniqueIdMap.put(clientIdMessageIdKey(clientId, messageId), uniqueId);
+            msg.setUuid(null);
+        }
+        final var uniqueId = isPayloadSharable ? msg.uniqueId() : "";
+        final var value = serializer.serialize(msg);
+        final var size = isPayloadSharable ? value.length + payload.length : value.length;
 
-            var m3 = redisTemplate.opsForValue().set(sharablePayloadKey(uniqueId), payload);
-            return Mono.when(m1, m2, m3);
+        if (isPayloadSharable) {
+            uniqueIdAndPayloadCache.asMap().putIfAbsent(uniqueId, payload);
         }
-    }
 
-    @Override
-    public Mono<Void> remove(String clientId, int messageId) {
-        // 客户端 publish message 存储移除
-        var m1 = redisTemplate.opsForHash()
-                .remove(key(clientId), String.valueOf(messageId));
-
-        // 检查 clientId + messageId 是否存在本地关联的 uniqueId
-        String uniqueId = clientIdMessageIdAndUniqueIdMap.remove(clientIdMessageIdKey(clientId, messageId));
-        if (uniqueId != null) {
-            var m2 = stringRedisTemplate.opsForSet()
-                    .remove(uniqueIdClientIdsSetKey(uniqueId), clientId);
-            return Mono.when(m1, m2);
+        var groups = clientIds.stream()
+                .collect(Collectors.groupingBy(this::expiryIndexKey))
+                .values();
+        var batches = new ArrayList<List<String>>();
+        for (var group : groups) {
+            for (int i = 0; i < group.size(); i += FAN_OUT_BATCH_SIZE) {
+                batches.add(group.subList(i, Math.min(i + FAN_OUT_BATCH_SIZE, group.size())));
+            }
         }
 
-        // 无本地关联，删除 redis 中的数据
-        return redisTemplate.opsForHash()
-                .get(key(clientId), String.valueOf(messageId))
-                .flatMap(t -> {
-                    final var pubMsg = serializer.deserialize((byte[]) t, PubMsg.class);
-                    if (pubMsg.isPayloadSharable()) {
-                        var m2 = stringRedisTemplate.opsForSet()
-                                .remove(uniqueIdClientIdsSetKey(pubMsg.uniqueId()), clientId);
-                        return Mono.when(m1, m2);
+        return Flux.fromIterable(batches)
+                .flatMap(batch -> {
+                    // 同一批次的客户端位于同一 slot
+                    final var first = batch.get(0);
+                    var keys = new ArrayList<String>(1 + batch.size() * 4);
+                    keys.add(expiryIndexKey(first));
+                    var args = new ArrayList<>(List.<Object>of("saveAll", value, size, pubMsg.getTopic(), uniqueId,
+                            offlineQueueMaxLength, offlineQueueMaxBytes, overflowPolicy.name(), Math.max(pubMsg.getExpireAt(), 0),
+                            isPayloadSharable ? payload : new byte[0], payloadPrefix(first)));
+                    for (var clientId : batch) {
+                        keys.addAll(List.of(key(clientId), indexKey(clientId), metaKey(clientId), clientKey(messageIdPrefix, clientId, hashTagBuckets)));
+                        args.add(clientId);
                     }
-                    return m1.then();
-                });
+                    return pubMsgScript(keys, first, args.toArray())
+                            .doOnNext(result -> {
+                                int i = 0;
+                                for (var clientId : batch) {
+                                    BrokerMetrics.OFFLINE_DROPPED_OLDEST.addAndGet(toLong(result.get(i + 2)));
+                                    BrokerMetrics.OFFLINE_DROPPED_NEWEST.addAndGet(toLong(result.get(i + 3)));
+                                    BrokerMetrics.OFFLINE_CONFLATED.addAndGet(toLong(result.get(i + 4)));
+                                    if (toLong(result.get(i + 1)) != 1) {
+                                        log.debug("客户端[{}]离线消息队列已满, 丢弃消息: topic={}", clientId, pubMsg.getTopic());
+                                    }
+                                    i += 5;
+                                }
+                            });
+                }, FAN_OUT_CONCURRENCY)
+                .then();
+    }
+
+    @Override
+    public Mono<Void> remove(String clientId, int messageId) {
+        return pubMsgScript(clientId, "remove", messageId, payloadPrefix(clientId)).then();
     }
 
     @Override
     public Mono<Void> clear(String clientId) {
-        return redisTemplate.opsForHash().values(key(clientId))
-                .flatMap(t -> {
-                    var value = (byte[]) t;
-                    var pubMsg = serializer.deserialize(value, PubMsg.class);
-                    if (pubMsg.isPayloadSharable()) {
-                        return stringRedisTemplate.opsForSet()
-                                .remove(uniqueIdClientIdsSetKey(pubMsg.uniqueId()), clientId)
-                                .doOnSuccess(unused -> clientIdMessageIdAndUniqueIdMap.remove(clientIdMessageIdKey(clientId, pubMsg.getMessageId())))
-                                .then();
-                    }
-                    return Mono.empty();
-                })
-                .then(redisTemplate.delete(key(clientId)))
-                .then();
+        return pubMsgScript(clientId, "clear", payloadPrefix(clientId)).then();
     }
 
     @Override
     public Flux<PubMsg> search(String clientId) {
-        return redisTemplate.opsForHash()
-                .values(key(clientId))
-                .flatMap(e -> {
-                    final var pubMsg = serializer.deserialize((byte[]) e, PubMsg.class);
+        final var now = System.currentTimeMillis();
+        // 按写入顺序补发, 顺序索引中不存在的消息(早期版本写入)排在最后
+        return stringRedisTemplate.opsForZSet()
+                .range(indexKey(clientId), Range.closed(0L, -1L))
+                .collectList()
+                .zipWith(redisTemplate.opsForHash().entries(key(clientId)).collectMap(e -> (String) e.getKey(), e -> (byte[]) e.getValue()))
+                .flatMapIterable(t -> {
+                    var values = new LinkedHashMap<>(t.getT2());
+                    var ordered = new ArrayList<Map.Entry<String, byte[]>>(values.size());
+                    for (var messageId : t.getT1()) {
+                        var value = values.remove(messageId);
+                        if (value != null) {
+                            ordered.add(Map.entry(messageId, value));
+                        }
+                    }
+                    ordered.addAll(values.entrySet());
+                    return ordered;
+                })
+                .flatMapSequential(e -> {
+                    // 扇出保存的消息只序列化一次, messageId 以 hash field 为准
+                    final var pubMsg = serializer.deserialize(e.getValue(), PubMsg.class);
+                    pubMsg.setMessageId(Integer.parseInt(e.getKey()));
+                    if (pubMsg.isExpired(now)) {
+                        // 过期消息不再补发, 顺带清理
+                        return remove(clientId, pubMsg.getMessageId()).then(Mono.empty());
+                    }
                     final var uniqueId = pubMsg.uniqueId();
                     if (pubMsg.isPayloadSharable()) {
-                        byte[] bytes = uniqueIdAndPayloadMap.get(uniqueId);
+                        byte[] bytes = uniqueIdAndPayloadCache.getIfPresent(uniqueId);
                         if (bytes == null) {
-                            return redisTemplate.opsForValue().get(sharablePayloadKey(uniqueId)).map(pubMsg::setPayload);
+                            BrokerMetrics.PAYLOAD_CACHE_MISSES.incrementAndGet();
+                            return redisTemplate.<String, byte[]>opsForHash().get(payloadPrefix(clientId) + uniqueId, PAYLOAD_FIELD)
+                                    .doOnNext(payload -> uniqueIdAndPayloadCache.put(uniqueId, payload))
+                                    .map(pubMsg::setPayload);
                         }
+                        BrokerMetrics.PAYLOAD_CACHE_HITS.incrementAndGet();
                         pubMsg.setPayload(bytes);
                     }
 
@@ -209,29 +393,246 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
     }
 
     private String key(String clientId) {
-        return pubMsgSetPrefix + clientId;
+        return clientKey(pubMsgSetPrefix, clientId, hashTagBuckets);
+    }
+
+    private String indexKey(String clientId) {
+        return clientKey(pubMsgIndexPrefix, clientId, hashTagBuckets);
     }
 
-    private String clientIdMessageIdKey(String clientId, int messageId) {
-        return String.format("%s-%d", clientId, messageId);
+    private String metaKey(String clientId) {
+        return clientKey(pubMsgMetaPrefix, clientId, hashTagBuckets);
     }
 
     /**
-     * 这个 key 的格式加入了 broker Id. 使集群中各 broker 独立处理自己的 任务.
+     * 执行离线消息存储脚本, 见 lua/pub-msg.lua
      *
-     * @param uniqueId {@link PubMsg#uniqueId()}
+     * @param clientId 客户端id
+     * @param args     脚本参数
+     * @return 脚本返回的数组, 不含末尾的 freed, legacy
      */
-    private String uniqueIdClientIdsSetKey(String uniqueId) {
-        return String.format("%s%s", uniqueIdClientIdsSetPrefix, uniqueId);
+    private Mono<List<Object>> pubMsgScript(String clientId, Object... args) {
+        return pubMsgScript(List.of(key(clientId), indexKey(clientId), metaKey(clientId)), clientId, args);
     }
 
     /**
-     * 共享 payload key.
+     * 执行离线消息存储脚本, 见 lua/pub-msg.lua. 脚本返回值末尾的两个数组在此处理:
+     * <ol>
+     *     <li>freed: 引用计数归零、已被脚本删除的共享载荷, 同步清理本地缓存</li>
+     *     <li>legacy: 被移除的早期版本消息, 解析出 uniqueId 后释放其共享载荷的引用</li>
+     * </ol>
      *
-     * @param uniqueId {@link PubMsg#uniqueId()}
+     * @param keys     脚本 keys
+     * @param clientId 与 keys 位于同一 slot 的客户端id
+     * @param args     脚本参数
+     * @return 脚本返回的数组, 不含末尾的 freed, legacy
      */
-    private String sharablePayloadKey(String uniqueId) {
-        return String.format("%s%s:%s", sharablePayloadKeyPrefix, brokerId, uniqueId);
+    private Mono<List<Object>> pubMsgScript(List<String> keys, String clientId, Object... args) {
+        var argv = new ArrayList<byte[]>(args.length);
+        for (var arg : args) {
+            argv.add(arg instanceof byte[] b ? b : bytes(arg));
+        }
+        return redisTemplate.execute(pubMsgScript, keys, argv)
+                .single()
+                .flatMap(result -> {
+                    final var n = result.size();
+                    invalidateFreedPayloads((List<?>) result.get(n - 2));
+                    final var head = result.subList(0, n - 2);
+                    final var legacy = (List<?>) result.get(n - 1);
+                    if (legacy.isEmpty()) {
+                        return Mono.just(head);
+                    }
+                    return releaseLegacyPayloads(clientId, legacy).thenReturn(head);
+                });
+    }
+
+    /**
+     * 引用计数归零的共享载荷已由脚本删除, 同步清理本地缓存
+     *
+     * @param uniqueIds 被删除载荷的 {@link PubMsg#uniqueId()}
+     */
+    private void invalidateFreedPayloads(List<?> uniqueIds) {
+        for (var uniqueId : uniqueIds) {
+            uniqueIdAndPayloadCache.invalidate(toStr(uniqueId));
+        }
+    }
+
+    /**
+     * 早期版本写入的消息没有元数据, 脚本无法得知其 uniqueId. 解析脚本返回的序列化消息, 释放其共享载荷的引用.
+     *
+     * @param clientId 客户端id
+     * @param values   被移除的早期版本消息
+     */
+    private Mono<Void> releaseLegacyPayloads(String clientId, List<?> values) {
+        var args = new ArrayList<>(List.<Object>of("release", payloadPrefix(clientId)));
+        for (var value : values) {
+            var pubMsg = serializer.deserialize((byte[]) value, PubMsg.class);
+            if (pubMsg.isPayloadSharable()) {
+                args.add(pubMsg.uniqueId());
+            }
+        }
+        if (args.size() == 2) {
+            return Mono.empty();
+        }
+        return pubMsgScript(clientId, args.toArray()).then();
+    }
+
+    private byte[] bytes(Object o) {
+        return String.valueOf(o).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long toLong(Object o) {
+        return o instanceof Number n ? n.longValue() : Long.parseLong(toStr(o));
+    }
+
+    private String toStr(Object o) {
+        if (o instanceof byte[] b) {
+            return new String(b, StandardCharsets.UTF_8);
+        }
+        if (o instanceof ByteBuffer bb) {
+            return StandardCharsets.UTF_8.decode(bb).toString();
+        }
+        return String.valueOf(o);
+    }
+
+    /**
+     * 为设置了过期时间的消息建立过期索引, 供 {@link #purgeExpiredMessages()} 使用.
+     * <p>
+     * 消息被确认或清理时不同步移除索引，清理任务会校验消息是否真实过期，故索引允许存在残留.
+     *
+     * @param clientId 客户端id
+     * @param pubMsg   publish 消息
+     */
+    private Mono<Void> indexExpiry(String clientId, PubMsg pubMsg) {
+        if (pubMsg.getExpireAt() <= 0) {
+            return Mono.empty();
+        }
+        return stringRedisTemplate.opsForZSet()
+                .add(expiryIndexKey(clientId), expiryIndexMember(clientId, pubMsg.getMessageId()), pubMsg.getExpireAt())
+                .then();
+    }
+
+    /**
+     * 过期索引成员, 格式为 messageId:clientId
+     */
+    private String expiryIndexMember(String clientId, int messageId) {
+        return messageId + ":" + clientId;
+    }
+
+    /**
+     * 清理已过期的离线消息. 依次处理各分片, 每批最多 {@link #expiryPurgeBatchSize} 条索引, 直到分片中的某一批数量不足或超出时间
+     * 预算 {@link #expiryPurgeTimeBudget}. 清理前校验消息确实过期（消息 id 可能已被复用）.
+     */
+    private void purgeExpiredMessages() {
+        final var start = System.currentTimeMillis();
+        final var indexKeys = expiryIndexKeys();
+        long count = 0;
+        int i = 0;
+        try {
+            for (; i < indexKeys.size(); i++) {
+                var indexKey = indexKeys.get((expiryPurgeCursor + i) % indexKeys.size());
+                Integer n;
+                do {
+                    if (System.currentTimeMillis() - start > expiryPurgeTimeBudget) {
+                        log.debug("过期离线消息清理超出时间预算, 剩余分片留待下一轮处理");
+                        return;
+                    }
+                    n = purgeExpiredMessages(indexKey).block();
+                    count += n == null ? 0 : n;
+                } while (n != null && n >= expiryPurgeBatchSize);
+            }
+        } catch (Throwable throwable) {
+            log.error(String.format("过期离线消息清理失败: %s", throwable.getMessage()), throwable);
+        } finally {
+            expiryPurgeCursor = (expiryPurgeCursor + i) % indexKeys.size();
+            if (count > 0) {
+                log.debug("过期离线消息索引清理数量: {}, 耗时: {}ms", count, System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    /**
+     * 清理单个过期索引分片中的一批过期消息
+     *
+     * @param indexKey 过期索引 key
+     * @return 本批处理的索引数量
+     */
+    private Mono<Integer> purgeExpiredMessages(String indexKey) {
+        final var now = System.currentTimeMillis();
+        return stringRedisTemplate.opsForZSet()
+                .rangeByScore(indexKey, Range.closed(0d, (double) now), Limit.limit().count(expiryPurgeBatchSize))
+                .flatMap(member -> {
+                    var i = member.indexOf(':');
+                    var messageId = Integer.parseInt(member.substring(0, i));
+                    var clientId = member.substring(i + 1);
+                    return redisTemplate.opsForHash().get(key(clientId), String.valueOf(messageId))
+                            .map(t -> serializer.deserialize((byte[]) t, PubMsg.class))
+                            .filter(pubMsg -> pubMsg.isExpired(now))
+                            .flatMap(pubMsg -> remove(clientId, messageId))
+                            .then(stringRedisTemplate.opsForZSet().remove(indexKey, member));
+                })
+                .count()
+                .map(Long::intValue);
+    }
+
+    @Override
+    public void destroy() {
+        scheduledExecutor.shutdownNow();
+    }
+
+    /**
+     * 共享 payload key 前缀, 与 {@link PubMsg#uniqueId()} 拼接即为载荷 key, redis hash 结构见 lua/pub-msg.lua.
+     * <p>
+     * 载荷由引用计数管理, 不再区分 broker, 客户端在集群中任一 broker 重连都能取到载荷. 开启 hash tag 时每个桶保存一份载荷,
+     * 与桶内客户端的离线消息位于同一 slot.
+     *
+     * @param clientId 引用载荷的客户端id
+     */
+    private String payloadPrefix(String clientId) {
+        if (hashTagBuckets > 0) {
+            return bucketKey(sharablePayloadKeyPrefix, bucket(clientId, hashTagBuckets));
+        }
+        return sharablePayloadKeyPrefix;
+    }
+
+    /**
+     * 从共享 payload key 中解析 {@link PubMsg#uniqueId()}
+     *
+     * @param key 共享 payload key
+     */
+    private String payloadUniqueId(String key) {
+        var i = key.lastIndexOf('}');
+        return key.substring(i >= 0 ? i + 1 : sharablePayloadKeyPrefix.length());
+    }
+
+    /**
+     * 客户端离线消息的过期索引 key. 索引按客户端分片, 开启 hash tag 时每个桶一个分片, 与桶内客户端位于同一 slot
+     *
+     * @param clientId 客户端id
+     */
+    private String expiryIndexKey(String clientId) {
+        if (hashTagBuckets > 0) {
+            return bucketKey(pubMsgExpiryIndexKey + ":", bucket(clientId, hashTagBuckets));
+        }
+        return pubMsgExpiryIndexKey + ":" + bucket(clientId, expiryIndexShards);
+    }
+
+    /**
+     * 全部过期索引 key, 包括早期版本未分片的 {@link #pubMsgExpiryIndexKey}(只清理, 不再写入)
+     */
+    private List<String> expiryIndexKeys() {
+        var keys = new ArrayList<String>();
+        keys.add(pubMsgExpiryIndexKey);
+        if (hashTagBuckets > 0) {
+            for (int bucket = 0; bucket < hashTagBuckets; bucket++) {
+                keys.add(bucketKey(pubMsgExpiryIndexKey + ":", bucket));
+            }
+        } else {
+            for (int shard = 0; shard < expiryIndexShards; shard++) {
+                keys.add(pubMsgExpiryIndexKey + ":" + shard);
+            }
+        }
+        return keys;
     }
 
     /**
@@ -262,67 +663,80 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
         return true;
     }
 
-    @Override
-    public void run() {
-        log.info("启动定时载荷清理任务");
-
-        // 最近一次清理任务完成时间戳
-        var latestProcessedTime = new AtomicLong(0);
-
-        //noinspection InfiniteLoopStatement
-        while (true) {
-            try {
-                var now = System.currentTimeMillis();
-                if (now - latestProcessedTime.get() < payloadCleanWorkInterval.toMillis()) {
-                    // 最少最少，线程也要休眠一分钟
-                    TimeUnit.MINUTES.sleep(1);
-                    continue;
-                }
-
-                log.debug("开始扫描并清理共享载荷...");
-                var cdl = new CountDownLatch(1);
-
-                // scan
-                var matchStr = String.format("%s%s:", sharablePayloadKeyPrefix, brokerId);
-                var scanOptions = ScanOptions.scanOptions()
-                        .count(REDIS_SCAN_COUNT)
-                        .match(String.format("%s*", matchStr))
-                        .build();
-                stringRedisTemplate.scan(scanOptions)
-                        .flatMap(key -> {
-                            var uniqueId = key.replaceAll(matchStr, "");
-
-                            // 删除
-                            return stringRedisTemplate.opsForSet().size(uniqueIdClientIdsSetKey(uniqueId))
-                                    .filter(l -> l <= 0)
-                                    .flatMap(unused -> redisTemplate.delete(key)
-                                            .doOnSuccess(l -> {
-                                                var ts = Uuids.unixTimestamp(uniqueId);
-                                                log.debug("创建于[{}]的共享载荷[{}]已删除", dateTimeFormat(ts), key);
-                                            })
-                                    );
-                        })
-                        .then()
-                        .doOnError(throwable -> {
-                            log.error(String.format("共享载荷清理失败: %s", throwable.getMessage()), throwable);
-                            latestProcessedTime.set(System.currentTimeMillis());
-
-                            cdl.countDown();
-                        })
-                        .doOnSuccess(unused -> {
-                            var end = System.currentTimeMillis();
-                            latestProcessedTime.set(end);
-                            log.debug("共享载荷清理完成, 耗时: {}ms.", end - now);
-
-                            cdl.countDown();
-                        })
-                        .subscribe();
-
-                cdl.await();
-            } catch (Throwable throwable) {
-                log.error(String.format("定时载荷清理任务异常: %s", throwable.getMessage()), throwable);
+    /**
+     * 孤儿载荷修复. 引用计数与消息在同一脚本内原子维护, 正常情况下不会产生孤儿载荷; 任务用于清理 redis 淘汰、人工删除等
+     * 原因导致引用计数缺失或不大于 0 的载荷.
+     * <p>
+     * 任务以流的方式扫描共享载荷 key, 逐个检查引用计数, 删除创建时间早于一个清理间隔的孤儿载荷, 内存占用与载荷数量无关.
+     * 早期版本的载荷 key 由启动时的迁移处理, 此处跳过.
+     */
+    private void repairOrphanPayloads() {
+        try {
+            final var start = System.currentTimeMillis();
+            final var deadline = start - payloadCleanWorkInterval.toMillis();
+            var count = stringRedisTemplate.scan(ScanOptions.scanOptions().count(REDIS_SCAN_COUNT).match(sharablePayloadKeyPrefix + "*").build())
+                    .filter(key -> {
+                        var uniqueId = payloadUniqueId(key);
+                        return isUniqueId(uniqueId) && Uuids.unixTimestamp(uniqueId) < deadline;
+                    })
+                    .flatMap(key -> stringRedisTemplate.<String, String>opsForHash().get(key, REF_COUNT_FIELD)
+                            .map(Long::parseLong)
+                            .defaultIfEmpty(0L)
+                            .filter(refCount -> refCount <= 0)
+                            .flatMap(refCount -> redisTemplate.delete(key))
+                            .doOnNext(l -> log.debug("创建于[{}]的孤儿载荷[{}]已删除",
+                                    dateTimeFormat(Uuids.unixTimestamp(payloadUniqueId(key))), key)), REDIS_SCAN_CONCURRENCY)
+                    .count()
+                    .block();
+            log.debug("孤儿载荷修复完成, 删除数量: {}, 耗时: {}ms.", count, System.currentTimeMillis() - start);
+        } catch (Throwable throwable) {
+            log.error(String.format("孤儿载荷修复失败: %s", throwable.getMessage()), throwable);
+        }
+    }
+
+    /**
+     * 将早期版本的共享载荷迁移到引用计数布局.
+     * <p>
+     * 早期版本的载荷保存在字符串 {@code payloadKeyPrefix + brokerId + ":" + uniqueId} 中, 引用载荷的客户端保存在集合
+     * {@link #LEGACY_CLIENT_IDS_SET_PREFIX} + uniqueId 中. 迁移时按客户端所在的桶写入载荷并累加引用计数, 之后删除旧 key.
+     * 旧载荷通过 GETDEL 认领, 多个节点同时启动时每个载荷只会被迁移一次.
+     */
+    private void migrateLegacyPayloads() {
+        var count = stringRedisTemplate.scan(ScanOptions.scanOptions().count(REDIS_SCAN_COUNT).match(sharablePayloadKeyPrefix + "*:*").build())
+                .filter(key -> key.indexOf('{', sharablePayloadKeyPrefix.length()) < 0)
+                .concatMap(key -> redisTemplate.opsForValue().getAndDelete(key)
+                        .flatMap(payload -> {
+                            final var uniqueId = key.substring(key.lastIndexOf(':') + 1);
+                            final var clientIdsKey = LEGACY_CLIENT_IDS_SET_PREFIX + uniqueId;
+                            return stringRedisTemplate.opsForSet().members(clientIdsKey)
+                                    .collect(Collectors.groupingBy(this::payloadPrefix, Collectors.counting()))
+                                    .flatMapMany(refCounts -> Flux.fromIterable(refCounts.entrySet()))
+                                    .concatMap(e -> redisTemplate.opsForHash().putIfAbsent(e.getKey() + uniqueId, PAYLOAD_FIELD, payload)
+                                            .then(redisTemplate.opsForHash().increment(e.getKey() + uniqueId, REF_COUNT_FIELD, e.getValue())))
+                                    .then(stringRedisTemplate.delete(clientIdsKey));
+                        }))
+                .count()
+                .doOnError(t -> log.error(t.getMessage(), t))
+                // 迁移完成后才能对外提供服务
+                .block();
+        if (count != null && count > 0) {
+            log.info("共享载荷迁移至引用计数布局完成, 数量: {}", count);
+        }
+    }
+
+    /**
+     * 判断是否为 {@link Uuids#timeBased()} 生成的 uniqueId
+     */
+    private boolean isUniqueId(String s) {
+        if (s.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
             }
         }
+        return true;
     }
 
     private String dateTimeFormat(long ts) {
@@ -16,74 +16,399 @@
 
 package com.jun.mqttx.service.impl;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.consumer.Watcher;
+import com.jun.mqttx.entity.InternalMessage;
 import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.entity.RetainTopicMsg;
+import com.jun.mqttx.service.IInternalMessagePublishService;
 import com.jun.mqttx.service.IRetainMessageService;
 import com.jun.mqttx.utils.Serializer;
-import com.jun.mqttx.utils.TopicUtils;
+import com.jun.mqttx.utils.TopicTrie;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.DataType;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
-import org.springframework.util.ObjectUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
- * 存储通过 redis 实现
+ * 存储通过 redis 实现.
+ * <p>
+ * 本地维护保留消息主题前缀树 {@link TopicTrie}, 订阅时只需按 topicFilter 查出匹配的主题, 再通过一次 HMGET 获取消息, 无需
+ * HKEYS 遍历全部保留消息主题. 保留消息同时缓存在本地, 大量客户端重连订阅相同主题时无需访问 redis.
+ * <p>
+ * 集群模式下保留消息变更通过 {@link InternalMessageEnum#RETAIN} 广播给其它节点, 其它节点据此更新主题索引并失效本地缓存.
+ * 广播不保证送达, 因此按 {@code retainMessageReconcileInterval} 定时通过 HKEYS 读取各分片的主题, 与本地索引对账.
+ * <p>
+ * 本地缓存的一致性:
+ * <ol>
+ *     <li>每个主题(按 hash 分条带)维护一个版本号, 本地 save/remove、收到变更广播及对账修正时递增</li>
+ *     <li>回源 redis 前记录版本号, 回填缓存时版本号已变化则放弃回填, 避免读到的旧值覆盖更新后的状态</li>
+ *     <li>缓存写入后 {@code retainMessageLocalCacheTtl} 过期, 变更广播丢失时缓存最终也会回源</li>
+ * </ol>
+ * <p>
+ * 保留消息按主题 hash 分散到 {@code retainMessageShards} 个 redis hash 中, 避免单个大 key 成为热点并使其可以分布在
+ * redis cluster 的不同 slot. 分片数量为 1 时沿用旧的单 key 存储. 启动时会将不属于当前分片布局的保留消息迁移到对应分片,
+ * 因此修改分片数量无需人工介入, 但集群内全部节点必须使用相同的分片数量.
  *
  * @author Jun
  * @since 1.0.4
  */
+@Slf4j
 @Service
-public class DefaultRetainMessageServiceImpl implements IRetainMessageService {
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.REDIS, matchIfMissing = true)
+public class DefaultRetainMessageServiceImpl implements IRetainMessageService, Watcher<RetainTopicMsg>, DisposableBean {
 
     //@formatter:off
+    /** 按顺序 -> 保存、移除 */
+    private static final int SAVE = 1, REMOVE = 2;
+    /** 本地缓存单个条目的估算额外开销(字节) */
+    private static final int CACHE_ENTRY_OVERHEAD = 128;
+    private static final int REDIS_SCAN_COUNT = 1000;
+    /** 版本号条带数量, 2 的幂 */
+    private static final int VERSION_STRIPES = 4096;
     /** redis retain message prefix */
-    private final String retainMessageHashKey;
+    private final String retainMessagePrefix;
+    /** 分片 key, 下标即分片编号 */
+    private final String[] shardKeys;
     private final ReactiveRedisTemplate<String, byte[]> redisTemplate;
     private final Serializer serializer;
+    private final IInternalMessagePublishService internalMessagePublishService;
+    private final boolean enableCluster;
+    private final String brokerId;
+    /** 保留消息主题索引 */
+    private final TopicTrie retainedTopics = new TopicTrie();
+    /** topic -> 保留消息 */
+    private final Cache<String, PubMsg> retainMessageCache;
+    /** 本轮对账开始后发生过变更的主题, 对账时以变更为准 */
+    private final Set<String> touchedTopics = ConcurrentHashMap.newKeySet();
+    /** 主题版本号, 按主题 hash 分条带, 冲突只会导致多余的回填放弃 */
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final ScheduledExecutorService reconcileExecutor;
     //@formatter:on
 
     public DefaultRetainMessageServiceImpl(ReactiveRedisTemplate<String, byte[]> redisTemplate, Serializer serializer,
-                                           MqttxConfig mqttxConfig) {
+                                           MqttxConfig mqttxConfig,
+                                           @Nullable IInternalMessagePublishService internalMessagePublishService) {
         this.redisTemplate = redisTemplate;
         this.serializer = serializer;
-        this.retainMessageHashKey = mqttxConfig.getRedis().getRetainMessagePrefix();
-        Assert.hasText(retainMessageHashKey, "retainMessagePrefix can't be null");
+        this.internalMessagePublishService = internalMessagePublishService;
+        var redis = mqttxConfig.getRedis();
+        this.retainMessagePrefix = redis.getRetainMessagePrefix();
+        Assert.hasText(retainMessagePrefix, "retainMessagePrefix can't be null");
+        int shards = redis.getRetainMessageShards();
+        Assert.isTrue(shards > 0, "retainMessageShards must be positive");
+        this.shardKeys = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            shardKeys[i] = shards == 1 ? retainMessagePrefix : retainMessagePrefix + i;
+        }
+        this.enableCluster = mqttxConfig.getCluster().getEnable();
+        this.brokerId = mqttxConfig.getBrokerId();
+        this.retainMessageCache = Caffeine.newBuilder()
+                .maximumWeight(redis.getRetainMessageLocalCacheMaxBytes())
+                .expireAfterWrite(redis.getRetainMessageLocalCacheTtl())
+                .<String, PubMsg>weigher((topic, pubMsg) -> {
+                    var payload = pubMsg.getPayload();
+                    return (payload == null ? 0 : payload.length) + topic.length() * 2 + CACHE_ENTRY_OVERHEAD;
+                })
+                .build();
+
+        // 分片迁移及主题索引初始化
+        migrateShards();
+        initRetainedTopics();
+
+        // 集群模式下定时对账
+        if (enableCluster) {
+            var interval = redis.getRetainMessageReconcileInterval().toMillis();
+            this.reconcileExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                var t = new Thread(r, "retain-reconcile");
+                t.setDaemon(true);
+                return t;
+            });
+            reconcileExecutor.scheduleWithFixedDelay(this::reconcileRetainedTopics, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.reconcileExecutor = null;
+        }
     }
 
     @Override
     public Flux<PubMsg> searchListByTopicFilter(String newSubTopic) {
-        return redisTemplate.opsForHash()
-                .keys(retainMessageHashKey)
-                .filter(t -> TopicUtils.match((String) t, newSubTopic))
-                .collectList()
-                .flatMap(t -> {
-                    if (!ObjectUtils.isEmpty(t)) {
-                        return redisTemplate.opsForHash().multiGet(retainMessageHashKey, t);
-                    }else {
-                        return Mono.empty();
-                    }
-                })
-                .flatMapIterable(Function.identity())
-                .map(o -> serializer.deserialize((byte[]) o, PubMsg.class));
+        var topics = retainedTopics.match(newSubTopic);
+        if (topics.isEmpty()) {
+            return Flux.empty();
+        }
+
+        // 调用方会修改消息属性, 缓存中的消息不能直接返回
+        var cached = new ArrayList<PubMsg>(topics.size());
+        var missed = new HashMap<String, List<Object>>();
+        var missedVersions = new HashMap<String, Long>();
+        for (var topic : topics) {
+            var pubMsg = retainMessageCache.getIfPresent(topic);
+            if (pubMsg != null) {
+                cached.add(pubMsg.copied());
+            } else {
+                missed.computeIfAbsent(shardKey(topic), k -> new ArrayList<>()).add(topic);
+                missedVersions.put(topic, version(topic));
+            }
+        }
+        if (missed.isEmpty()) {
+            return Flux.fromIterable(cached);
+        }
+
+        // 各分片并行 HMGET
+        return Flux.fromIterable(cached).concatWith(
+                Flux.fromIterable(missed.entrySet())
+                        .flatMap(e -> redisTemplate.opsForHash().multiGet(e.getKey(), e.getValue()))
+                        .flatMapIterable(Function.identity())
+                        // 索引与 redis 之间存在短暂不一致, 忽略已被移除的主题
+                        .filter(Objects::nonNull)
+                        .map(o -> {
+                            var pubMsg = serializer.deserialize((byte[]) o, PubMsg.class);
+                            fill(pubMsg.getTopic(), pubMsg, missedVersions.getOrDefault(pubMsg.getTopic(), -1L));
+                            return pubMsg.copied();
+                        })
+        );
     }
 
     @Override
     public Mono<Void> save(String topic, PubMsg pubMsg) {
-        return redisTemplate.opsForHash().put(retainMessageHashKey, topic, serializer.serialize(pubMsg)).then();
+        return Mono.defer(() -> {
+            final var version = version(topic);
+            final var copied = pubMsg.copied();
+            return redisTemplate.opsForHash().put(shardKey(topic), topic, serializer.serialize(pubMsg))
+                    .doOnSuccess(unused -> {
+                        touch(topic);
+                        retainedTopics.add(topic);
+                        // 写入期间该主题发生过其它变更(如收到其它节点的广播)时无法确定最终值, 只失效缓存
+                        retainMessageCache.asMap().compute(topic, (k, v) -> version(topic) == version ? copied : null);
+                        // 令写入前发起的回源结果失效
+                        versions.incrementAndGet(stripe(topic));
+                        broadcast(topic, SAVE);
+                    });
+        }).then();
     }
 
     @Override
     public Mono<Void> remove(String topic) {
-        return redisTemplate.opsForHash().remove(retainMessageHashKey, topic).then();
+        return redisTemplate.opsForHash().remove(shardKey(topic), topic)
+                .doOnSuccess(unused -> {
+                    touch(topic);
+                    retainedTopics.remove(topic);
+                    invalidate(topic);
+                    broadcast(topic, REMOVE);
+                })
+                .then();
     }
 
     @Override
     public Mono<PubMsg> get(String topic) {
-        return redisTemplate.opsForHash().get(retainMessageHashKey, topic)
-                .map(e -> serializer.deserialize((byte[]) e, PubMsg.class));
+        var pubMsg = retainMessageCache.getIfPresent(topic);
+        if (pubMsg != null) {
+            return Mono.just(pubMsg.copied());
+        }
+
+        final var version = version(topic);
+        return redisTemplate.opsForHash().get(shardKey(topic), topic)
+                .map(e -> {
+                    var msg = serializer.deserialize((byte[]) e, PubMsg.class);
+                    fill(topic, msg, version);
+                    return msg.copied();
+                });
+    }
+
+    @Override
+    public void action(InternalMessage<RetainTopicMsg> im) {
+        final var data = im.getData();
+        final var topic = data.getTopic();
+        touch(topic);
+        switch (data.getType()) {
+            case SAVE -> retainedTopics.add(topic);
+            case REMOVE -> retainedTopics.remove(topic);
+            default -> {
+                log.error("非法的 RetainTopicMsg: [{}] ", data);
+                return;
+            }
+        }
+        invalidate(topic);
+    }
+
+    @Override
+    public boolean support(String channel) {
+        return InternalMessageEnum.RETAIN.getChannel().equals(channel);
+    }
+
+    @Override
+    public void destroy() {
+        if (reconcileExecutor != null) {
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 主题索引与 redis 对账: 补充缺失的主题, 移除 redis 中已不存在的主题, 并失效其本地缓存.
+     * <p>
+     * 各分片的 HKEYS 与本地变更并发进行, 对账开始后发生过变更(本地 save/remove 或收到广播)的主题以变更结果为准, 不参与修正.
+     */
+    private void reconcileRetainedTopics() {
+        try {
+            touchedTopics.clear();
+            var actual = Flux.fromArray(shardKeys)
+                    .concatMap(key -> redisTemplate.opsForHash().keys(key))
+                    .map(topic -> (String) topic)
+                    .collect(Collectors.toSet())
+                    .block();
+            if (actual == null) {
+                return;
+            }
+
+            int added = 0, removed = 0;
+            for (var topic : actual) {
+                if (!touchedTopics.contains(topic) && retainedTopics.add(topic)) {
+                    invalidate(topic);
+                    added++;
+                }
+            }
+            for (var topic : retainedTopics.topics()) {
+                if (!actual.contains(topic) && !touchedTopics.contains(topic) && retainedTopics.remove(topic)) {
+                    invalidate(topic);
+                    removed++;
+                }
+            }
+            if (added > 0 || removed > 0) {
+                log.info("保留消息主题索引对账完成: 补充 {} 个, 移除 {} 个", added, removed);
+            }
+        } catch (Throwable throwable) {
+            log.error(String.format("保留消息主题索引对账失败: %s", throwable.getMessage()), throwable);
+        }
+    }
+
+    /**
+     * 主题当前版本号
+     *
+     * @param topic 主题
+     */
+    private long version(String topic) {
+        return versions.get(stripe(topic));
+    }
+
+    private int stripe(String topic) {
+        return topic.hashCode() & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * 递增主题版本号并失效缓存. 先递增版本号再失效, 与 {@link #fill(String, PubMsg, long)} 的 compute 配合, 保证回填
+     * 要么被拒绝, 要么被随后的失效清除.
+     *
+     * @param topic 主题
+     */
+    private void invalidate(String topic) {
+        versions.incrementAndGet(stripe(topic));
+        retainMessageCache.invalidate(topic);
+    }
+
+    /**
+     * 回填 redis 读到的消息. 缓存中已有消息(如并发 save 写入的新消息)或回源期间版本号发生变化时放弃回填.
+     *
+     * @param topic   主题
+     * @param pubMsg  redis 读到的消息
+     * @param version 回源前的版本号
+     */
+    private void fill(String topic, PubMsg pubMsg, long version) {
+        retainMessageCache.asMap().compute(topic, (k, v) -> v != null || version(topic) != version ? v : pubMsg);
+    }
+
+    /**
+     * 记录发生变更的主题, 仅在需要对账时记录
+     *
+     * @param topic 主题
+     */
+    private void touch(String topic) {
+        if (reconcileExecutor != null) {
+            touchedTopics.add(topic);
+        }
+    }
+
+    /**
+     * 加载全部保留消息主题
+     */
+    private void initRetainedTopics() {
+        Flux.fromArray(shardKeys)
+                .flatMap(key -> redisTemplate.opsForHash().keys(key))
+                .doOnNext(topic -> retainedTopics.add((String) topic))
+                .then()
+                .doOnError(t -> log.error(t.getMessage(), t))
+                // 这里我们应该阻塞
+                .block();
+
+        log.info("保留消息主题加载完成, 数量: {}", retainedTopics.size());
+    }
+
+    /**
+     * 将不属于当前分片布局的保留消息(如旧的单 key 存储或修改分片数量前的分片)迁移到对应分片.
+     * <p>
+     * 迁移使用 HSETNX, 不会覆盖其它节点并发写入的新消息; 多个节点同时启动时重复迁移也是安全的.
+     */
+    private void migrateShards() {
+        var current = Set.of(shardKeys);
+        var count = redisTemplate.scan(ScanOptions.scanOptions().count(REDIS_SCAN_COUNT).match(retainMessagePrefix + "*").build())
+                .filter(key -> !current.contains(key))
+                .filterWhen(key -> redisTemplate.type(key).map(DataType.HASH::equals))
+                .concatMap(key -> redisTemplate.opsForHash().scan(key)
+                        .concatMap(e -> {
+                            var topic = (String) e.getKey();
+                            return redisTemplate.opsForHash().putIfAbsent(shardKey(topic), topic, e.getValue())
+                                    .then(redisTemplate.opsForHash().remove(key, topic));
+                        })
+                        .count()
+                        .doOnNext(n -> log.info("保留消息分片迁移: key={}, 数量={}", key, n)))
+                .reduce(0L, Long::sum)
+                .doOnError(t -> log.error(t.getMessage(), t))
+                // 迁移完成后再加载主题索引
+                .block();
+
+        if (count != null && count > 0) {
+            log.info("保留消息分片迁移完成, 数量: {}", count);
+        }
+    }
+
+    /**
+     * 主题所在分片的 redis key
+     *
+     * @param topic 主题
+     */
+    private String shardKey(String topic) {
+        return shardKeys[Math.floorMod(topic.hashCode(), shardKeys.length)];
+    }
+
+    /**
+     * 集群广播保留消息变更
+     *
+     * @param topic 主题
+     * @param type  变更类型
+     */
+    private void broadcast(String topic, int type) {
+        if (enableCluster) {
+            var im = new InternalMessage<>(new RetainTopicMsg(topic, type), System.currentTimeMillis(), brokerId);
+            internalMessagePublishService.publish(im, InternalMessageEnum.RETAIN.getChannel());
+        }
     }
 }
@@ -17,28 +17,46 @@
 package com.jun.mqttx.service.impl;
 
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.StorageType;
 import com.jun.mqttx.entity.Session;
 import com.jun.mqttx.service.ISessionService;
 import com.jun.mqttx.utils.MessageIdUtils;
 import com.jun.mqttx.utils.Serializer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.jun.mqttx.utils.RedisKeyUtils.clientKey;
 
 /**
- * 会话服务
+ * 会话服务.
+ * <p>
+ * 默认全部会话保存在 {@code clusterSessionHashKey} 单个 hash 中; 开启 {@code clientKeyHashTag} 后每个会话独立保存在
+ * {@code sessionKeyPrefix + {bucket} + clientId} 中, 与该客户端的其它 key 位于同一 slot.
  *
  * @author Jun
  * @since 1.0.4
  */
+@Slf4j
 @Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.REDIS, matchIfMissing = true)
 public class DefaultSessionServiceImpl implements ISessionService {
 
     private final String clusterSessionHashKey;
+    private final String sessionKeyPrefix;
+    private final boolean clientKeyHashTag;
+    /** hash tag 桶数量, 0 表示不使用 hash tag */
+    private final int hashTagBuckets;
     private final String messageIdPrefix;
+    private final int messageIdLeaseSize;
     private final ReactiveRedisTemplate<String, byte[]> redisTemplate;
     private final Serializer serializer;
 
@@ -49,11 +67,26 @@ public class DefaultSessionServiceImpl implements ISessionService {
         this.redisTemplate = redisTemplate;
         this.serializer = serializer;
         this.clusterSessionHashKey = redis.getClusterSessionHashKey();
+        this.sessionKeyPrefix = redis.getSessionKeyPrefix();
+        this.clientKeyHashTag = redis.getClientKeyHashTag();
+        this.hashTagBuckets = clientKeyHashTag ? redis.getClientKeyHashTagBuckets() : 0;
+        Assert.isTrue(!clientKeyHashTag || hashTagBuckets > 0, "mqttx.redis.client-key-hash-tag-buckets 必须大于 0");
         this.messageIdPrefix = redis.getMessageIdPrefix();
+        this.messageIdLeaseSize = redis.getMessageIdLeaseSize();
+        Assert.isTrue(messageIdLeaseSize > 0, "mqttx.redis.message-id-lease-size 必须大于 0");
+
+        if (clientKeyHashTag) {
+            migrateToHashTagLayout(redis);
+        }
     }
 
     @Override
     public Mono<Void> save(Session session) {
+        if (clientKeyHashTag) {
+            return redisTemplate.opsForValue()
+                    .set(sessionKey(session.getClientId()), serializer.serialize(session))
+                    .then();
+        }
         return redisTemplate.opsForHash()
                 .put(clusterSessionHashKey, session.getClientId(), serializer.serialize(session))
                 .then(Mono.empty());
@@ -61,13 +94,22 @@ public class DefaultSessionServiceImpl implements ISessionService {
 
     @Override
     public Mono<Session> find(String clientId) {
+        if (clientKeyHashTag) {
+            return redisTemplate.opsForValue().get(sessionKey(clientId))
+                    .map(e -> serializer.deserialize(e, Session.class));
+        }
         return redisTemplate.opsForHash().get(clusterSessionHashKey, clientId)
                 .map(e -> serializer.deserialize((byte[]) e, Session.class));
     }
 
     @Override
     public Mono<Boolean> clear(String clientId) {
-        return redisTemplate.delete(messageIdPrefix + clientId)
+        if (clientKeyHashTag) {
+            // DEL 的返回值即可说明会话是否存在, 无需先读取会话
+            return redisTemplate.delete(sessionKey(clientId))
+                    .flatMap(n -> redisTemplate.delete(messageIdKey(clientId)).thenReturn(n > 0));
+        }
+        return redisTemplate.delete(messageIdKey(clientId))
                 .then(redisTemplate.opsForHash().remove(clusterSessionHashKey, clientId))
                 .switchIfEmpty(Mono.just(-1L))
                 .map(e -> e > 0);
@@ -75,18 +117,104 @@ public class DefaultSessionServiceImpl implements ISessionService {
 
     @Override
     public Mono<Boolean> hasKey(String clientId) {
+        if (clientKeyHashTag) {
+            return redisTemplate.hasKey(sessionKey(clientId));
+        }
         return redisTemplate.opsForHash().hasKey(clusterSessionHashKey, clientId);
     }
 
     @Override
     public Mono<Integer> nextMessageId(String clientId) {
-        return redisTemplate.opsForValue().increment(messageIdPrefix + clientId)
+        return redisTemplate.opsForValue().increment(messageIdKey(clientId))
                 .flatMap(e -> {
                     if ((e & 0xffff) == 0) {
-                        return redisTemplate.opsForValue().increment(messageIdPrefix + clientId);
+                        return redisTemplate.opsForValue().increment(messageIdKey(clientId));
                     }
                     return Mono.just(e);
                 })
                 .map(MessageIdUtils::trimMessageId);
     }
+
+    @Override
+    public Mono<Integer> nextMessageId(Session session) {
+        int messageId = session.nextLeasedMessageId();
+        if (messageId > 0) {
+            return Mono.just(messageId);
+        }
+
+        // 租用新的区间, 并发租用只会浪费部分 messageId, 不会导致冲突
+        return redisTemplate.opsForValue().increment(messageIdKey(session.getClientId()), messageIdLeaseSize)
+                .flatMap(end -> {
+                    session.leaseMessageIds(end - messageIdLeaseSize + 1, end);
+                    int id = session.nextLeasedMessageId();
+                    return id > 0 ? Mono.just(id) : nextMessageId(session);
+                });
+    }
+
+    /**
+     * 将 {@code clusterSessionHashKey} 中的会话及其关联的 messageId、pubMsg、pubRel key 迁移到 hash tag 布局.
+     * <p>
+     * 新旧 key 通常位于不同 slot, 无法使用 RENAME, 因此按数据类型逐个复制后删除旧 key. 复制不覆盖已存在的数据, 多个节点
+     * 同时启动时重复迁移也是安全的.
+     *
+     * @param redis redis 配置
+     */
+    private void migrateToHashTagLayout(MqttxConfig.Redis redis) {
+        var count = redisTemplate.opsForHash().scan(clusterSessionHashKey)
+                .concatMap(e -> {
+                    var clientId = (String) e.getKey();
+                    var moves = new ArrayList<Mono<Void>>();
+                    moves.add(moveKey(redis.getMessageIdPrefix(), clientId, ""));
+                    moves.add(moveKey(redis.getPubMsgSetPrefix(), clientId, ""));
+                    moves.add(moveKey(redis.getPubMsgIndexPrefix(), clientId, ""));
+                    moves.add(moveKey(redis.getPubMsgMetaPrefix(), clientId, ""));
+                    for (var suffix : DefaultPubRelMessageServiceImpl.KEY_SUFFIXES) {
+                        moves.add(moveKey(redis.getPubRelMsgSetPrefix(), clientId, suffix));
+                    }
+                    return Flux.concat(moves)
+                            .then(redisTemplate.opsForValue().setIfAbsent(sessionKey(clientId), (byte[]) e.getValue()))
+                            .then(redisTemplate.opsForHash().remove(clusterSessionHashKey, clientId));
+                })
+                .count()
+                .doOnError(t -> log.error(t.getMessage(), t))
+                // 迁移完成后才能对外提供服务
+                .block();
+
+        if (count != null && count > 0) {
+            log.info("会话迁移至 hash tag 布局完成, 数量: {}", count);
+        }
+    }
+
+    /**
+     * 将 {@code prefix + clientId + suffix} 的数据复制到 {@code prefix + {bucket} + clientId + suffix} 后删除
+     */
+    private Mono<Void> moveKey(String prefix, String clientId, String suffix) {
+        final var from = prefix + clientId + suffix;
+        final var to = clientKey(prefix, clientId, hashTagBuckets) + suffix;
+        return redisTemplate.type(from)
+                .flatMap(type -> switch (type) {
+                    case STRING -> redisTemplate.opsForValue().get(from)
+                            .flatMap(v -> redisTemplate.opsForValue().setIfAbsent(to, v));
+                    case HASH -> redisTemplate.opsForHash().entries(from)
+                            .flatMap(v -> redisTemplate.opsForHash().putIfAbsent(to, v.getKey(), v.getValue()))
+                            .then();
+                    case SET -> redisTemplate.opsForSet().members(from)
+                            .flatMap(v -> redisTemplate.opsForSet().add(to, v))
+                            .then();
+                    case ZSET -> redisTemplate.opsForZSet().rangeWithScores(from, Range.closed(0L, -1L))
+                            .flatMap(v -> redisTemplate.opsForZSet().add(to, v.getValue(), v.getScore()))
+                            .then();
+                    default -> Mono.empty();
+                })
+                .then(redisTemplate.delete(from))
+                .then();
+    }
+
+    private String sessionKey(String clientId) {
+        return clientKey(sessionKeyPrefix, clientId, hashTagBuckets);
+    }
+
+    private String messageIdKey(String clientId) {
+        return clientKey(messageIdPrefix, clientId, hashTagBuckets);
+    }
 }
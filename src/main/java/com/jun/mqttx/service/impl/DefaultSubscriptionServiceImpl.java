@@ -16,29 +16,48 @@
 
 package com.jun.mqttx.service.impl;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.constants.StorageType;
 import com.jun.mqttx.consumer.Watcher;
 import com.jun.mqttx.entity.*;
-import com.jun.mqttx.service.IInternalMessagePublishService;
 import com.jun.mqttx.service.ISubscriptionService;
-import com.jun.mqttx.utils.JsonSerializer;
-import com.jun.mqttx.utils.Serializer;
+import com.jun.mqttx.service.ITopicFilterRouteService;
 import com.jun.mqttx.utils.TopicUtils;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
 import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.stream.StreamReceiver;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <h1>主题订阅服务</h1>
@@ -50,7 +69,8 @@ import java.util.function.Function;
  */
 @Slf4j
 @Service
-public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Watcher {
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.REDIS, matchIfMissing = true)
+public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Watcher<ClientSubOrUnsubMsg>, DisposableBean {
     //@formatter:off
 
     /** 用于分割字符，刻意设计成这样，防止与 clientId 中的字符重合 */
@@ -59,9 +79,15 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
     private static final int ASSUME_COUNT = 100_000;
     /** 按顺序 -> 订阅、解除订阅 */
     private static final int SUB = 1, UN_SUB = 2;
+    /** 订阅变更日志记录字段 */
+    private static final String LOG_SEQ = "seq", LOG_BROKER = "b", LOG_TYPE = "t", LOG_CLIENT = "c", LOG_QOS = "q",
+            LOG_CLEAN_SESSION = "s", LOG_TOPIC = "f";
+    private static final int SNAPSHOT_MAGIC = 0x4D535331;
+    private static final Duration LOG_RETRY_DELAY = Duration.ofSeconds(1);
     private final ReactiveStringRedisTemplate stringRedisTemplate;
-    private final Serializer serializer;
-    private final IInternalMessagePublishService internalMessagePublishService;
+    private final ITopicFilterRouteService topicFilterRouteService;
+    private final RedisScript<Long> subscriptionLogScript = RedisScript.of(new ClassPathResource("lua/subscription-log.lua"), Long.class);
+    private final RedisScript<Long> subscriptionLegacyScript = RedisScript.of(new ClassPathResource("lua/subscription-legacy.lua"), Long.class);
     /** client订阅主题, 订阅主题前缀, 主题集合 */
     private final String clientTopicsPrefix, topicSetKey, topicPrefix;
     private final boolean enableCluster;
@@ -80,16 +106,30 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
     private final Map<String, Set<ClientSub>> topicClientsMap = new ConcurrentHashMap<>(ASSUME_COUNT);
     /** 系统主题 -> clients map */
     private final Map<String, ConcurrentHashMap.KeySetView<ClientSub, Boolean>> sysTopicClientsMap = new ConcurrentHashMap<>();
+    /** 订阅变更日志 redis stream key 及最大长度 */
+    private String subscriptionLogKey;
+    private int subscriptionLogMaxLength;
+    private StreamReceiver<String, MapRecord<String, String, String>> streamReceiver;
+    /** 已应用的日志位置 */
+    private volatile LogPosition logPosition = LogPosition.EMPTY;
+    /** 序号不大于该值的本节点日志需要应用, 之后的本节点日志在写入前已应用到缓存 */
+    private volatile long replayUntilSeq;
+    private Disposable logTail;
+    /** 全量同步中, 此时缓存与日志位置不一致, 不保存快照 */
+    private volatile boolean syncing;
+    private volatile boolean closed;
+    /** 订阅关系快照文件 */
+    private Path snapshotPath;
+    private ScheduledExecutorService snapshotExecutor;
 
     //@formatter:on
 
     public DefaultSubscriptionServiceImpl(ReactiveStringRedisTemplate stringRedisTemplate,
+                                          ReactiveRedisConnectionFactory redisConnectionFactory,
                                           MqttxConfig mqttxConfig,
-                                          Serializer serializer,
-                                          @Nullable IInternalMessagePublishService internalMessagePublishService) {
+                                          @Nullable ITopicFilterRouteService topicFilterRouteService) {
         this.stringRedisTemplate = stringRedisTemplate;
-        this.serializer = serializer;
-        this.internalMessagePublishService = internalMessagePublishService;
+        this.topicFilterRouteService = topicFilterRouteService;
         var redisKey = mqttxConfig.getRedis();
         this.clientTopicsPrefix = redisKey.getClientTopicSetPrefix();
         this.topicPrefix = redisKey.getTopicPrefix();
@@ -100,7 +140,20 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
         this.brokerId = mqttxConfig.getBrokerId();
 
         // 内部缓存初始化
-        initInnerCache(stringRedisTemplate);
+        if (enableCluster) {
+            this.subscriptionLogKey = cluster.getSubscriptionLogKey();
+            this.subscriptionLogMaxLength = cluster.getSubscriptionLogMaxLength();
+            Assert.hasText(subscriptionLogKey, "subscriptionLogKey can't be null");
+            this.streamReceiver = StreamReceiver.create(redisConnectionFactory);
+            this.snapshotPath = Path.of(mqttxConfig.getStorage().getPath(), String.format("subscription-%s.snapshot", brokerId));
+            initSubscriptionLog();
+
+            var interval = cluster.getSubscriptionSnapshotInterval().toMillis();
+            this.snapshotExecutor = Executors.newSingleThreadScheduledExecutor();
+            snapshotExecutor.scheduleWithFixedDelay(this::saveSnapshot, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            initInnerCache();
+        }
     }
 
     /**
@@ -166,7 +219,8 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
     public Mono<Void> clearClientSubscriptions(String clientId, boolean cleanSession) {
         Set<String> keys;
         if (cleanSession) {
-            keys = inMemClientTopicsMap.remove(clientId);
+            // 由 unsubscribe 移除 inMemClientTopicsMap 中的订阅, 以便同步更新主题过滤器路由
+            keys = inMemClientTopicsMap.get(clientId);
             if (CollectionUtils.isEmpty(keys)) {
                 return Mono.empty();
             }
@@ -198,37 +252,37 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
 
 
     @Override
-    public void action(byte[] msg) {
-        InternalMessage<ClientSubOrUnsubMsg> im;
-        if (serializer instanceof JsonSerializer) {
-            im = ((JsonSerializer) serializer).deserialize(msg, new TypeReference<>() {
+    public Mono<Void> clearCleanSessionSubscriptions(Set<String> clientIds) {
+        // cleanSession 非共享订阅仅保存在客户端所在 broker, 这里只需处理共享订阅
+        var clientTopics = new HashMap<String, List<String>>();
+        for (var topic : topicClientsMap.keySet()) {
+            topicClientsMap.computeIfPresent(topic, (k, v) -> {
+                for (var clientSub : v) {
+                    if (clientSub.isCleanSession() && !clientSub.notShareSub() && clientIds.contains(clientSub.getClientId())) {
+                        clientTopics.computeIfAbsent(clientSub.getClientId(), j -> new ArrayList<>())
+                                .add(String.format("%s/%s/%s", TopicUtils.SHARE_TOPIC, clientSub.getShareName(), topic));
+                    }
+                }
+                return v;
             });
-        } else {
-            //noinspection unchecked
-            im = serializer.deserialize(msg, InternalMessage.class);
         }
+
+        // 客户端不在当前 broker, 按 cleanSession = 0 的方式移除 redis 中的订阅关系
+        return Flux.fromIterable(clientTopics.entrySet())
+                .concatMap(e -> unsubscribe(e.getKey(), false, e.getValue(), false))
+                .then();
+    }
+
+    @Override
+    public void action(InternalMessage<ClientSubOrUnsubMsg> im) {
         final var data = im.getData();
         final var type = data.getType();
         final var clientId = data.getClientId();
-        var topic = data.getTopic();
         final var cleanSession = data.isCleanSession();
 
-        // 共享主题处理
-        String sn = null;
-        if (TopicUtils.isShare(topic)) {
-            ShareTopic shareTopic = TopicUtils.parseFrom(topic);
-            sn = shareTopic.name();
-            topic = shareTopic.filter();
-        }
-        final var filter = topic;
-        final var shareName = sn;
-
-
         switch (type) {
-            case SUB -> {
-                var clientSub = ClientSub.of(clientId, data.getQos(), filter, cleanSession, shareName);
-                subscribe(clientSub, true).subscribe();
-            }
+            // UN_SUB 消息不含 topic
+            case SUB -> subscribe(clientSub(clientId, data.getQos(), data.getTopic(), cleanSession), true).subscribe();
             case UN_SUB -> {
                 var topics = data.getTopics();
                 unsubscribe(clientId, cleanSession, topics, true).subscribe();
@@ -242,14 +296,43 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
         return InternalMessageEnum.SUB_UNSUB.getChannel().equals(channel);
     }
 
+    @Override
+    public void destroy() {
+        if (!enableCluster) {
+            return;
+        }
+        closed = true;
+        if (logTail != null) {
+            logTail.dispose();
+        }
+        snapshotExecutor.shutdown();
+        saveSnapshot();
+    }
+
     /**
      * 缓存初始化.
      */
-    private void initInnerCache(final ReactiveStringRedisTemplate redisTemplate) {
+    private void initInnerCache() {
         log.info("开始加载缓存...");
 
+        // 这里我们应该阻塞
+        resetSubscriptions(loadSubscriptions().block());
+
+        log.info("缓存加载完成.");
+    }
+
+    /**
+     * 加载 redis 中的订阅关系, 同时删除旧版本保存的 cleanSession 非共享订阅
+     *
+     * @return topic -> clients
+     */
+    private Mono<Map<String, Set<ClientSub>>> loadSubscriptions() {
+        var loaded = new ConcurrentHashMap<String, Set<ClientSub>>();
+        // topic, clientId, value
+        var legacy = new ConcurrentLinkedQueue<Tuple3<String, String, String>>();
+
         // inDisk 订阅关系加载
-        redisTemplate.opsForSet().scan(topicSetKey)
+        return stringRedisTemplate.opsForSet().scan(topicSetKey)
                 .map(topic -> {
                     if (TopicUtils.isShare(topic)) {
                         topic = TopicUtils.parseFrom(topic).filter();
@@ -257,18 +340,7 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
                     return topic;
                 })
                 .distinct()
-                .collectList()
-                .doOnSuccess(topics -> {
-                    for (var topic : topics) {
-                        if (TopicUtils.isTopicContainWildcard(topic)) {
-                            hasWildcardTopics.add(topic);
-                        } else {
-                            noneWildcardTopics.add(topic);
-                        }
-                    }
-                })
-                .flatMapIterable(Function.identity())
-                .flatMap(topic -> redisTemplate.opsForHash().entries(topicPrefix + topic).map(e -> new Tuple2<>(topic, e)))
+                .flatMap(topic -> stringRedisTemplate.opsForHash().entries(topicPrefix + topic).map(e -> new Tuple2<>(topic, e)))
                 .doOnNext(e -> {
                     var topic = e.t0();
                     // k
@@ -285,35 +357,325 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
                     }
                     var cleanSession = "1".equals(cs);
 
+                    ClientSub clientSub;
                     if (k_s.length == 1) {
-                        topicClientsMap.compute(topic, (j, z) -> {
-                            if (z == null) {
-                                z = new HashSet<>();
-                            }
-
-                            z.add(ClientSub.of(k, Integer.parseInt(qosStr), topic, cleanSession));
-                            return z;
-                        });
+                        // 旧版本保存的 cleanSession 非共享订阅, 现仅由客户端所在 broker 在本地维护
+                        if (cleanSession) {
+                            legacy.add(new Tuple3<>(topic, k, v));
+                            return;
+                        }
+                        clientSub = ClientSub.of(k, Integer.parseInt(qosStr), topic, false);
                     } else {
-                        var shareName = k_s[1];
-                        topicClientsMap.compute(topic, (j, z) -> {
-                            if (z == null) {
-                                z = new HashSet<>();
-                            }
-
-                            z.add(ClientSub.of(k_s[0], Integer.parseInt(qosStr), topic, cleanSession, shareName));
-                            return z;
-                        });
+                        clientSub = ClientSub.of(k_s[0], Integer.parseInt(qosStr), topic, cleanSession, k_s[1]);
                     }
+                    loaded.computeIfAbsent(topic, j -> ConcurrentHashMap.newKeySet()).add(clientSub);
                 })
-                .then()
                 .doOnError(t -> log.error(t.getMessage(), t))
-                // 这里我们应该阻塞
-                .block();
+                .thenMany(Flux.defer(() -> Flux.fromIterable(legacy)))
+                .flatMap(e -> stringRedisTemplate.execute(subscriptionLegacyScript, List.of(topicPrefix + e.t0()), List.of(e.t1(), e.t2()))
+                        .filter(deleted -> deleted > 0)
+                        .flatMap(deleted -> stringRedisTemplate.opsForSet().remove(clientTopicsPrefix + e.t1(), e.t0())))
+                .count()
+                .doOnNext(count -> {
+                    if (count > 0) {
+                        log.info("清理旧版本 cleanSession 订阅数量: {}", count);
+                    }
+                })
+                .then(Mono.fromSupplier(() -> loaded));
+    }
+
+    /**
+     * 以 subscriptions 替换缓存中集群共享的订阅关系, 仅保存在本地的 cleanSession 非共享订阅保持不变
+     *
+     * @param subscriptions topic -> clients
+     */
+    private void resetSubscriptions(Map<String, Set<ClientSub>> subscriptions) {
+        // 移除已失效的订阅
+        for (var topic : topicClientsMap.keySet()) {
+            var loaded = subscriptions.getOrDefault(topic, Set.of());
+            topicClientsMap.computeIfPresent(topic, (k, v) -> {
+                v.removeIf(clientSub -> !isLocalOnly(clientSub) && !loaded.contains(clientSub));
+                if (v.isEmpty()) {
+                    if (TopicUtils.isTopicContainWildcard(topic)) {
+                        hasWildcardTopics.remove(topic);
+                    } else {
+                        noneWildcardTopics.remove(topic);
+                    }
+                    return null;
+                }
+                return v;
+            });
+        }
+
+        // 新增或更新订阅
+        subscriptions.forEach((topic, clientSubs) -> {
+            topicClientsMap.compute(topic, (k, v) -> {
+                if (v == null) {
+                    v = new HashSet<>();
+                }
+                v.removeAll(clientSubs);
+                v.addAll(clientSubs);
+                return v;
+            });
+            if (TopicUtils.isTopicContainWildcard(topic)) {
+                hasWildcardTopics.add(topic);
+            } else {
+                noneWildcardTopics.add(topic);
+            }
+        });
+    }
+
+    /**
+     * 集群模式下 cleanSession 非共享订阅仅保存在客户端所在 broker 本地, 不写入 redis 及订阅变更日志
+     *
+     * @param clientSub 订阅
+     */
+    private boolean isLocalOnly(ClientSub clientSub) {
+        return clientSub.isCleanSession() && clientSub.notShareSub();
+    }
+
+    /**
+     * 解析订阅, topicFilter 可能为共享主题
+     *
+     * @param clientId     客户端 id
+     * @param qos          qos
+     * @param topicFilter  主题过滤器
+     * @param cleanSession cleanSession 状态
+     */
+    private ClientSub clientSub(String clientId, int qos, String topicFilter, boolean cleanSession) {
+        if (TopicUtils.isShare(topicFilter)) {
+            ShareTopic shareTopic = TopicUtils.parseFrom(topicFilter);
+            return ClientSub.of(clientId, qos, shareTopic.filter(), cleanSession, shareTopic.name());
+        }
+        return ClientSub.of(clientId, qos, topicFilter, cleanSession);
+    }
+
+    /**
+     * 订阅变更日志初始化.
+     * <p>
+     * 本地快照存在且其日志位置之后的日志连续(未被裁剪或重建)时, 从快照恢复并回放之后的日志; 否则从 redis 全量加载订阅关系.
+     */
+    private void initSubscriptionLog() {
+        log.info("开始加载缓存...");
+
+        // 这里我们应该阻塞
+        var snapshot = readSnapshot();
+        if (snapshot != null && Boolean.TRUE.equals(isContinuous(snapshot.position()).block())) {
+            resetSubscriptions(snapshot.subscriptions());
+            logPosition = snapshot.position();
+            log.info("订阅关系快照加载完成, 日志序号: {}", logPosition.seq());
+        } else {
+            resync().block();
+        }
+        replayUntilSeq = Objects.requireNonNull(latestLogPosition().block()).seq();
+        tailLog();
 
         log.info("缓存加载完成.");
     }
 
+    /**
+     * 追加订阅变更日志, 每个主题一条记录, 序号由脚本原子分配
+     *
+     * @param type         {@link #SUB} 或 {@link #UN_SUB}
+     * @param clientId     客户端 id
+     * @param qos          qos
+     * @param cleanSession cleanSession 状态
+     * @param topics       主题列表，可能包含共享主题
+     */
+    private Mono<Void> appendLog(int type, String clientId, int qos, boolean cleanSession, List<String> topics) {
+        var args = new ArrayList<String>(6 + topics.size());
+        args.add(String.valueOf(subscriptionLogMaxLength));
+        args.add(brokerId);
+        args.add(String.valueOf(type));
+        args.add(clientId);
+        args.add(String.valueOf(qos));
+        args.add(cleanSession ? "1" : "0");
+        args.addAll(topics);
+        return stringRedisTemplate.execute(subscriptionLogScript, List.of(subscriptionLogKey), args).then();
+    }
+
+    /**
+     * 读取订阅变更日志, 出错后全量同步或延迟重试
+     */
+    private void tailLog() {
+        if (closed) {
+            return;
+        }
+        logTail = streamReceiver.receive(StreamOffset.create(subscriptionLogKey, ReadOffset.from(logPosition.id())))
+                .doOnNext(this::applyLog)
+                .subscribe(null, this::onLogError);
+    }
+
+    private void onLogError(Throwable t) {
+        if (closed) {
+            return;
+        }
+
+        Mono<Void> recover;
+        if (t instanceof LogGapException) {
+            log.warn("{}, 开始全量同步订阅关系", t.getMessage());
+            recover = resync()
+                    .then(latestLogPosition())
+                    .doOnNext(position -> replayUntilSeq = position.seq())
+                    .then();
+        } else {
+            log.error("订阅变更日志读取失败, 稍后重试", t);
+            recover = Mono.delay(LOG_RETRY_DELAY).then();
+        }
+        recover.subscribe(null, e -> {
+            log.error("订阅关系全量同步失败, 稍后重试", e);
+            Mono.delay(LOG_RETRY_DELAY).subscribe(unused -> onLogError(t));
+        }, this::tailLog);
+    }
+
+    /**
+     * 应用订阅变更日志. 本节点写入的日志在写入前已应用到缓存, 仅在启动回放及全量同步期间写入的部分需要应用.
+     *
+     * @param record 日志记录
+     */
+    private void applyLog(MapRecord<String, String, String> record) {
+        var position = logPosition(record);
+        var expected = logPosition.seq() + 1;
+        if (position.seq() != expected) {
+            throw new LogGapException(String.format("订阅变更日志不连续, 期望序号: %d, 实际序号: %d", expected, position.seq()));
+        }
+
+        var v = record.getValue();
+        if (!brokerId.equals(v.get(LOG_BROKER)) || position.seq() <= replayUntilSeq) {
+            var clientId = v.get(LOG_CLIENT);
+            var cleanSession = "1".equals(v.get(LOG_CLEAN_SESSION));
+            var topicFilter = v.get(LOG_TOPIC);
+            switch (Integer.parseInt(v.get(LOG_TYPE))) {
+                case SUB -> subscribe(clientSub(clientId, Integer.parseInt(v.get(LOG_QOS)), topicFilter, cleanSession), true).subscribe();
+                case UN_SUB -> unsubscribe(clientId, cleanSession, List.of(topicFilter), true).subscribe();
+                default -> log.error("非法的订阅变更日志: [{}]", v);
+            }
+        }
+        logPosition = position;
+    }
+
+    /**
+     * 全量同步: 先记录日志位置再加载 redis 中的订阅关系, 之后的日志在此基础上回放即可收敛
+     */
+    private Mono<Void> resync() {
+        return latestLogPosition()
+                .doOnNext(position -> {
+                    syncing = true;
+                    logPosition = position;
+                })
+                .then(loadSubscriptions())
+                .doOnNext(this::resetSubscriptions)
+                .doFinally(unused -> syncing = false)
+                .then();
+    }
+
+    /**
+     * 判断日志在 position 之后是否连续
+     *
+     * @param position 日志位置
+     */
+    private Mono<Boolean> isContinuous(LogPosition position) {
+        return stringRedisTemplate.<String, String>opsForStream()
+                .range(subscriptionLogKey, Range.rightUnbounded(Range.Bound.inclusive(position.id())), RedisZSetCommands.Limit.limit().count(2))
+                .filter(record -> !position.id().equals(record.getId().getValue()))
+                .next()
+                .map(record -> logPosition(record).seq() == position.seq() + 1)
+                // position 之后没有日志, 则日志仍需以 position 结尾
+                .switchIfEmpty(latestLogPosition().map(position::equals));
+    }
+
+    /**
+     * 最新的日志位置
+     */
+    private Mono<LogPosition> latestLogPosition() {
+        return stringRedisTemplate.<String, String>opsForStream()
+                .reverseRange(subscriptionLogKey, Range.unbounded(), RedisZSetCommands.Limit.limit().count(1))
+                .next()
+                .map(this::logPosition)
+                .defaultIfEmpty(LogPosition.EMPTY);
+    }
+
+    private LogPosition logPosition(MapRecord<String, String, String> record) {
+        return new LogPosition(record.getId().getValue(), Long.parseLong(record.getValue().get(LOG_SEQ)));
+    }
+
+    /**
+     * 保存订阅关系快照, 仅包含集群共享的订阅. 先记录日志位置再复制订阅关系, 恢复时回放该位置之后的日志即可收敛.
+     */
+    private void saveSnapshot() {
+        if (syncing) {
+            return;
+        }
+
+        var position = logPosition;
+        var tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(snapshotPath.toAbsolutePath().getParent());
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeUTF(position.id());
+                out.writeLong(position.seq());
+                for (var topic : topicClientsMap.keySet()) {
+                    var clientSubs = new ArrayList<ClientSub>();
+                    topicClientsMap.computeIfPresent(topic, (k, v) -> {
+                        clientSubs.addAll(v);
+                        return v;
+                    });
+                    for (var clientSub : clientSubs) {
+                        if (isLocalOnly(clientSub)) {
+                            continue;
+                        }
+                        out.writeBoolean(true);
+                        out.writeUTF(topic);
+                        out.writeUTF(clientSub.getClientId());
+                        out.writeByte(clientSub.getQos());
+                        out.writeBoolean(clientSub.isCleanSession());
+                        out.writeUTF(clientSub.notShareSub() ? "" : clientSub.getShareName());
+                    }
+                }
+                out.writeBoolean(false);
+            }
+            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            log.error("订阅关系快照保存失败", e);
+        }
+    }
+
+    /**
+     * 读取订阅关系快照
+     *
+     * @return 快照不存在或已损坏时返回 null
+     */
+    @Nullable
+    private Snapshot readSnapshot() {
+        if (!Files.exists(snapshotPath)) {
+            return null;
+        }
+
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                log.warn("订阅关系快照格式错误: {}", snapshotPath);
+                return null;
+            }
+            var position = new LogPosition(in.readUTF(), in.readLong());
+            var subscriptions = new HashMap<String, Set<ClientSub>>();
+            while (in.readBoolean()) {
+                var topic = in.readUTF();
+                var clientId = in.readUTF();
+                var qos = in.readByte();
+                var cleanSession = in.readBoolean();
+                var shareName = in.readUTF();
+                var clientSub = shareName.isEmpty() ?
+                        ClientSub.of(clientId, qos, topic, cleanSession) : ClientSub.of(clientId, qos, topic, cleanSession, shareName);
+                subscriptions.computeIfAbsent(topic, k -> new HashSet<>()).add(clientSub);
+            }
+            return new Snapshot(position, subscriptions);
+        } catch (Exception e) {
+            log.warn("订阅关系快照读取失败: {}", snapshotPath, e);
+            return null;
+        }
+    }
+
     /**
      * 客户端订阅主题
      *
@@ -356,16 +718,26 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
 
         // 针对客户端 cleanSession == true 的会话，如果 mqttx 是单机模式，那么订阅数据仅保存到缓存中.
         if (cleanSession) {
+            var added = new AtomicBoolean();
             inMemClientTopicsMap.compute(clientId, (k, v) -> {
                 if (v == null) {
                     v = new HashSet<>();
                 }
-                v.add(topicFilter);
+                added.set(v.add(topicFilter));
                 return v;
             });
             if (!enableCluster) {
                 return Mono.empty();
             }
+
+            // 集群模式下非共享订阅同样仅保存在本地, 其它 broker 通过主题过滤器路由转发消息;
+            // 共享订阅需要由消息源 broker 在全部订阅者中选择, 仍保存到 redis 并广播
+            if (!StringUtils.hasText(shareName)) {
+                if (added.get()) {
+                    topicFilterRouteService.add(topic);
+                }
+                return Mono.empty();
+            }
         }
 
         // 订阅关系保存到 redis
@@ -374,15 +746,11 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
                 stringRedisTemplate.opsForSet().add(topicSetKey, topicFilter),
                 // 类似 inMemClientTopicsMap#key, 这里也必须存 topicFilter
                 stringRedisTemplate.opsForSet().add(clientTopicsPrefix + clientId, topicFilter)
-        ).then(Mono.fromRunnable(() -> {
+        ).then(Mono.defer(() -> {
             if (enableCluster) {
-                var im = new InternalMessage<>(
-                        new ClientSubOrUnsubMsg(clientId, qos, topicFilter, cleanSession, null, SUB),
-                        System.currentTimeMillis(),
-                        brokerId
-                );
-                internalMessagePublishService.publish(im, InternalMessageEnum.SUB_UNSUB.getChannel());
+                return appendLog(SUB, clientId, qos, cleanSession, List.of(topicFilter));
             }
+            return Mono.empty();
         }));
     }
 
@@ -438,15 +806,46 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
 
         // 与 this#subscribe 对应
         if (cleanSession) {
+            var removed = new ArrayList<String>();
             inMemClientTopicsMap.computeIfPresent(clientId, (k, v) -> {
-                topics.forEach(v::remove);
-                return v;
+                for (var topic : topics) {
+                    if (v.remove(topic)) {
+                        removed.add(topic);
+                    }
+                }
+                return v.isEmpty() ? null : v;
             });
             if (!enableCluster) {
                 return Mono.empty();
             }
+
+            // 非共享订阅仅保存在本地, 移除路由即可
+            var shareTopics = new ArrayList<String>();
+            for (var topic : removed) {
+                if (TopicUtils.isShare(topic)) {
+                    shareTopics.add(topic);
+                } else {
+                    topicFilterRouteService.remove(topic);
+                }
+            }
+            if (shareTopics.isEmpty()) {
+                return Mono.empty();
+            }
+            return unsubscribe0(clientId, true, shareTopics, waitToDel);
         }
 
+        return unsubscribe0(clientId, cleanSession, topics, waitToDel);
+    }
+
+    /**
+     * 移除 redis 中的订阅关系并集群广播
+     *
+     * @param clientId     客户 id
+     * @param cleanSession clientId 关联会话 cleanSession 状态
+     * @param topics       主题列表，可能包含共享主题
+     * @param waitToDel    待删除的主题
+     */
+    private Mono<Void> unsubscribe0(String clientId, boolean cleanSession, List<String> topics, List<String> waitToDel) {
 
         // 移除 redis 中的数据.
         var monos = topics.stream()
@@ -469,15 +868,12 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
 
                     return stringRedisTemplate.opsForSet().remove(topicSetKey, waitToDel.toArray()).then();
                 })
-                .doOnSuccess(unused -> {
-                    // 集群广播
+                .then(Mono.defer(() -> {
                     if (enableCluster) {
-                        var clientSubOrUnsubMsg = new ClientSubOrUnsubMsg(clientId, 0, null, cleanSession, topics, UN_SUB);
-                        var im = new InternalMessage<>(clientSubOrUnsubMsg, System.currentTimeMillis(), brokerId);
-                        internalMessagePublishService.publish(im, InternalMessageEnum.SUB_UNSUB.getChannel());
+                        return appendLog(UN_SUB, clientId, 0, cleanSession, topics);
                     }
-                });
-
+                    return Mono.empty();
+                }));
     }
 
     @Override
@@ -540,4 +936,34 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
     private String topicClientSubValue(int qos, boolean cleanSession) {
         return String.format("%d%s%d", qos, COMMA_SEPARATOR, cleanSession ? 1 : 0);
     }
+
+    /**
+     * 日志位置
+     *
+     * @param id  redis stream 记录 id
+     * @param seq 日志序号, 连续递增
+     */
+    private record LogPosition(String id, long seq) {
+
+        static final LogPosition EMPTY = new LogPosition("0-0", 0);
+    }
+
+    /**
+     * 订阅关系快照
+     *
+     * @param position      快照对应的日志位置
+     * @param subscriptions topic -> clients
+     */
+    private record Snapshot(LogPosition position, Map<String, Set<ClientSub>> subscriptions) {
+    }
+
+    /**
+     * 订阅变更日志不连续, 需要全量同步
+     */
+    private static class LogGapException extends RuntimeException {
+
+        LogGapException(String message) {
+            super(message, null, false, false);
+        }
+    }
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.consumer.Watcher;
+import com.jun.mqttx.entity.InternalMessage;
+import com.jun.mqttx.entity.TopicFilterRouteMsg;
+import com.jun.mqttx.service.IInternalMessagePublishService;
+import com.jun.mqttx.service.ITopicFilterRouteService;
+import com.jun.mqttx.utils.TopicTrie;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主题过滤器路由服务.
+ * <p>
+ * 当前 broker 按主题过滤器维护本地订阅计数, 计数 0 -> 1 及 1 -> 0 时更新 redis set
+ * {@code topicFilterRoutePrefix + brokerId} 并通过集群消息 {@link InternalMessageEnum#TOPIC_FILTER_ROUTE} 广播;
+ * 其它 broker 的路由加载自 redis 并随广播更新, 查询路由无需访问 redis, 主题过滤器保存在 {@link TopicTrie} 中按主题层级匹配.
+ * <p>
+ * redis 写入及广播均不等待结果, 因此按 {@code topicFilterRouteResyncInterval} 定时读取全部路由表对账: 以 redis 为准修正
+ * 其它 broker 的路由副本, 以本地订阅计数为准修正当前 broker 在 redis 中的路由表.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+@Service
+@ConditionalOnExpression("${mqttx.cluster.enable:false}")
+public class DefaultTopicFilterRouteServiceImpl implements ITopicFilterRouteService, Watcher<TopicFilterRouteMsg>, DisposableBean {
+
+    //@formatter:off
+    /** 按顺序 -> 新增、移除 */
+    private static final int ADD = 1, REMOVE = 2;
+    private static final int REDIS_SCAN_COUNT = 1000;
+    private final ReactiveStringRedisTemplate stringRedisTemplate;
+    private final IInternalMessagePublishService internalMessagePublishService;
+    private final String brokerId;
+    private final String topicFilterRoutePrefix;
+    /** 当前 broker 路由表 redis key */
+    private final String localRouteKey;
+    /** topicFilter -> 当前 broker 的订阅数量 */
+    private final Map<String, Integer> localCounts = new ConcurrentHashMap<>();
+    /** topicFilter -> 其它 broker 集合 */
+    private final Map<String, Set<String>> routes = new ConcurrentHashMap<>();
+    /** 路由表中的全部主题过滤器 */
+    private final TopicTrie topicFilters = new TopicTrie();
+    /** 本轮对账开始后路由发生过变更的主题过滤器, 对账时以变更为准 */
+    private final Set<String> touchedTopicFilters = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService resyncExecutor;
+    //@formatter:on
+
+    public DefaultTopicFilterRouteServiceImpl(ReactiveStringRedisTemplate stringRedisTemplate,
+                                              IInternalMessagePublishService internalMessagePublishService,
+                                              MqttxConfig mqttxConfig) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.internalMessagePublishService = internalMessagePublishService;
+        this.brokerId = mqttxConfig.getBrokerId();
+        this.topicFilterRoutePrefix = mqttxConfig.getCluster().getTopicFilterRoutePrefix();
+        Assert.hasText(topicFilterRoutePrefix, "topicFilterRoutePrefix can't be null");
+        this.localRouteKey = topicFilterRoutePrefix + brokerId;
+
+        initRoutes();
+
+        var interval = mqttxConfig.getCluster().getTopicFilterRouteResyncInterval().toMillis();
+        this.resyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "topic-filter-route-resync");
+            t.setDaemon(true);
+            return t;
+        });
+        resyncExecutor.scheduleWithFixedDelay(this::resyncRoutes, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void add(String topicFilter) {
+        // redis 命令及广播在 compute 内发出, 保证同一主题过滤器的变更按序到达
+        localCounts.compute(topicFilter, (k, v) -> {
+            if (v == null) {
+                touchedTopicFilters.add(topicFilter);
+                stringRedisTemplate.opsForSet().add(localRouteKey, topicFilter)
+                        .doOnError(t -> log.error(t.getMessage(), t))
+                        .subscribe();
+                broadcast(topicFilter, ADD);
+                return 1;
+            }
+            return v + 1;
+        });
+    }
+
+    @Override
+    public void remove(String topicFilter) {
+        localCounts.computeIfPresent(topicFilter, (k, v) -> {
+            if (v == 1) {
+                touchedTopicFilters.add(topicFilter);
+                stringRedisTemplate.opsForSet().remove(localRouteKey, topicFilter)
+                        .doOnError(t -> log.error(t.getMessage(), t))
+                        .subscribe();
+                broadcast(topicFilter, REMOVE);
+                return null;
+            }
+            return v - 1;
+        });
+    }
+
+    @Override
+    public Set<String> route(String topic) {
+        Set<String> brokerIds = null;
+        for (var topicFilter : topicFilters.matchFilters(topic)) {
+            var matched = routes.get(topicFilter);
+            if (matched != null) {
+                if (brokerIds == null) {
+                    brokerIds = new HashSet<>();
+                }
+                brokerIds.addAll(matched);
+            }
+        }
+        return brokerIds == null ? Set.of() : brokerIds;
+    }
+
+    @Override
+    public void removeBroker(String brokerId) {
+        for (var topicFilter : routes.keySet()) {
+            removeRoute(topicFilter, brokerId);
+        }
+    }
+
+    @Override
+    public Mono<Void> purgeBroker(String brokerId) {
+        return stringRedisTemplate.delete(topicFilterRoutePrefix + brokerId).then();
+    }
+
+    @Override
+    public void action(InternalMessage<TopicFilterRouteMsg> im) {
+        final var data = im.getData();
+        touchedTopicFilters.add(data.getTopicFilter());
+        switch (data.getType()) {
+            case ADD -> addRoute(data.getTopicFilter(), im.getBrokerId());
+            case REMOVE -> removeRoute(data.getTopicFilter(), im.getBrokerId());
+            default -> log.error("非法的 TopicFilterRouteMsg: [{}] ", data);
+        }
+    }
+
+    @Override
+    public boolean support(String channel) {
+        return InternalMessageEnum.TOPIC_FILTER_ROUTE.getChannel().equals(channel);
+    }
+
+    @Override
+    public void destroy() {
+        resyncExecutor.shutdownNow();
+    }
+
+    /**
+     * 路由表对账. 对账开始后发生过变更(本地订阅计数变更或收到广播)的主题过滤器以变更结果为准, 不参与修正.
+     * <ol>
+     *     <li>其它 broker: 以 redis 为准补充或移除本地副本中的路由</li>
+     *     <li>当前 broker: 以本地订阅计数为准补充或移除 redis 中的路由</li>
+     * </ol>
+     */
+    private void resyncRoutes() {
+        try {
+            touchedTopicFilters.clear();
+            var actual = new HashMap<String, Set<String>>();
+            var localActual = new HashSet<String>();
+            stringRedisTemplate.scan(ScanOptions.scanOptions().count(REDIS_SCAN_COUNT).match(topicFilterRoutePrefix + "*").build())
+                    .concatMap(key -> stringRedisTemplate.opsForSet().members(key)
+                            .doOnNext(topicFilter -> {
+                                if (localRouteKey.equals(key)) {
+                                    localActual.add(topicFilter);
+                                } else {
+                                    var target = key.substring(topicFilterRoutePrefix.length());
+                                    actual.computeIfAbsent(topicFilter, k -> new HashSet<>()).add(target);
+                                }
+                            }))
+                    .blockLast();
+
+            int added = 0, removed = 0;
+            for (var e : actual.entrySet()) {
+                var topicFilter = e.getKey();
+                if (touchedTopicFilters.contains(topicFilter)) {
+                    continue;
+                }
+                var current = routes.get(topicFilter);
+                for (var target : e.getValue()) {
+                    if (current == null || !current.contains(target)) {
+                        addRoute(topicFilter, target);
+                        added++;
+                    }
+                }
+            }
+            for (var e : routes.entrySet()) {
+                var topicFilter = e.getKey();
+                if (touchedTopicFilters.contains(topicFilter)) {
+                    continue;
+                }
+                var targets = actual.getOrDefault(topicFilter, Set.of());
+                for (var target : Set.copyOf(e.getValue())) {
+                    if (!targets.contains(target)) {
+                        removeRoute(topicFilter, target);
+                        removed++;
+                    }
+                }
+            }
+
+            // 当前 broker 在 redis 中的路由表
+            var missing = new HashSet<String>();
+            for (var topicFilter : localCounts.keySet()) {
+                if (!localActual.contains(topicFilter) && !touchedTopicFilters.contains(topicFilter)) {
+                    missing.add(topicFilter);
+                }
+            }
+            var stale = new HashSet<String>();
+            for (var topicFilter : localActual) {
+                if (!localCounts.containsKey(topicFilter) && !touchedTopicFilters.contains(topicFilter)) {
+                    stale.add(topicFilter);
+                }
+            }
+            if (!missing.isEmpty()) {
+                stringRedisTemplate.opsForSet().add(localRouteKey, missing.toArray(String[]::new)).block();
+            }
+            if (!stale.isEmpty()) {
+                stringRedisTemplate.opsForSet().remove(localRouteKey, stale.toArray()).block();
+            }
+
+            if (added > 0 || removed > 0 || !missing.isEmpty() || !stale.isEmpty()) {
+                log.info("主题过滤器路由表对账完成: 补充 {} 个, 移除 {} 个, 修正当前 broker 路由 {} 个", added, removed,
+                        missing.size() + stale.size());
+            }
+        } catch (Throwable throwable) {
+            log.error(String.format("主题过滤器路由表对账失败: %s", throwable.getMessage()), throwable);
+        }
+    }
+
+    /**
+     * 加载其它 broker 的路由表, 当前 broker 刚启动尚无订阅, 上次运行遗留的路由直接删除
+     */
+    private void initRoutes() {
+        stringRedisTemplate.delete(localRouteKey)
+                .thenMany(stringRedisTemplate.scan(ScanOptions.scanOptions().count(REDIS_SCAN_COUNT).match(topicFilterRoutePrefix + "*").build()))
+                .filter(key -> !localRouteKey.equals(key))
+                .flatMap(key -> stringRedisTemplate.opsForSet().members(key)
+                        .doOnNext(topicFilter -> addRoute(topicFilter, key.substring(topicFilterRoutePrefix.length()))))
+                .then()
+                .doOnError(t -> log.error(t.getMessage(), t))
+                // 这里我们应该阻塞
+                .block();
+
+        log.info("主题过滤器路由表加载完成, 数量: {}", routes.size());
+    }
+
+    private void addRoute(String topicFilter, String brokerId) {
+        routes.compute(topicFilter, (k, v) -> {
+            if (v == null) {
+                v = ConcurrentHashMap.newKeySet();
+                topicFilters.add(topicFilter);
+            }
+            v.add(brokerId);
+            return v;
+        });
+    }
+
+    private void removeRoute(String topicFilter, String brokerId) {
+        routes.computeIfPresent(topicFilter, (k, v) -> {
+            v.remove(brokerId);
+            if (v.isEmpty()) {
+                topicFilters.remove(topicFilter);
+                return null;
+            }
+            return v;
+        });
+    }
+
+    /**
+     * 集群广播路由变更
+     *
+     * @param topicFilter 主题过滤器
+     * @param type        变更类型
+     */
+    private void broadcast(String topicFilter, int type) {
+        var im = new InternalMessage<>(new TopicFilterRouteMsg(topicFilter, type), System.currentTimeMillis(), brokerId);
+        internalMessagePublishService.publish(im, InternalMessageEnum.TOPIC_FILTER_ROUTE.getChannel());
+    }
+}
@@ -16,30 +16,194 @@
 
 package com.jun.mqttx.service.impl;
 
-import com.jun.mqttx.entity.InternalMessage;
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.entity.*;
 import com.jun.mqttx.service.IInternalMessagePublishService;
+import com.jun.mqttx.utils.InternalMessageBatcher;
+import com.jun.mqttx.utils.InternalMessageCodec;
 import com.jun.mqttx.utils.Serializer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.kafka.core.KafkaTemplate;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
 /**
- * 基于 kafka 实现
+ * 基于 kafka 实现.
+ * <p>
+ * 消息按 {@link #key(Object)} 指定 key 发送, 同一 key 的消息写入同一分区, 由订阅方同一消费线程按序处理.
+ * 开启批量发送时按 topic partition 合并消息, 分区计算方式与 kafka 默认分区器一致. 分区数量查询会阻塞, 因此不在发送线程
+ * (可能是 event loop)中进行: 启动后由后台线程加载集群 topic 的分区数量, 并按 {@code kafkaPartitionRefreshInterval}
+ * 刷新; 分区数量未知的 topic(如新节点的定向 topic)先交由 kafka 默认分区器发送, 同时在后台加载.
  *
  * @see DefaultInternalMessagePublishServiceImpl
  * @since v1.0.6
  */
-public class KafkaInternalMessagePublishServiceImpl implements IInternalMessagePublishService {
+@Slf4j
+public class KafkaInternalMessagePublishServiceImpl implements IInternalMessagePublishService, DisposableBean {
 
     private final KafkaTemplate<String, byte[]> kafkaTemplate;
     private final Serializer serializer;
+    /** 微批处理器, 未开启批量发送时为 null */
+    private final InternalMessageBatcher<TopicPartition> batcher;
+    /** topic -> 分区数量 */
+    private final Map<String, Integer> partitionCounts = new ConcurrentHashMap<>();
+    /** 后台加载中的 topic */
+    private final Set<String> loadingTopics = ConcurrentHashMap.newKeySet();
+    /** 分区数量加载及刷新, 未开启批量发送时为 null */
+    private final ScheduledExecutorService partitionRefreshExecutor;
 
     public KafkaInternalMessagePublishServiceImpl(KafkaTemplate<String, byte[]> kafkaTemplate,
-                                                  Serializer serializer) {
+                                                  Serializer serializer,
+                                                  MqttxConfig mqttxConfig) {
         this.kafkaTemplate = kafkaTemplate;
         this.serializer = serializer;
+
+        var cluster = mqttxConfig.getCluster();
+        if (Boolean.TRUE.equals(cluster.getBatchEnable())) {
+            this.batcher = new InternalMessageBatcher<>(
+                    (tp, frame) -> kafkaTemplate.send(tp.topic(), tp.partition(), null, frame),
+                    cluster.getBatchMaxSize(),
+                    cluster.getBatchMaxDelay()
+            );
+
+            var interval = cluster.getKafkaPartitionRefreshInterval().toMillis();
+            this.partitionRefreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                var t = new Thread(r, "kafka-partition-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            // 集群 topic 由 KafkaAdmin 在启动过程中创建, 分区数量在后台加载, 不阻塞启动
+            partitionRefreshExecutor.execute(() -> {
+                for (var type : InternalMessageEnum.values()) {
+                    loadPartitionCount(type.getChannel());
+                }
+            });
+            partitionRefreshExecutor.scheduleWithFixedDelay(this::refreshPartitionCounts, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.batcher = null;
+            this.partitionRefreshExecutor = null;
+        }
     }
 
     @Override
     public <T> void publish(InternalMessage<T> internalMessage, String channel) {
-        kafkaTemplate.send(channel, serializer.serialize(internalMessage));
+        byte[] frame = InternalMessageCodec.encode(internalMessage, InternalMessageEnum.ofChannel(channel), serializer);
+        publish(channel, key(internalMessage.getData()), frame);
+    }
+
+    @Override
+    public <T> void publish(InternalMessage<T> internalMessage, InternalMessageEnum type, Collection<String> brokerIds) {
+        byte[] frame = InternalMessageCodec.encode(internalMessage, type, serializer);
+        String key = key(internalMessage.getData());
+        for (String brokerId : brokerIds) {
+            publish(type.getChannel(brokerId), key, frame);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (batcher != null) {
+            partitionRefreshExecutor.shutdownNow();
+            batcher.close();
+        }
+    }
+
+    private void publish(String topic, String key, byte[] frame) {
+        if (batcher == null) {
+            kafkaTemplate.send(topic, key, frame);
+            return;
+        }
+
+        Integer n = partitionCounts.get(topic);
+        if (n == null) {
+            // 分区数量未知, 交由默认分区器, 同一 key 的分区结果一致
+            kafkaTemplate.send(topic, key, frame);
+            if (loadingTopics.add(topic)) {
+                partitionRefreshExecutor.execute(() -> {
+                    loadPartitionCount(topic);
+                    loadingTopics.remove(topic);
+                });
+            }
+            return;
+        }
+        batcher.add(new TopicPartition(topic, partition(n, key)), frame);
+    }
+
+    /**
+     * 查询并缓存 topic 分区数量, 会阻塞, 不可在发送线程中调用
+     *
+     * @param topic kafka topic
+     */
+    private void loadPartitionCount(String topic) {
+        try {
+            var partitions = kafkaTemplate.partitionsFor(topic);
+            if (partitions != null && !partitions.isEmpty()) {
+                partitionCounts.put(topic, partitions.size());
+            }
+        } catch (Throwable throwable) {
+            log.warn("查询 kafka topic [{}] 分区数量失败: {}", topic, throwable.getMessage());
+        }
+    }
+
+    /**
+     * 刷新已知 topic 的分区数量, 感知分区扩容
+     */
+    private void refreshPartitionCounts() {
+        for (var topic : partitionCounts.keySet()) {
+            loadPartitionCount(topic);
+        }
+    }
+
+    /**
+     * 计算消息分区, 与 kafka 默认分区器一致; 无 key 的消息随机选择分区
+     *
+     * @param n   分区数量
+     * @param key 消息 key
+     */
+    private static int partition(int n, String key) {
+        if (key == null) {
+            return ThreadLocalRandom.current().nextInt(n);
+        }
+        return Utils.toPositive(Utils.murmur2(key.getBytes(StandardCharsets.UTF_8))) % n;
+    }
+
+    /**
+     * 消息 key: 指定了客户端的消息取 clientId, 其余取 topic 或 clientId
+     *
+     * @param data {@link InternalMessage#getData()}
+     * @return 消息 key, 可能为 null
+     */
+    private static String key(Object data) {
+        if (data instanceof PubMsg pubMsg) {
+            return pubMsg.getAppointedClientId() != null ? pubMsg.getAppointedClientId() : pubMsg.getTopic();
+        }
+        if (data instanceof ClientSubOrUnsubMsg msg) {
+            return msg.getClientId();
+        }
+        if (data instanceof ClientRouteMsg msg) {
+            return msg.getClientId();
+        }
+        if (data instanceof TopicFilterRouteMsg msg) {
+            return msg.getTopicFilter();
+        }
+        if (data instanceof RetainTopicMsg msg) {
+            return msg.getTopic();
+        }
+        if (data instanceof Authentication authentication) {
+            return authentication.getClientId();
+        }
+        if (data instanceof String clientId) {
+            // InternalMessageEnum#DISCONNECT
+            return clientId;
+        }
+        return null;
     }
 }
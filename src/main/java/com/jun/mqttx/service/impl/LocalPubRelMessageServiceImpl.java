@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.service.IPubRelMessageService;
+import com.jun.mqttx.store.LocalStore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * 基于 {@link LocalStore} 的单机实现
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Component
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MMAP)
+public class LocalPubRelMessageServiceImpl implements IPubRelMessageService {
+
+    private static final String IN_PREFIX = "pub-rel-in:";
+    private static final String OUT_PREFIX = "pub-rel-out:";
+    private static final byte[] EMPTY = new byte[0];
+    private final LocalStore store;
+
+    public LocalPubRelMessageServiceImpl(LocalStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Mono<Void> saveOut(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> store.put(OUT_PREFIX + clientId, String.valueOf(messageId), EMPTY));
+    }
+
+    @Override
+    public Mono<Void> saveIn(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> store.put(IN_PREFIX + clientId, String.valueOf(messageId), EMPTY));
+    }
+
+    @Override
+    public Mono<Boolean> isInMsgDup(String clientId, int messageId) {
+        return Mono.fromSupplier(() -> store.get(IN_PREFIX + clientId, String.valueOf(messageId)) != null);
+    }
+
+    @Override
+    public Mono<Void> removeIn(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> store.remove(IN_PREFIX + clientId, String.valueOf(messageId)));
+    }
+
+    @Override
+    public Mono<Void> removeOut(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> store.remove(OUT_PREFIX + clientId, String.valueOf(messageId)));
+    }
+
+    @Override
+    public Flux<Integer> searchOut(String clientId) {
+        return Flux.defer(() -> Flux.fromIterable(store.entries(OUT_PREFIX + clientId)))
+                .map(e -> Integer.parseInt(e.getKey()));
+    }
+
+    @Override
+    public Mono<Void> clear(String clientId) {
+        return Mono.fromRunnable(() -> {
+            store.delete(IN_PREFIX + clientId);
+            store.delete(OUT_PREFIX + clientId);
+        });
+    }
+}
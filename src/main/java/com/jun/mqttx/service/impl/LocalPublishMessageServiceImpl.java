@@ -0,0 +1,291 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.OverflowPolicy;
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.service.IPublishMessageService;
+import com.jun.mqttx.store.LocalStore;
+import com.jun.mqttx.utils.BrokerMetrics;
+import com.jun.mqttx.utils.Serializer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * publish message store by {@link LocalStore}.
+ * <p>
+ * 单机部署不存在多客户端共享载荷的跨节点问题, 每条消息完整保存. 离线队列限制与 redis 实现语义一致, 队列元数据(字节数、主题)
+ * 缓存在内存中, 首次访问时从存储加载.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MMAP)
+public class LocalPublishMessageServiceImpl implements IPublishMessageService, DisposableBean {
+    //@formatter:off
+
+    private static final String PUB_MSG_PREFIX = "pub-msg:";
+    private final LocalStore store;
+    private final Serializer serializer;
+    /** 离线队列限制 */
+    private final int offlineQueueMaxLength;
+    private final long offlineQueueMaxBytes;
+    private final OverflowPolicy overflowPolicy;
+    /** clientId -> 离线队列元数据 */
+    private final Map<String, QueueMeta> queueMetas = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService expiryPurgeExecutor;
+
+    //@formatter:on
+
+    public LocalPublishMessageServiceImpl(LocalStore store, Serializer serializer, MqttxConfig mqttxConfig) {
+        this.store = store;
+        this.serializer = serializer;
+
+        var offlineQueue = mqttxConfig.getOfflineQueue();
+        this.offlineQueueMaxLength = offlineQueue.getMaxLength();
+        this.offlineQueueMaxBytes = offlineQueue.getMaxBytes();
+        this.overflowPolicy = offlineQueue.getOverflowPolicy();
+
+        // 过期消息清理任务
+        var purgeInterval = mqttxConfig.getMessageExpiry().getPurgeInterval().toMillis();
+        this.expiryPurgeExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "pub-msg-purge");
+            t.setDaemon(true);
+            return t;
+        });
+        this.expiryPurgeExecutor.scheduleWithFixedDelay(this::purgeExpiredMessages, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Mono<Void> save(String clientId, PubMsg pubMsg) {
+        return Mono.fromRunnable(() -> save0(clientId, pubMsg.getMessageId(), pubMsg));
+    }
+
+    @Override
+    public Mono<Void> saveInflight(String clientId, PubMsg pubMsg) {
+        return Mono.fromRunnable(() -> {
+            final var field = String.valueOf(pubMsg.getMessageId());
+            var meta = queueMeta(clientId);
+            synchronized (meta) {
+                // 在途消息不计入队列限制, 也不参与淘汰
+                meta.remove(field);
+                store.put(key(clientId), field, serializer.serialize(pubMsg));
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> saveAll(Collection<String> clientIds, PubMsg pubMsg) {
+        return Mono.fromRunnable(() -> {
+            for (var clientId : clientIds) {
+                var messageId = LocalSessionServiceImpl.nextMessageId(store, clientId);
+                save0(clientId, messageId, pubMsg.copied().setMessageId(messageId));
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> remove(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> {
+            var meta = queueMeta(clientId);
+            synchronized (meta) {
+                store.remove(key(clientId), String.valueOf(messageId));
+                meta.remove(String.valueOf(messageId));
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> clear(String clientId) {
+        return Mono.fromRunnable(() -> {
+            var meta = queueMeta(clientId);
+            synchronized (meta) {
+                store.delete(key(clientId));
+                queueMetas.remove(clientId);
+            }
+        });
+    }
+
+    @Override
+    public Flux<PubMsg> search(String clientId) {
+        return Flux.defer(() -> {
+            final var now = System.currentTimeMillis();
+            var result = new ArrayList<PubMsg>();
+            for (var e : store.entries(key(clientId))) {
+                final var pubMsg = serializer.deserialize(e.getValue(), PubMsg.class);
+                pubMsg.setMessageId(Integer.parseInt(e.getKey()));
+                if (pubMsg.isExpired(now)) {
+                    // 过期消息不再补发, 顺带清理
+                    remove(clientId, pubMsg.getMessageId()).subscribe();
+                    continue;
+                }
+                result.add(pubMsg);
+            }
+            return Flux.fromIterable(result);
+        });
+    }
+
+    @Override
+    public void destroy() {
+        expiryPurgeExecutor.shutdownNow();
+    }
+
+    /**
+     * 按离线队列限制及溢出策略保存消息
+     *
+     * @return true if message stored
+     */
+    private boolean save0(String clientId, int messageId, PubMsg pubMsg) {
+        final var field = String.valueOf(messageId);
+        final var value = serializer.serialize(pubMsg);
+        final var size = value.length;
+        final var topic = pubMsg.getTopic();
+
+        // 单条消息已超出字节数限制, 无需淘汰其它消息
+        if (offlineQueueMaxBytes > 0 && size > offlineQueueMaxBytes) {
+            BrokerMetrics.OFFLINE_DROPPED_NEWEST.incrementAndGet();
+            return false;
+        }
+
+        var meta = queueMeta(clientId);
+        synchronized (meta) {
+            // messageId 被复用, 旧消息直接覆盖
+            meta.remove(field);
+
+            // 同主题只保留最新消息
+            if (overflowPolicy == OverflowPolicy.conflate) {
+                var prev = meta.fieldOf(topic);
+                if (prev != null) {
+                    store.remove(key(clientId), prev);
+                    meta.remove(prev);
+                    BrokerMetrics.OFFLINE_CONFLATED.incrementAndGet();
+                }
+            }
+
+            while (isFull(meta, size)) {
+                if (overflowPolicy == OverflowPolicy.drop_newest || meta.sizes.isEmpty()) {
+                    BrokerMetrics.OFFLINE_DROPPED_NEWEST.incrementAndGet();
+                    log.debug("客户端[{}]离线消息队列已满, 丢弃消息: topic={}", clientId, topic);
+                    return false;
+                }
+                var eldest = meta.sizes.keySet().iterator().next();
+                store.remove(key(clientId), eldest);
+                meta.remove(eldest);
+                BrokerMetrics.OFFLINE_DROPPED_OLDEST.incrementAndGet();
+            }
+
+            store.put(key(clientId), field, value);
+            meta.add(field, size, topic);
+            return true;
+        }
+    }
+
+    private boolean isFull(QueueMeta meta, int size) {
+        return (offlineQueueMaxLength > 0 && meta.sizes.size() + 1 > offlineQueueMaxLength)
+                || (offlineQueueMaxBytes > 0 && meta.bytes + size > offlineQueueMaxBytes);
+    }
+
+    /**
+     * 获取离线队列元数据, 首次访问时从存储加载
+     */
+    private QueueMeta queueMeta(String clientId) {
+        return queueMetas.computeIfAbsent(clientId, k -> {
+            var meta = new QueueMeta();
+            for (var e : store.entries(key(clientId))) {
+                meta.add(e.getKey(), e.getValue().length, serializer.deserialize(e.getValue(), PubMsg.class).getTopic());
+            }
+            return meta;
+        });
+    }
+
+    /**
+     * 清理已过期的离线消息
+     */
+    private void purgeExpiredMessages() {
+        try {
+            final var now = System.currentTimeMillis();
+            var count = 0;
+            for (var key : store.keys(PUB_MSG_PREFIX)) {
+                var clientId = key.substring(PUB_MSG_PREFIX.length());
+                for (var e : store.entries(key)) {
+                    if (serializer.deserialize(e.getValue(), PubMsg.class).isExpired(now)) {
+                        remove(clientId, Integer.parseInt(e.getKey())).block();
+                        count++;
+                    }
+                }
+            }
+            if (count > 0) {
+                log.debug("过期离线消息清理数量: {}", count);
+            }
+        } catch (Throwable throwable) {
+            log.error(String.format("过期离线消息清理失败: %s", throwable.getMessage()), throwable);
+        }
+    }
+
+    private String key(String clientId) {
+        return PUB_MSG_PREFIX + clientId;
+    }
+
+    /**
+     * 离线队列元数据
+     */
+    private static final class QueueMeta {
+
+        /** messageId -> 消息字节数, 按写入顺序排列 */
+        private final LinkedHashMap<String, Integer> sizes = new LinkedHashMap<>();
+        /** messageId -> topic */
+        private final Map<String, String> topics = new HashMap<>();
+        private long bytes;
+
+        private void add(String field, int size, String topic) {
+            sizes.put(field, size);
+            topics.put(field, topic);
+            bytes += size;
+        }
+
+        private void remove(String field) {
+            var size = sizes.remove(field);
+            if (size != null) {
+                bytes -= size;
+                topics.remove(field);
+            }
+        }
+
+        private String fieldOf(String topic) {
+            for (var e : topics.entrySet()) {
+                if (e.getValue().equals(topic)) {
+                    return e.getKey();
+                }
+            }
+            return null;
+        }
+    }
+}
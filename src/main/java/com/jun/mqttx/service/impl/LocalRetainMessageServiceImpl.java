@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.service.IRetainMessageService;
+import com.jun.mqttx.store.LocalStore;
+import com.jun.mqttx.utils.Serializer;
+import com.jun.mqttx.utils.TopicTrie;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * 存储通过 {@link LocalStore} 实现, 订阅时通过保留消息主题前缀树 {@link TopicTrie} 查找匹配的主题
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MMAP)
+public class LocalRetainMessageServiceImpl implements IRetainMessageService {
+
+    private static final String RETAIN_KEY = "retain";
+    private final LocalStore store;
+    private final Serializer serializer;
+    private final TopicTrie retainedTopics = new TopicTrie();
+
+    public LocalRetainMessageServiceImpl(LocalStore store, Serializer serializer) {
+        this.store = store;
+        this.serializer = serializer;
+
+        for (var e : store.entries(RETAIN_KEY)) {
+            retainedTopics.add(e.getKey());
+        }
+    }
+
+    @Override
+    public Flux<PubMsg> searchListByTopicFilter(String newSubTopic) {
+        return Flux.defer(() -> Flux.fromIterable(retainedTopics.match(newSubTopic)))
+                .mapNotNull(topic -> store.get(RETAIN_KEY, topic))
+                .map(e -> serializer.deserialize(e, PubMsg.class));
+    }
+
+    @Override
+    public Mono<Void> save(String topic, PubMsg pubMsg) {
+        return Mono.fromRunnable(() -> {
+            store.put(RETAIN_KEY, topic, serializer.serialize(pubMsg));
+            retainedTopics.add(topic);
+        });
+    }
+
+    @Override
+    public Mono<Void> remove(String topic) {
+        return Mono.fromRunnable(() -> {
+            store.remove(RETAIN_KEY, topic);
+            retainedTopics.remove(topic);
+        });
+    }
+
+    @Override
+    public Mono<PubMsg> get(String topic) {
+        return Mono.fromSupplier(() -> store.get(RETAIN_KEY, topic))
+                .map(e -> serializer.deserialize(e, PubMsg.class));
+    }
+}
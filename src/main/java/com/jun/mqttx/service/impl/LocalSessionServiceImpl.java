@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.Session;
+import com.jun.mqttx.service.ISessionService;
+import com.jun.mqttx.store.LocalStore;
+import com.jun.mqttx.utils.MessageIdUtils;
+import com.jun.mqttx.utils.Serializer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+/**
+ * 会话服务, 基于 {@link LocalStore} 的单机实现
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MMAP)
+public class LocalSessionServiceImpl implements ISessionService {
+
+    private static final String SESSION_KEY = "session";
+    private static final String MESSAGE_ID_KEY = "message-id";
+    private final LocalStore store;
+    private final Serializer serializer;
+
+    public LocalSessionServiceImpl(LocalStore store, Serializer serializer) {
+        this.store = store;
+        this.serializer = serializer;
+    }
+
+    /**
+     * 递增 client 的 messageId 计数器, 与 {@link LocalPublishMessageServiceImpl} 共用
+     *
+     * @param store    {@link LocalStore}
+     * @param clientId 客户端ID
+     * @return next message id
+     */
+    static int nextMessageId(LocalStore store, String clientId) {
+        var id = store.increment(MESSAGE_ID_KEY, clientId, 1);
+        if ((id & 0xffff) == 0) {
+            id = store.increment(MESSAGE_ID_KEY, clientId, 1);
+        }
+        return MessageIdUtils.trimMessageId(id);
+    }
+
+    @Override
+    public Mono<Void> save(Session session) {
+        return Mono.fromRunnable(() -> store.put(SESSION_KEY, session.getClientId(), serializer.serialize(session)));
+    }
+
+    @Override
+    public Mono<Session> find(String clientId) {
+        return Mono.fromSupplier(() -> store.get(SESSION_KEY, clientId))
+                .map(e -> serializer.deserialize(e, Session.class));
+    }
+
+    @Override
+    public Mono<Boolean> clear(String clientId) {
+        return Mono.fromSupplier(() -> {
+            store.remove(MESSAGE_ID_KEY, clientId);
+            return store.remove(SESSION_KEY, clientId) != null;
+        });
+    }
+
+    @Override
+    public Mono<Boolean> hasKey(String clientId) {
+        return Mono.fromSupplier(() -> store.get(SESSION_KEY, clientId) != null);
+    }
+
+    @Override
+    public Mono<Integer> nextMessageId(String clientId) {
+        return Mono.fromSupplier(() -> nextMessageId(store, clientId));
+    }
+
+    /**
+     * 本地存储不存在网络往返, 直接递增计数器
+     */
+    @Override
+    public Mono<Integer> nextMessageId(Session session) {
+        return nextMessageId(session.getClientId());
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.ClientSub;
+import com.jun.mqttx.entity.ShareTopic;
+import com.jun.mqttx.service.ISubscriptionService;
+import com.jun.mqttx.store.LocalStore;
+import com.jun.mqttx.utils.TopicUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <h1>主题订阅服务</h1>
+ * <p>
+ * 单机部署, 订阅关系全部保存在内存当中; {@link StorageType#MMAP} 存储下 cleanSession = 0 会话的订阅额外写入 {@link LocalStore},
+ * 启动时加载. {@link StorageType#MEMORY} 存储没有 {@link LocalStore}, 全部会话的 client -> topics 关系均保存在内存中.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+@Service
+@ConditionalOnExpression("'${mqttx.storage.type:redis}' != '" + StorageType.REDIS + "'")
+public class LocalSubscriptionServiceImpl implements ISubscriptionService {
+    //@formatter:off
+
+    private static final String SUB_PREFIX = "sub:";
+    private static final int ASSUME_COUNT = 100_000;
+    /** {@link StorageType#MEMORY} 存储下为 null */
+    private final LocalStore store;
+    /** client -> topics 关系集合, topic 可能为共享主题. 无 {@link LocalStore} 时也包含 cleanSession = 0 的会话 */
+    private final Map<String, HashSet<String>> inMemClientTopicsMap = new ConcurrentHashMap<>(ASSUME_COUNT);
+    /** 不含通配符的全部主题 */
+    private final Set<String> noneWildcardTopics = ConcurrentHashMap.newKeySet(ASSUME_COUNT);
+    /** 包含通配符的全部主题 */
+    private final Set<String> hasWildcardTopics = ConcurrentHashMap.newKeySet(ASSUME_COUNT);
+    /** topic -> clients 映射关系集合. */
+    private final Map<String, Set<ClientSub>> topicClientsMap = new ConcurrentHashMap<>(ASSUME_COUNT);
+    /** 系统主题 -> clients map */
+    private final Map<String, ConcurrentHashMap.KeySetView<ClientSub, Boolean>> sysTopicClientsMap = new ConcurrentHashMap<>();
+
+    //@formatter:on
+
+    public LocalSubscriptionServiceImpl(ObjectProvider<LocalStore> store) {
+        this.store = store.getIfAvailable();
+
+        // 内部缓存初始化
+        initInnerCache();
+    }
+
+    @Override
+    public Mono<Void> subscribe(ClientSub clientSub) {
+        return Mono.fromRunnable(() -> {
+            final var topic = clientSub.getTopic();
+            final var clientId = clientSub.getClientId();
+            final var topicFilter = topicFilter(topic, clientSub.getShareName());
+
+            addToCache(clientSub);
+            if (clientSub.isCleanSession() || store == null) {
+                inMemClientTopicsMap.computeIfAbsent(clientId, k -> new HashSet<>()).add(topicFilter);
+            } else {
+                store.put(SUB_PREFIX + clientId, topicFilter, String.valueOf(clientSub.getQos()).getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> unsubscribe(String clientId, boolean cleanSession, List<String> topics) {
+        return Mono.fromRunnable(() -> unsubscribe0(clientId, cleanSession, topics));
+    }
+
+    @Override
+    public Flux<ClientSub> searchSubscribeClientList(String topic) {
+        var clientSubList = new ArrayList<ClientSub>();
+
+        // 1 含通配符主题集合
+        for (var t : hasWildcardTopics) {
+            if (TopicUtils.match(topic, t)) {
+                topicClientsMap.computeIfPresent(t, (k, v) -> {
+                    clientSubList.addAll(v);
+                    return v;
+                });
+            }
+        }
+
+        // 2 不含通配符主题集合
+        if (noneWildcardTopics.contains(topic)) {
+            topicClientsMap.computeIfPresent(topic, (k, v) -> {
+                clientSubList.addAll(v);
+                return v;
+            });
+        }
+
+        return Flux.fromIterable(clientSubList);
+    }
+
+    @Override
+    public Mono<Void> clearClientSubscriptions(String clientId, boolean cleanSession) {
+        return Mono.fromRunnable(() -> {
+            List<String> topics;
+            if (cleanSession || store == null) {
+                var keys = inMemClientTopicsMap.remove(clientId);
+                if (CollectionUtils.isEmpty(keys)) {
+                    return;
+                }
+                topics = new ArrayList<>(keys);
+            } else {
+                topics = store.entries(SUB_PREFIX + clientId).stream().map(Map.Entry::getKey).toList();
+                store.delete(SUB_PREFIX + clientId);
+            }
+            unsubscribe0(clientId, cleanSession, topics);
+        });
+    }
+
+    @Override
+    public Mono<Void> clearUnAuthorizedClientSub(String clientId, List<String> authorizedSub) {
+        var collect = new ArrayList<String>();
+        for (var topic : noneWildcardTopics) {
+            if (!authorizedSub.contains(topic)) {
+                collect.add(topic);
+            }
+        }
+        for (var topic : hasWildcardTopics) {
+            if (!authorizedSub.contains(topic)) {
+                collect.add(topic);
+            }
+        }
+        return Mono.when(unsubscribe(clientId, false, collect), unsubscribe(clientId, true, collect));
+    }
+
+    @Override
+    public Mono<Void> clearCleanSessionSubscriptions(Set<String> clientIds) {
+        // 本地存储不支持集群, 无需处理
+        return Mono.empty();
+    }
+
+    @Override
+    public Flux<ClientSub> searchSysTopicClients(String topic) {
+        List<ClientSub> clientSubList = new ArrayList<>();
+
+        sysTopicClientsMap.forEach((wildTopic, set) -> {
+            if (TopicUtils.match(topic, wildTopic)) {
+                clientSubList.addAll(set);
+            }
+        });
+
+        return Flux.fromIterable(clientSubList);
+    }
+
+    @Override
+    public Mono<Void> subscribeSys(ClientSub clientSub) {
+        sysTopicClientsMap.computeIfAbsent(clientSub.getTopic(), k -> ConcurrentHashMap.newKeySet()).add(clientSub);
+        return Mono.empty();
+    }
+
+    @Override
+    public Mono<Void> unsubscribeSys(String clientId, List<String> topics) {
+        for (String topic : topics) {
+            var clientSubs = sysTopicClientsMap.get(topic);
+            if (!CollectionUtils.isEmpty(clientSubs)) {
+                clientSubs.remove(ClientSub.of(clientId, 0, topic, false));
+            }
+        }
+
+        return Mono.empty();
+    }
+
+    @Override
+    public Mono<Void> clearClientSysSub(String clientId) {
+        sysTopicClientsMap.forEach((topic, clientSubs) -> clientSubs.remove(ClientSub.of(clientId, 0, topic, false)));
+        return Mono.empty();
+    }
+
+    /**
+     * 缓存初始化, 加载 cleanSession = 0 会话的订阅关系
+     */
+    private void initInnerCache() {
+        if (store == null) {
+            return;
+        }
+        log.info("开始加载缓存...");
+
+        for (var key : store.keys(SUB_PREFIX)) {
+            var clientId = key.substring(SUB_PREFIX.length());
+            for (var e : store.entries(key)) {
+                var topic = e.getKey();
+                var qos = Integer.parseInt(new String(e.getValue(), StandardCharsets.UTF_8));
+                if (TopicUtils.isShare(topic)) {
+                    ShareTopic shareTopic = TopicUtils.parseFrom(topic);
+                    addToCache(ClientSub.of(clientId, qos, shareTopic.filter(), false, shareTopic.name()));
+                } else {
+                    addToCache(ClientSub.of(clientId, qos, topic, false));
+                }
+            }
+        }
+
+        log.info("缓存加载完成.");
+    }
+
+    /**
+     * 保存订阅关系到应用缓存
+     *
+     * @param clientSub 客户端订阅信息
+     */
+    private void addToCache(ClientSub clientSub) {
+        final var topic = clientSub.getTopic();
+        topicClientsMap.compute(topic, (k, v) -> {
+            if (v == null) {
+                v = new HashSet<>();
+            }
+            v.remove(clientSub);
+            v.add(clientSub);
+            return v;
+        });
+        if (TopicUtils.isTopicContainWildcard(topic)) {
+            hasWildcardTopics.add(topic);
+        } else {
+            noneWildcardTopics.add(topic);
+        }
+    }
+
+    /**
+     * 解除订阅
+     *
+     * @param clientId     客户 id
+     * @param cleanSession clientId 关联会话 cleanSession 状态
+     * @param topics       主题列表，可能包含共享主题
+     */
+    private void unsubscribe0(String clientId, boolean cleanSession, List<String> topics) {
+        if (CollectionUtils.isEmpty(topics)) {
+            return;
+        }
+
+        for (var topicFilter : topics) {
+            var topic = topicFilter;
+            String shareName = null;
+            if (TopicUtils.isShare(topic)) {
+                ShareTopic shareTopic = TopicUtils.parseFrom(topic);
+                topic = shareTopic.filter();
+                shareName = shareTopic.name();
+            }
+            final var fixTopic = topic;
+            final var fixShareName = shareName;
+
+            topicClientsMap.computeIfPresent(fixTopic, (k, v) -> {
+                v.remove(ClientSub.of(clientId, 0, fixTopic, cleanSession, fixShareName));
+                if (v.isEmpty()) {
+                    if (TopicUtils.isTopicContainWildcard(fixTopic)) {
+                        hasWildcardTopics.remove(fixTopic);
+                    } else {
+                        noneWildcardTopics.remove(fixTopic);
+                    }
+                    return null;
+                }
+                return v;
+            });
+
+            if (!cleanSession && store != null) {
+                store.remove(SUB_PREFIX + clientId, topicFilter);
+            }
+        }
+
+        if (cleanSession || store == null) {
+            inMemClientTopicsMap.computeIfPresent(clientId, (k, v) -> {
+                topics.forEach(v::remove);
+                return v.isEmpty() ? null : v;
+            });
+        }
+    }
+
+    private String topicFilter(String topic, String shareName) {
+        if (StringUtils.hasText(shareName)) {
+            return String.format("%s/%s/%s", TopicUtils.SHARE_TOPIC, shareName, topic);
+        }
+        return topic;
+    }
+}
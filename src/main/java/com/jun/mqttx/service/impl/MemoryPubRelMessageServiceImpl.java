@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.service.IPubRelMessageService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 纯内存单机实现, 每个客户端的 messageId 集合独立保存
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Component
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MEMORY)
+public class MemoryPubRelMessageServiceImpl implements IPubRelMessageService {
+
+    /** clientId -> 入站 pubRel messageId */
+    private final Map<String, Set<Integer>> in = new ConcurrentHashMap<>();
+    /** clientId -> 出站 pubRel messageId */
+    private final Map<String, Set<Integer>> out = new ConcurrentHashMap<>();
+
+    @Override
+    public Mono<Void> saveOut(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> add(out, clientId, messageId));
+    }
+
+    @Override
+    public Mono<Void> saveIn(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> add(in, clientId, messageId));
+    }
+
+    @Override
+    public Mono<Boolean> isInMsgDup(String clientId, int messageId) {
+        return Mono.fromSupplier(() -> {
+            var messageIds = in.get(clientId);
+            return messageIds != null && messageIds.contains(messageId);
+        });
+    }
+
+    @Override
+    public Mono<Void> removeIn(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> remove(in, clientId, messageId));
+    }
+
+    @Override
+    public Mono<Void> removeOut(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> remove(out, clientId, messageId));
+    }
+
+    @Override
+    public Flux<Integer> searchOut(String clientId) {
+        return Flux.defer(() -> Flux.fromIterable(out.getOrDefault(clientId, Set.of())));
+    }
+
+    @Override
+    public Mono<Void> clear(String clientId) {
+        return Mono.fromRunnable(() -> {
+            in.remove(clientId);
+            out.remove(clientId);
+        });
+    }
+
+    private void add(Map<String, Set<Integer>> map, String clientId, int messageId) {
+        map.computeIfAbsent(clientId, k -> ConcurrentHashMap.newKeySet()).add(messageId);
+    }
+
+    private void remove(Map<String, Set<Integer>> map, String clientId, int messageId) {
+        map.computeIfPresent(clientId, (k, v) -> {
+            v.remove(messageId);
+            return v.isEmpty() ? null : v;
+        });
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.OverflowPolicy;
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.service.IPublishMessageService;
+import com.jun.mqttx.utils.BrokerMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * publish message store in memory.
+ * <p>
+ * 每个客户端一个离线队列对象, 消息以 {@link PubMsg} 对象保存, 扇出时各客户端的消息共用同一载荷数组, 无需序列化及共享载荷.
+ * 离线队列限制与 redis 实现语义一致, 消息字节数按载荷与主题长度计算; 已下发给在线客户端的消息不计入限制, 也不会被淘汰.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MEMORY)
+public class MemoryPublishMessageServiceImpl implements IPublishMessageService, DisposableBean {
+    //@formatter:off
+
+    private final MemorySessionServiceImpl sessionService;
+    /** 离线队列限制 */
+    private final int offlineQueueMaxLength;
+    private final long offlineQueueMaxBytes;
+    private final OverflowPolicy overflowPolicy;
+    /** clientId -> 离线队列 */
+    private final Map<String, ClientQueue> queues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService expiryPurgeExecutor;
+
+    //@formatter:on
+
+    public MemoryPublishMessageServiceImpl(MemorySessionServiceImpl sessionService, MqttxConfig mqttxConfig) {
+        this.sessionService = sessionService;
+
+        var offlineQueue = mqttxConfig.getOfflineQueue();
+        this.offlineQueueMaxLength = offlineQueue.getMaxLength();
+        this.offlineQueueMaxBytes = offlineQueue.getMaxBytes();
+        this.overflowPolicy = offlineQueue.getOverflowPolicy();
+
+        // 过期消息清理任务
+        var purgeInterval = mqttxConfig.getMessageExpiry().getPurgeInterval().toMillis();
+        this.expiryPurgeExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "pub-msg-purge");
+            t.setDaemon(true);
+            return t;
+        });
+        this.expiryPurgeExecutor.scheduleWithFixedDelay(this::purgeExpiredMessages, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Mono<Void> save(String clientId, PubMsg pubMsg) {
+        return Mono.fromRunnable(() -> queue(clientId).offer(clientId, pubMsg.getMessageId(), pubMsg.copied(), false));
+    }
+
+    @Override
+    public Mono<Void> saveInflight(String clientId, PubMsg pubMsg) {
+        return Mono.fromRunnable(() -> queue(clientId).offer(clientId, pubMsg.getMessageId(), pubMsg.copied(), true));
+    }
+
+    @Override
+    public Mono<Void> saveAll(Collection<String> clientIds, PubMsg pubMsg) {
+        return Mono.fromRunnable(() -> {
+            for (var clientId : clientIds) {
+                var messageId = sessionService.nextMessageId0(clientId);
+                queue(clientId).offer(clientId, messageId, pubMsg.copied().setMessageId(messageId), false);
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> remove(String clientId, int messageId) {
+        return Mono.fromRunnable(() -> {
+            var queue = queues.get(clientId);
+            if (queue != null) {
+                queue.remove(messageId);
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> clear(String clientId) {
+        return Mono.fromRunnable(() -> queues.remove(clientId));
+    }
+
+    @Override
+    public Flux<PubMsg> search(String clientId) {
+        return Flux.defer(() -> {
+            var queue = queues.get(clientId);
+            if (queue == null) {
+                return Flux.empty();
+            }
+            // 过期消息不再补发, 顺带清理
+            queue.purge(System.currentTimeMillis());
+            return Flux.fromIterable(queue.snapshot());
+        });
+    }
+
+    @Override
+    public void destroy() {
+        expiryPurgeExecutor.shutdownNow();
+    }
+
+    private ClientQueue queue(String clientId) {
+        return queues.computeIfAbsent(clientId, k -> new ClientQueue());
+    }
+
+    /**
+     * 清理已过期的离线消息
+     */
+    private void purgeExpiredMessages() {
+        try {
+            final var now = System.currentTimeMillis();
+            var count = 0;
+            for (var queue : queues.values()) {
+                count += queue.purge(now);
+            }
+            if (count > 0) {
+                log.debug("过期离线消息清理数量: {}", count);
+            }
+        } catch (Throwable throwable) {
+            log.error(String.format("过期离线消息清理失败: %s", throwable.getMessage()), throwable);
+        }
+    }
+
+    /**
+     * 单个客户端的离线队列, 方法均在队列对象上同步, 不同客户端之间无锁竞争
+     */
+    private final class ClientQueue {
+
+        /** messageId -> 消息, 按写入顺序排列 */
+        private final LinkedHashMap<Integer, PubMsg> messages = new LinkedHashMap<>();
+        /** 已下发给在线客户端、等待确认的消息 */
+        private final Set<Integer> inflight = new HashSet<>();
+        /** topic -> 该主题最新的非 in-flight 消息 messageId (conflate 策略) */
+        private final Map<String, Integer> latest = new HashMap<>();
+        /** 非 in-flight 消息总字节数 */
+        private long bytes;
+
+        /**
+         * 按离线队列限制及溢出策略保存消息, in-flight 消息总是保存
+         */
+        private synchronized void offer(String clientId, int messageId, PubMsg pubMsg, boolean isInflight) {
+            final var topic = pubMsg.getTopic();
+            final var size = size(pubMsg);
+
+            // messageId 被复用, 旧消息直接覆盖
+            remove(messageId);
+            if (isInflight) {
+                messages.put(messageId, pubMsg);
+                inflight.add(messageId);
+                return;
+            }
+
+            // 单条消息已超出字节数限制, 无需淘汰其它消息
+            if (offlineQueueMaxBytes > 0 && size > offlineQueueMaxBytes) {
+                BrokerMetrics.OFFLINE_DROPPED_NEWEST.incrementAndGet();
+                return;
+            }
+
+            // 同主题只保留最新消息
+            if (overflowPolicy == OverflowPolicy.conflate) {
+                var prev = latest.get(topic);
+                if (prev != null) {
+                    remove(prev);
+                    BrokerMetrics.OFFLINE_CONFLATED.incrementAndGet();
+                }
+            }
+
+            while (isFull(size)) {
+                var eldest = oldestQueued();
+                if (overflowPolicy == OverflowPolicy.drop_newest || eldest == null) {
+                    BrokerMetrics.OFFLINE_DROPPED_NEWEST.incrementAndGet();
+                    log.debug("客户端[{}]离线消息队列已满, 丢弃消息: topic={}", clientId, topic);
+                    return;
+                }
+                remove(eldest);
+                BrokerMetrics.OFFLINE_DROPPED_OLDEST.incrementAndGet();
+            }
+
+            messages.put(messageId, pubMsg);
+            latest.put(topic, messageId);
+            bytes += size;
+        }
+
+        private synchronized void remove(int messageId) {
+            var pubMsg = messages.remove(messageId);
+            if (pubMsg == null) {
+                return;
+            }
+            if (!inflight.remove(messageId)) {
+                bytes -= size(pubMsg);
+                latest.remove(pubMsg.getTopic(), messageId);
+            }
+        }
+
+        /**
+         * @return 移除的过期消息数量
+         */
+        private synchronized int purge(long now) {
+            var expired = new ArrayList<Integer>();
+            messages.forEach((messageId, pubMsg) -> {
+                if (pubMsg.isExpired(now)) {
+                    expired.add(messageId);
+                }
+            });
+            expired.forEach(this::remove);
+            return expired.size();
+        }
+
+        private synchronized List<PubMsg> snapshot() {
+            var result = new ArrayList<PubMsg>(messages.size());
+            messages.forEach((messageId, pubMsg) -> result.add(pubMsg.copied().setMessageId(messageId)));
+            return result;
+        }
+
+        private boolean isFull(int size) {
+            return (offlineQueueMaxLength > 0 && messages.size() - inflight.size() + 1 > offlineQueueMaxLength)
+                    || (offlineQueueMaxBytes > 0 && bytes + size > offlineQueueMaxBytes);
+        }
+
+        private Integer oldestQueued() {
+            for (var messageId : messages.keySet()) {
+                if (!inflight.contains(messageId)) {
+                    return messageId;
+                }
+            }
+            return null;
+        }
+
+        private int size(PubMsg pubMsg) {
+            var payload = pubMsg.getPayload();
+            return (payload == null ? 0 : payload.length) + pubMsg.getTopic().getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+}
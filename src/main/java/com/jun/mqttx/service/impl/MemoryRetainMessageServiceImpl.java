@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.service.IRetainMessageService;
+import com.jun.mqttx.utils.TopicTrie;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 保留消息以对象形式保存在内存中, 订阅时通过保留消息主题前缀树 {@link TopicTrie} 查找匹配的主题
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MEMORY)
+public class MemoryRetainMessageServiceImpl implements IRetainMessageService {
+
+    /** topic -> 保留消息 */
+    private final Map<String, PubMsg> retained = new ConcurrentHashMap<>();
+    private final TopicTrie retainedTopics = new TopicTrie();
+
+    @Override
+    public Flux<PubMsg> searchListByTopicFilter(String newSubTopic) {
+        return Flux.defer(() -> Flux.fromIterable(retainedTopics.match(newSubTopic)))
+                .mapNotNull(retained::get)
+                .map(PubMsg::copied);
+    }
+
+    @Override
+    public Mono<Void> save(String topic, PubMsg pubMsg) {
+        // 前缀树与消息在同一 compute 内更新, 避免并发的 save, remove 使两者不一致
+        return Mono.fromRunnable(() -> retained.compute(topic, (k, v) -> {
+            retainedTopics.add(topic);
+            return pubMsg.copied();
+        }));
+    }
+
+    @Override
+    public Mono<Void> remove(String topic) {
+        return Mono.fromRunnable(() -> retained.computeIfPresent(topic, (k, v) -> {
+            retainedTopics.remove(topic);
+            return null;
+        }));
+    }
+
+    @Override
+    public Mono<PubMsg> get(String topic) {
+        return Mono.fromSupplier(() -> retained.get(topic)).map(PubMsg::copied);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.Session;
+import com.jun.mqttx.service.ISessionService;
+import com.jun.mqttx.utils.MessageIdUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话服务, 纯内存单机实现. 会话以对象形式按 clientId 保存, 无需序列化.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.MEMORY)
+public class MemorySessionServiceImpl implements ISessionService {
+
+    /** clientId -> 会话快照 */
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    /** clientId -> messageId 计数器 */
+    private final Map<String, AtomicLong> messageIds = new ConcurrentHashMap<>();
+
+    @Override
+    public Mono<Void> save(Session session) {
+        return Mono.fromRunnable(() -> sessions.put(session.getClientId(), snapshot(session)));
+    }
+
+    @Override
+    public Mono<Session> find(String clientId) {
+        return Mono.fromSupplier(() -> sessions.get(clientId)).map(this::snapshot);
+    }
+
+    @Override
+    public Mono<Boolean> clear(String clientId) {
+        return Mono.fromSupplier(() -> {
+            messageIds.remove(clientId);
+            return sessions.remove(clientId) != null;
+        });
+    }
+
+    @Override
+    public Mono<Boolean> hasKey(String clientId) {
+        return Mono.fromSupplier(() -> sessions.containsKey(clientId));
+    }
+
+    @Override
+    public Mono<Integer> nextMessageId(String clientId) {
+        return Mono.fromSupplier(() -> nextMessageId0(clientId));
+    }
+
+    /**
+     * 内存存储不存在网络往返, 直接递增计数器
+     */
+    @Override
+    public Mono<Integer> nextMessageId(Session session) {
+        return nextMessageId(session.getClientId());
+    }
+
+    /**
+     * 递增 client 的 messageId 计数器, 与 {@link MemoryPublishMessageServiceImpl} 共用
+     *
+     * @param clientId 客户端ID
+     * @return next message id
+     */
+    int nextMessageId0(String clientId) {
+        var counter = messageIds.computeIfAbsent(clientId, k -> new AtomicLong());
+        var id = counter.incrementAndGet();
+        if ((id & 0xffff) == 0) {
+            id = counter.incrementAndGet();
+        }
+        return MessageIdUtils.trimMessageId(id);
+    }
+
+    /**
+     * 只保留会话的持久化字段, 与 redis 实现序列化后的结果一致, 避免连接期间的临时状态(租用的 messageId 区间、飞行窗口等)
+     * 被带到下一次连接.
+     */
+    private Session snapshot(Session session) {
+        var copy = Session.of(session.getClientId(), session.getCleanSession(), session.getVersion());
+        copy.setMessageId(session.getMessageId());
+        return copy;
+    }
+}
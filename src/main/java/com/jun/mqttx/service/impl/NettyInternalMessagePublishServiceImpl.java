@@ -0,0 +1,432 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.entity.InternalMessage;
+import com.jun.mqttx.service.IInternalMessagePublishService;
+import com.jun.mqttx.utils.InternalMessageCodec;
+import com.jun.mqttx.utils.PeerHandshake;
+import com.jun.mqttx.utils.Serializer;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 集群消息发布, netty 节点直连实现.
+ * <p>
+ * 与每个节点保持一条长连接, 报文格式见 {@link com.jun.mqttx.consumer.NettyInternalMessageSubscriber}. 消息先进入节点的
+ * 发送队列, 由连接所在的 event loop 批量写出后一次 flush; 连接断开后按指数退避重连, 期间的消息保留在发送队列中, 超出
+ * {@code mqttx.cluster.peer-pending-limit} 时丢弃最早的消息. 连接不可写(出站缓冲超出高水位)时停止写出, 待
+ * {@code channelWritabilityChanged} 恢复可写后继续, 积压的消息同样受发送队列上限约束.
+ * <p>
+ * 连接建立后先应答对方的 {@link PeerHandshake} 质询, 之后才开始发送消息.
+ * <p>
+ * 节点来源:
+ * <ol>
+ *     <li>静态配置 {@code mqttx.cluster.peers}</li>
+ *     <li>redis 注册中心 {@code mqttx.cluster.peer-registry-key}, 需开启 {@code mqttx.cluster.peer-registry}</li>
+ * </ol>
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+public class NettyInternalMessagePublishServiceImpl implements IInternalMessagePublishService, DisposableBean {
+
+    //@formatter:off
+    private final Serializer serializer;
+    private final String brokerId;
+    private final long reconnectMinDelay, reconnectMaxDelay;
+    private final int pendingLimit;
+    private final String secret;
+    /** brokerId -> 节点 */
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final EventLoopGroup group;
+    private final Bootstrap bootstrap;
+    /** 节点注册中心 */
+    private final ReactiveStringRedisTemplate stringRedisTemplate;
+    private final String peerRegistryKey;
+    private volatile boolean closed;
+
+    //@formatter:on
+
+    public NettyInternalMessagePublishServiceImpl(Serializer serializer, MqttxConfig mqttxConfig,
+                                                  ReactiveStringRedisTemplate stringRedisTemplate) {
+        var cluster = mqttxConfig.getCluster();
+        this.serializer = serializer;
+        this.brokerId = mqttxConfig.getBrokerId();
+        this.reconnectMinDelay = cluster.getPeerReconnectMinDelay().toMillis();
+        this.reconnectMaxDelay = cluster.getPeerReconnectMaxDelay().toMillis();
+        this.pendingLimit = cluster.getPeerPendingLimit();
+        this.secret = cluster.getPeerSecret();
+        Assert.hasText(secret, "mqttx.cluster.peer-secret can't be null");
+        Assert.isTrue(reconnectMinDelay > 0 && reconnectMinDelay <= reconnectMaxDelay, "peerReconnectMinDelay 必须大于 0 且不大于 peerReconnectMaxDelay");
+
+        bootstrap = new Bootstrap();
+        if (Epoll.isAvailable()) {
+            group = new EpollEventLoopGroup();
+            bootstrap.channel(EpollSocketChannel.class);
+        } else {
+            group = new NioEventLoopGroup();
+            bootstrap.channel(NioSocketChannel.class);
+        }
+        bootstrap
+                .group(group)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true);
+
+        // 静态节点
+        cluster.getPeers().forEach((id, address) -> addPeer(id, address, false));
+
+        // 注册中心
+        if (Boolean.TRUE.equals(cluster.getPeerRegistry())) {
+            this.stringRedisTemplate = stringRedisTemplate;
+            this.peerRegistryKey = cluster.getPeerRegistryKey();
+            Assert.hasText(peerRegistryKey, "peerRegistryKey can't be null");
+
+            var host = cluster.getPeerAdvertisedHost();
+            if (!StringUtils.hasText(host)) {
+                host = advertisedHost(StringUtils.hasText(cluster.getPeerHost()) ? cluster.getPeerHost() : mqttxConfig.getHost());
+            }
+            var self = host + ":" + cluster.getPeerPort();
+            Duration interval = cluster.getPeerRegistryRefreshInterval();
+            group.scheduleWithFixedDelay(() -> refresh(self), 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.stringRedisTemplate = null;
+            this.peerRegistryKey = null;
+        }
+    }
+
+    @Override
+    public <T> void publish(InternalMessage<T> internalMessage, String channel) {
+        byte[] frame = InternalMessageCodec.encode(internalMessage, InternalMessageEnum.ofChannel(channel), serializer);
+        for (Peer peer : peers.values()) {
+            peer.send(frame);
+        }
+    }
+
+    @Override
+    public <T> void publish(InternalMessage<T> internalMessage, InternalMessageEnum type, Collection<String> brokerIds) {
+        byte[] frame = InternalMessageCodec.encode(internalMessage, type, serializer);
+        for (String id : brokerIds) {
+            Peer peer = peers.get(id);
+            if (peer == null) {
+                log.warn("集群节点 [{}] 不存在, 消息丢弃", id);
+                continue;
+            }
+            peer.send(frame);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        closed = true;
+        if (stringRedisTemplate != null) {
+            stringRedisTemplate.opsForHash().remove(peerRegistryKey, brokerId)
+                    .onErrorResume(t -> Mono.empty())
+                    .block(Duration.ofSeconds(3));
+        }
+        peers.values().forEach(Peer::close);
+        group.shutdownGracefully();
+    }
+
+    /**
+     * 注册当前节点并同步注册中心内的节点, 注册中心移除的节点(非静态配置)同时断开连接
+     *
+     * @param self 当前节点地址
+     */
+    private void refresh(String self) {
+        stringRedisTemplate.opsForHash().put(peerRegistryKey, brokerId, self)
+                .thenMany(stringRedisTemplate.<String, String>opsForHash().entries(peerRegistryKey))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .doOnSuccess(registry -> {
+                    registry.forEach((id, address) -> {
+                        var peer = peers.get(id);
+                        if (peer == null || (peer.discovered && !peer.address.equals(address))) {
+                            addPeer(id, address, true);
+                        }
+                    });
+                    peers.forEach((id, peer) -> {
+                        if (peer.discovered && !registry.containsKey(id)) {
+                            log.info("集群节点 [{}] 已从注册中心移除", id);
+                            peers.remove(id, peer);
+                            peer.close();
+                        }
+                    });
+                })
+                .doOnError(t -> log.error(t.getMessage(), t))
+                .onErrorResume(t -> Mono.empty())
+                .subscribe();
+    }
+
+    /**
+     * 新增节点并建立连接, 已存在的同 brokerId 节点将被替换
+     *
+     * @param id         brokerId
+     * @param address    host:port
+     * @param discovered 是否由注册中心发现
+     */
+    private void addPeer(String id, String address, boolean discovered) {
+        if (closed || Objects.equals(brokerId, id)) {
+            return;
+        }
+        int i = address.lastIndexOf(':');
+        Assert.isTrue(i > 0 && i < address.length() - 1, String.format("非法的集群节点地址: %s -> %s", id, address));
+
+        var peer = new Peer(id, address, InetSocketAddress.createUnresolved(address.substring(0, i),
+                Integer.parseInt(address.substring(i + 1))), discovered);
+        var old = peers.put(id, peer);
+        if (old != null) {
+            old.close();
+        }
+        log.info("集群节点 [{}]: {}", id, address);
+        peer.connect();
+    }
+
+    /**
+     * 未指定注册地址时的本机地址
+     *
+     * @param host 监听地址
+     */
+    private static String advertisedHost(String host) {
+        if (StringUtils.hasText(host) && !"0.0.0.0".equals(host)) {
+            return host;
+        }
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            log.warn("获取本机地址失败, 使用 127.0.0.1", e);
+            return "127.0.0.1";
+        }
+    }
+
+    /**
+     * 集群节点连接
+     */
+    private final class Peer {
+
+        //@formatter:off
+        private final String id;
+        private final String address;
+        private final InetSocketAddress socketAddress;
+        private final boolean discovered;
+        /** 待发送消息帧 */
+        private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        /** 是否已提交写出任务 */
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile Channel channel;
+        private volatile boolean removed;
+        private int attempts;
+        //@formatter:on
+
+        Peer(String id, String address, InetSocketAddress socketAddress, boolean discovered) {
+            this.id = id;
+            this.address = address;
+            this.socketAddress = socketAddress;
+            this.discovered = discovered;
+        }
+
+        void connect() {
+            if (closed || removed) {
+                return;
+            }
+            // 握手未完成即断开(如共享密钥不匹配)时重连间隔持续翻倍
+            bootstrap.clone()
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel socketChannel) {
+                            socketChannel.pipeline()
+                                    .addLast(new LengthFieldBasedFrameDecoder(4 + PeerHandshake.CHALLENGE_LENGTH, 0, 4, 0, 4))
+                                    .addLast(new LengthFieldPrepender(4))
+                                    .addLast(new PeerHandler());
+                        }
+                    })
+                    .connect(socketAddress)
+                    .addListener((ChannelFutureListener) f -> {
+                        if (!f.isSuccess()) {
+                            log.warn("集群节点 [{}] 连接失败: {}", id, f.cause().getMessage());
+                            reconnect();
+                            return;
+                        }
+
+                        Channel ch = f.channel();
+                        if (closed || removed) {
+                            ch.close();
+                            return;
+                        }
+                        ch.eventLoop().schedule(() -> {
+                            if (ch.isActive() && channel != ch) {
+                                log.warn("集群节点 [{}] 握手超时", id);
+                                ch.close();
+                            }
+                        }, PeerHandshake.TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+                        ch.closeFuture().addListener(cf -> {
+                            channel = null;
+                            if (!closed && !removed) {
+                                log.warn("集群节点 [{}] 连接断开", id);
+                                reconnect();
+                            }
+                        });
+                    });
+        }
+
+        /**
+         * 握手完成, 开始发送消息
+         *
+         * @param ch 连接
+         */
+        private void ready(Channel ch) {
+            attempts = 0;
+            channel = ch;
+            log.info("集群节点 [{}] 连接成功: {}", id, address);
+            scheduleFlush(ch);
+        }
+
+        /**
+         * 指数退避重连
+         */
+        void reconnect() {
+            if (closed || removed) {
+                return;
+            }
+            long delay = Math.min(reconnectMaxDelay, reconnectMinDelay << Math.min(attempts++, 20));
+            group.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 消息帧入队, 同一 event loop 周期内入队的消息一次写出
+         *
+         * @param frame 消息帧
+         */
+        void send(byte[] frame) {
+            if (removed) {
+                return;
+            }
+            pending.offer(frame);
+            if (pendingCount.incrementAndGet() > pendingLimit && pending.poll() != null) {
+                pendingCount.decrementAndGet();
+                log.debug("集群节点 [{}] 发送队列已满, 丢弃最早的消息", id);
+            }
+
+            Channel ch = channel;
+            if (ch != null) {
+                scheduleFlush(ch);
+            }
+        }
+
+        private void scheduleFlush(Channel ch) {
+            if (flushScheduled.compareAndSet(false, true)) {
+                ch.eventLoop().execute(this::flush);
+            }
+        }
+
+        private void flush() {
+            flushScheduled.set(false);
+            Channel ch = channel;
+            if (ch == null || !ch.isActive()) {
+                return;
+            }
+            // 不可写时剩余消息留在发送队列, 恢复可写后由 channelWritabilityChanged 继续写出
+            byte[] frame;
+            while (ch.isWritable() && (frame = pending.poll()) != null) {
+                pendingCount.decrementAndGet();
+                ch.write(Unpooled.wrappedBuffer(frame), ch.voidPromise());
+            }
+            ch.flush();
+        }
+
+        void close() {
+            removed = true;
+            pending.clear();
+            Channel ch = channel;
+            if (ch != null) {
+                ch.close();
+            }
+        }
+
+        /**
+         * 节点连接处理器: 应答握手质询, 恢复可写时继续写出发送队列
+         */
+        private final class PeerHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+            /** 是否已应答质询 */
+            private boolean responded;
+
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+                if (!responded && msg.readableBytes() == PeerHandshake.CHALLENGE_LENGTH) {
+                    responded = true;
+                    ctx.writeAndFlush(Unpooled.wrappedBuffer(PeerHandshake.response(secret, ByteBufUtil.getBytes(msg))));
+                } else if (responded && channel != ctx.channel() && msg.readableBytes() == 0) {
+                    // 对方校验通过
+                    ready(ctx.channel());
+                } else {
+                    log.warn("集群节点 [{}] 非法的握手报文", id);
+                    ctx.close();
+                }
+            }
+
+            @Override
+            public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+                Channel ch = ctx.channel();
+                if (ch.isWritable() && channel == ch) {
+                    scheduleFlush(ch);
+                }
+                ctx.fireChannelWritabilityChanged();
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                log.error(String.format("集群节点 [%s] 连接异常", id), cause);
+                ctx.close();
+            }
+        }
+    }
+}
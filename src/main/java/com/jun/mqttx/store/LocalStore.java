@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.store;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单机存储, 数据结构类似 redis hash: key -> (field -> value). 同一 key 下的 field 按写入顺序排列.
+ * <p>
+ * 供 {@link com.jun.mqttx.constants.StorageType} 为非 redis 时的各业务服务使用, 实现需保证线程安全.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public interface LocalStore extends Closeable {
+
+    /**
+     * 获取 field 值
+     *
+     * @param key   键
+     * @param field 字段
+     * @return 值, 不存在时返回 null
+     */
+    byte[] get(String key, String field);
+
+    /**
+     * 获取 key 下全部 field, 按写入顺序排列
+     *
+     * @param key 键
+     * @return field -> value 列表, key 不存在时返回空列表
+     */
+    List<Map.Entry<String, byte[]>> entries(String key);
+
+    /**
+     * 保存 field 值, field 已存在时覆盖并移至末尾
+     *
+     * @param key   键
+     * @param field 字段
+     * @param value 值
+     */
+    void put(String key, String field, byte[] value);
+
+    /**
+     * 移除 field
+     *
+     * @param key   键
+     * @param field 字段
+     * @return 被移除的值, 不存在时返回 null
+     */
+    byte[] remove(String key, String field);
+
+    /**
+     * 移除 key 及其全部 field
+     *
+     * @param key 键
+     */
+    void delete(String key);
+
+    /**
+     * 原子递增 field 值, 值以 8 字节 long 保存
+     *
+     * @param key   键
+     * @param field 字段
+     * @param delta 增量
+     * @return 递增后的值
+     */
+    long increment(String key, String field, long delta);
+
+    /**
+     * 返回以 prefix 开头的全部 key
+     *
+     * @param prefix key 前缀
+     * @return key 列表
+     */
+    List<String> keys(String prefix);
+}
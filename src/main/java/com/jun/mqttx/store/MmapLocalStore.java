@@ -0,0 +1,579 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.store;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的 {@link LocalStore}, 数据以分段追加日志的形式写入磁盘, 内存中只保留 key -> field -> 日志位置 索引.
+ * <p>
+ * 日志记录格式:
+ * <pre>
+ * | length(4) | crc32(4) | op(1) | keyLen(2) | key | fieldLen(2) | field | valueLen(4) | value |
+ * </pre>
+ * length 为 crc32 之后的字节数, length == 0 表示日志段结束. keyLen, fieldLen 为无符号数, key 与 field 的 UTF-8 编码
+ * 均不能超过 65535 字节. 三类操作:
+ * <ol>
+ *     <li>PUT: 写入 field</li>
+ *     <li>REMOVE: 移除 field</li>
+ *     <li>DELETE: 移除 key</li>
+ * </ol>
+ * <ul>
+ *     <li>崩溃恢复: 启动时按编号顺序回放全部日志段重建索引, 日志段中 crc 校验失败的尾部记录(写入中断)被截断, 之后的日志段
+ *     继续回放</li>
+ *     <li>刷盘: 写入即进入 page cache, 进程崩溃不丢数据; 按 flushInterval 定时在锁外 force 到磁盘</li>
+ *     <li>压缩: 失效记录(被覆盖或移除)占比超过 compactThreshold 时, 将全部有效记录重写到新日志段, 重写成功后切换索引并删除
+ *     旧日志段. 重写期间不持有锁, 读写不受影响</li>
+ * </ul>
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+public class MmapLocalStore implements LocalStore {
+    //@formatter:off
+
+    private static final String SUFFIX = ".log";
+    private static final byte PUT = 1, REMOVE = 2, DELETE = 3;
+    /** length + crc32 */
+    private static final int RECORD_HEADER = 8;
+    /** key, field 最大字节数 */
+    private static final int MAX_NAME_LENGTH = 0xffff;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final double compactThreshold;
+    private final ScheduledExecutorService scheduler;
+    /** key -> field -> 日志位置, 按写入顺序排列 */
+    private Map<String, LinkedHashMap<String, Location>> index = new HashMap<>();
+    private List<Segment> segments = new ArrayList<>();
+    /** 当前写入的日志段 */
+    private Segment active;
+    /** 已写满但尚未刷盘的日志段 */
+    private final List<Segment> sealed = new ArrayList<>();
+    /** 保证同一时刻只有一个压缩任务 */
+    private final Object compactLock = new Object();
+    /** 下一个日志段编号, 单调递增 */
+    private long nextSegmentId;
+    /** 全部日志记录字节数 */
+    private long totalBytes;
+    /** 有效日志记录字节数 */
+    private long liveBytes;
+
+    //@formatter:on
+
+    /**
+     * 打开存储目录并回放日志
+     *
+     * @param dir              存储目录
+     * @param segmentSize      单个日志段大小
+     * @param flushInterval    刷盘间隔
+     * @param compactInterval  压缩检查间隔
+     * @param compactThreshold 触发压缩的失效记录占比
+     */
+    public MmapLocalStore(Path dir, int segmentSize, Duration flushInterval, Duration compactInterval, double compactThreshold)
+            throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.compactThreshold = compactThreshold;
+        Files.createDirectories(dir);
+
+        recover();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "mmap-store");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compactIfNecessary, compactInterval.toMillis(), compactInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized byte[] get(String key, String field) {
+        var fields = index.get(key);
+        if (fields == null) {
+            return null;
+        }
+        var location = fields.get(field);
+        return location == null ? null : location.read();
+    }
+
+    @Override
+    public synchronized List<Map.Entry<String, byte[]>> entries(String key) {
+        var fields = index.get(key);
+        if (fields == null) {
+            return List.of();
+        }
+        var result = new ArrayList<Map.Entry<String, byte[]>>(fields.size());
+        fields.forEach((field, location) -> result.add(Map.entry(field, location.read())));
+        return result;
+    }
+
+    @Override
+    public synchronized void put(String key, String field, byte[] value) {
+        var location = append(PUT, key, field, value);
+        var previous = index.computeIfAbsent(key, k -> new LinkedHashMap<>()).remove(field);
+        index.get(key).put(field, location);
+        liveBytes += location.recordLength;
+        if (previous != null) {
+            liveBytes -= previous.recordLength;
+        }
+    }
+
+    @Override
+    public synchronized byte[] remove(String key, String field) {
+        var fields = index.get(key);
+        if (fields == null || !fields.containsKey(field)) {
+            return null;
+        }
+        append(REMOVE, key, field, null);
+        var previous = fields.remove(field);
+        if (fields.isEmpty()) {
+            index.remove(key);
+        }
+        liveBytes -= previous.recordLength;
+        return previous.read();
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        var fields = index.remove(key);
+        if (fields == null) {
+            return;
+        }
+        append(DELETE, key, "", null);
+        for (var location : fields.values()) {
+            liveBytes -= location.recordLength;
+        }
+    }
+
+    @Override
+    public synchronized long increment(String key, String field, long delta) {
+        var bytes = get(key, field);
+        var value = (bytes == null ? 0 : ByteBuffer.wrap(bytes).getLong()) + delta;
+        put(key, field, ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+        return value;
+    }
+
+    @Override
+    public synchronized List<String> keys(String prefix) {
+        var result = new ArrayList<String>();
+        for (var key : index.keySet()) {
+            if (key.startsWith(prefix)) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        // 等待进行中的压缩完成
+        synchronized (compactLock) {
+            synchronized (this) {
+                flush();
+                for (var segment : segments) {
+                    segment.close();
+                }
+                segments = new ArrayList<>();
+                active = null;
+            }
+        }
+    }
+
+    /**
+     * 将已写满及当前写入的日志段刷入磁盘. 锁内只获取待刷盘的日志段, force 在锁外执行, 不阻塞读写.
+     */
+    public void flush() {
+        List<Segment> dirty;
+        synchronized (this) {
+            dirty = new ArrayList<>(sealed);
+            sealed.clear();
+            if (active != null) {
+                dirty.add(active);
+            }
+        }
+        for (var segment : dirty) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * 失效记录占比超过阈值时压缩
+     */
+    public void compactIfNecessary() {
+        synchronized (compactLock) {
+            try {
+                boolean necessary;
+                synchronized (this) {
+                    necessary = segments.size() > 1 && totalBytes > 0 && 1 - (double) liveBytes / totalBytes > compactThreshold;
+                }
+                if (necessary) {
+                    compact();
+                }
+            } catch (Throwable throwable) {
+                log.error(String.format("mmap 存储压缩失败: %s", throwable.getMessage()), throwable);
+            }
+        }
+    }
+
+    /**
+     * 将全部有效记录重写到新日志段, 然后删除旧日志段. 分三步, 只有第一步和第三步持有锁:
+     * <ol>
+     *     <li>快照: 复制索引, 并切换到新的写入日志段. 为重写预留编号区间, 新写入日志段的编号位于区间之后, 因此按编号回放时
+     *     重写结果总在旧日志段之后、压缩期间的写入之前</li>
+     *     <li>重写: 将快照中的记录写入预留编号的日志段并刷盘, 期间旧日志段不再被写入</li>
+     *     <li>切换: 索引中仍指向快照位置的 field 改为指向重写后的位置, 压缩期间被覆盖或移除的 field 保持不变; 随后在锁外删除
+     *     旧日志段</li>
+     * </ol>
+     * 任意时刻崩溃, 回放 旧日志段 -> 重写日志段(可能不完整) -> 压缩期间的日志段 都得到一致的结果. 重写失败时删除新日志段,
+     * 当前状态不受影响.
+     */
+    private void compact() throws IOException {
+        var start = System.currentTimeMillis();
+
+        // 1. 快照
+        List<Live> snapshot;
+        List<Segment> oldSegments;
+        long firstId;
+        long before;
+        synchronized (this) {
+            snapshot = new ArrayList<>();
+            index.forEach((key, fields) -> fields.forEach((field, location) -> snapshot.add(new Live(key, field, location))));
+            oldSegments = List.copyOf(segments);
+            before = totalBytes;
+            // 每个新日志段至少包含一条记录, 预留的编号足够使用
+            firstId = nextSegmentId;
+            nextSegmentId += Math.max(snapshot.size(), 1);
+            roll(0);
+        }
+
+        // 2. 重写
+        var newSegments = new ArrayList<Segment>();
+        var newLocations = new ArrayList<Location>(snapshot.size());
+        var nextId = firstId;
+        Segment segment = null;
+        try {
+            for (var live : snapshot) {
+                var value = live.location.read();
+                var body = encode(PUT, live.key, live.field, value);
+                var recordLength = RECORD_HEADER + body.length;
+                if (segment == null || segment.remaining() < recordLength + 4) {
+                    segment = Segment.open(segmentPath(nextId++), Math.max(segmentSize, recordLength + 4));
+                    newSegments.add(segment);
+                }
+                newLocations.add(write(segment, body, value.length));
+            }
+            for (var s : newSegments) {
+                s.buffer.force();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (var s : newSegments) {
+                Files.deleteIfExists(s.path);
+            }
+            throw e;
+        }
+
+        // 3. 切换
+        synchronized (this) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                var live = snapshot.get(i);
+                var fields = index.get(live.key);
+                if (fields != null && fields.get(live.field) == live.location) {
+                    fields.put(live.field, newLocations.get(i));
+                }
+            }
+            var current = new ArrayList<Segment>(newSegments);
+            current.addAll(segments.subList(oldSegments.size(), segments.size()));
+            segments = current;
+            sealed.removeAll(oldSegments);
+            for (var s : oldSegments) {
+                totalBytes -= s.position;
+            }
+            for (var s : newSegments) {
+                totalBytes += s.position;
+            }
+        }
+
+        for (var s : oldSegments) {
+            Files.deleteIfExists(s.path);
+        }
+        log.info("mmap 存储压缩完成: {} -> {} bytes, 耗时 {}ms", before, totalBytes, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 追加日志记录
+     *
+     * @return 记录位置
+     */
+    private Location append(byte op, String key, String field, byte[] value) {
+        var v = value == null ? new byte[0] : value;
+        var body = encode(op, key, field, v);
+        var recordLength = RECORD_HEADER + body.length;
+
+        // 保留 4 字节结束标记
+        if (active == null || active.remaining() < recordLength + 4) {
+            roll(recordLength + 4);
+        }
+
+        totalBytes += recordLength;
+        return write(active, body, v.length);
+    }
+
+    /**
+     * 编码日志记录体
+     *
+     * @throws IllegalArgumentException key 或 field 超过 {@link #MAX_NAME_LENGTH} 字节
+     */
+    private static byte[] encode(byte op, String key, String field, byte[] value) {
+        var k = key.getBytes(StandardCharsets.UTF_8);
+        var f = field.getBytes(StandardCharsets.UTF_8);
+        if (k.length > MAX_NAME_LENGTH || f.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException(String.format("key 或 field 超过 %d 字节: keyLen=%d, fieldLen=%d",
+                    MAX_NAME_LENGTH, k.length, f.length));
+        }
+        return ByteBuffer.allocate(1 + 2 + k.length + 2 + f.length + 4 + value.length)
+                .put(op)
+                .putShort((short) k.length).put(k)
+                .putShort((short) f.length).put(f)
+                .putInt(value.length).put(value)
+                .array();
+    }
+
+    /**
+     * 将日志记录写入日志段, 调用方保证剩余空间足够
+     *
+     * @param segment     日志段
+     * @param body        记录体
+     * @param valueLength 值长度
+     * @return 值的位置
+     */
+    private static Location write(Segment segment, byte[] body, int valueLength) {
+        var crc = new CRC32();
+        crc.update(body);
+
+        var offset = segment.position;
+        var buffer = segment.buffer;
+        var recordLength = RECORD_HEADER + body.length;
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.put(offset + RECORD_HEADER, body);
+        // length 最后写入, 保证回放时不会读到不完整的记录
+        buffer.putInt(offset, body.length);
+        segment.position += recordLength;
+
+        return new Location(segment, offset + recordLength - valueLength, valueLength, recordLength);
+    }
+
+    /**
+     * 切换到新的写入日志段, 旧的写入日志段等待下一次刷盘
+     *
+     * @param minSize 日志段最小大小
+     */
+    private void roll(int minSize) {
+        try {
+            var segment = Segment.open(segmentPath(nextSegmentId++), Math.max(segmentSize, minSize));
+            if (active != null) {
+                sealed.add(active);
+            }
+            active = segment;
+            segments.add(segment);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return dir.resolve(String.format("%020d%s", id, SUFFIX));
+    }
+
+    /**
+     * 回放日志段, 重建索引
+     */
+    private void recover() throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.list(dir)) {
+            paths = stream.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+
+        for (int i = 0; i < paths.size(); i++) {
+            var path = paths.get(i);
+            var name = path.getFileName().toString();
+            nextSegmentId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1;
+            var segment = Segment.open(path, -1);
+            segments.add(segment);
+            active = segment;
+
+            var buffer = segment.buffer;
+            var position = 0;
+            while (position + RECORD_HEADER <= segment.capacity()) {
+                var bodyLength = buffer.getInt(position);
+                if (bodyLength <= 0 || position + RECORD_HEADER + bodyLength > segment.capacity()) {
+                    break;
+                }
+                var body = new byte[bodyLength];
+                buffer.get(position + RECORD_HEADER, body);
+                var crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    log.warn("mmap 存储日志段 {} 在 {} 处校验失败, 丢弃之后的记录", path, position);
+                    break;
+                }
+                replay(segment, position, ByteBuffer.wrap(body));
+                position += RECORD_HEADER + bodyLength;
+                totalBytes += RECORD_HEADER + bodyLength;
+            }
+
+            // 清理不完整的尾部记录
+            for (int j = position; j < Math.min(segment.capacity(), position + RECORD_HEADER); j++) {
+                buffer.put(j, (byte) 0);
+            }
+            segment.position = position;
+        }
+        log.info("mmap 存储加载完成: 日志段 {} 个, key {} 个, 有效数据 {}/{} bytes", segments.size(), index.size(), liveBytes, totalBytes);
+    }
+
+    private void replay(Segment segment, int position, ByteBuffer body) {
+        var recordLength = RECORD_HEADER + body.remaining();
+        var op = body.get();
+        var k = new byte[body.getShort() & 0xffff];
+        body.get(k);
+        var f = new byte[body.getShort() & 0xffff];
+        body.get(f);
+        var valueLength = body.getInt();
+        var key = new String(k, StandardCharsets.UTF_8);
+        var field = new String(f, StandardCharsets.UTF_8);
+
+        switch (op) {
+            case PUT -> {
+                var fields = index.computeIfAbsent(key, t -> new LinkedHashMap<>());
+                var previous = fields.remove(field);
+                if (previous != null) {
+                    liveBytes -= previous.recordLength;
+                }
+                fields.put(field, new Location(segment, position + recordLength - valueLength, valueLength, recordLength));
+                liveBytes += recordLength;
+            }
+            case REMOVE -> {
+                var fields = index.get(key);
+                if (fields != null) {
+                    var previous = fields.remove(field);
+                    if (previous != null) {
+                        liveBytes -= previous.recordLength;
+                    }
+                    if (fields.isEmpty()) {
+                        index.remove(key);
+                    }
+                }
+            }
+            case DELETE -> {
+                var fields = index.remove(key);
+                if (fields != null) {
+                    for (var location : fields.values()) {
+                        liveBytes -= location.recordLength;
+                    }
+                }
+            }
+            default -> log.warn("mmap 存储日志段 {} 在 {} 处存在未知操作: {}", segment.path, position, op);
+        }
+    }
+
+    /**
+     * 日志段
+     */
+    private static final class Segment {
+
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        /** 写入位置 */
+        private int position;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        /**
+         * 打开日志段
+         *
+         * @param path 文件路径
+         * @param size 新建日志段的大小, 小于 0 时按文件现有大小打开
+         */
+        private static Segment open(Path path, int size) throws IOException {
+            // 文件关闭后映射依然有效
+            try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+                if (size > 0) {
+                    file.setLength(size);
+                }
+                return new Segment(path, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length()));
+            }
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+
+        private int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        private void close() {
+            buffer.force();
+        }
+    }
+
+    /**
+     * 压缩快照中的有效记录
+     */
+    private record Live(String key, String field, Location location) {
+    }
+
+    /**
+     * 值在日志段中的位置
+     *
+     * @param segment      日志段
+     * @param offset       值偏移量
+     * @param length       值长度
+     * @param recordLength 所在记录的总长度
+     */
+    private record Location(Segment segment, int offset, int length, int recordLength) {
+
+        private byte[] read() {
+            var bytes = new byte[length];
+            segment.buffer.get(offset, bytes);
+            return bytes;
+        }
+    }
+}
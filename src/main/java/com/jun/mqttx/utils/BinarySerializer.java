@@ -0,0 +1,489 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import com.jun.mqttx.entity.*;
+import com.jun.mqttx.exception.SerializeException;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 手写的紧凑二进制序列化实现, 仅支持 broker 内部需要持久化或集群传输的对象:
+ * {@link PubMsg}, {@link Session}, {@link InternalMessage}, {@link ClientSubOrUnsubMsg}, {@link RetainTopicMsg},
+ * {@link Authentication}, {@link ClientRouteMsg}, {@link TopicFilterRouteMsg} 及 {@link String}.
+ * <p>
+ * 格式:
+ * <pre>
+ * | version(1) | object |
+ * object: | type(1) | length(varint) | fields... |
+ * </pre>
+ * 字段按固定顺序写入, 不写字段名及类名. 整数采用 varint 编码, 字符串及字节数组以 (长度 + 1) 作为前缀, 0 表示 null.
+ * 对象长度为最短的 varint 编码.
+ * <p>
+ * 兼容性: 新增字段只能追加在对象末尾. 读取时对象剩余字节不足则新字段取默认值(旧数据), 读完已知字段后仍有剩余字节则跳过
+ * (新版本写入的数据), 因此新旧版本 broker 可以共存于同一集群.
+ * <p>
+ * 序列化使用线程私有的缓冲区, 除结果数组外不产生额外分配. 反序列化时所有长度均按当前对象的剩余字节校验, 数据损坏或被截断时
+ * 抛出 {@link SerializeException}, 不会按错误的长度分配内存.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public class BinarySerializer implements Serializer {
+    //@formatter:off
+
+    /** 格式版本 */
+    private static final byte VERSION = 1;
+    private static final byte STRING = 1, PUB_MSG = 2, SESSION = 3, INTERNAL_MESSAGE = 4, CLIENT_SUB_OR_UNSUB = 5,
+            RETAIN_TOPIC = 6, AUTHENTICATION = 7, CLIENT_ROUTE = 8,
+            TOPIC_FILTER_ROUTE = 9;
+    private static final int INITIAL_CAPACITY = 256;
+    /** 超出此容量的缓冲区使用后不再保留, 避免个别大报文长期占用内存 */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    /** PubMsg 标志位 */
+    private static final int RETAIN = 1, WILL_FLAG = 1 << 1, DUP = 1 << 2, PAYLOAD_SHARABLE = 1 << 3;
+
+    private final FastThreadLocal<Writer> writers = new FastThreadLocal<>() {
+        @Override
+        protected Writer initialValue() {
+            return new Writer();
+        }
+    };
+
+    //@formatter:on
+
+    @Override
+    public byte[] serialize(Object target) {
+        var w = writers.get();
+        try {
+            w.writeByte(VERSION);
+            writeObject(w, target);
+            return w.toByteArray();
+        } finally {
+            w.reset();
+        }
+    }
+
+    @Override
+    public <T> T deserialize(byte[] bytes, Class<T> clazz) {
+        var r = new Reader(bytes);
+        var version = r.readByte();
+        if (version != VERSION) {
+            throw new SerializeException("不支持的序列化格式版本: " + version);
+        }
+        var result = readObject(r);
+        if (result != null && !clazz.isInstance(result)) {
+            throw new SerializeException(String.format("类型不匹配, 期望 %s, 实际 %s", clazz.getName(), result.getClass().getName()));
+        }
+        return clazz.cast(result);
+    }
+
+    private void writeObject(Writer w, Object target) {
+        if (target == null) {
+            w.writeByte(0);
+            return;
+        }
+
+        byte type;
+        if (target instanceof String) {
+            type = STRING;
+        } else if (target instanceof PubMsg) {
+            type = PUB_MSG;
+        } else if (target instanceof Session) {
+            type = SESSION;
+        } else if (target instanceof InternalMessage) {
+            type = INTERNAL_MESSAGE;
+        } else if (target instanceof ClientSubOrUnsubMsg) {
+            type = CLIENT_SUB_OR_UNSUB;
+        } else if (target instanceof RetainTopicMsg) {
+            type = RETAIN_TOPIC;
+        } else if (target instanceof Authentication) {
+            type = AUTHENTICATION;
+        } else if (target instanceof ClientRouteMsg) {
+            type = CLIENT_ROUTE;
+        } else if (target instanceof TopicFilterRouteMsg) {
+            type = TOPIC_FILTER_ROUTE;
+        } else {
+            throw new SerializeException("不支持的序列化类型: " + target.getClass().getName());
+        }
+        w.writeByte(type);
+
+        // 预留 1 字节长度, 写完字段后回填
+        w.ensure(1);
+        var lengthIndex = w.position;
+        w.position += 1;
+        var start = w.position;
+        switch (type) {
+            case STRING -> w.writeString((String) target);
+            case PUB_MSG -> writePubMsg(w, (PubMsg) target);
+            case SESSION -> writeSession(w, (Session) target);
+            case INTERNAL_MESSAGE -> {
+                var im = (InternalMessage<?>) target;
+                writeObject(w, im.getData());
+                w.writeVarLong(im.getTimestamp());
+                w.writeString(im.getBrokerId());
+            }
+            case CLIENT_SUB_OR_UNSUB -> {
+                var msg = (ClientSubOrUnsubMsg) target;
+                w.writeString(msg.getClientId());
+                w.writeVarInt(msg.getQos());
+                w.writeString(msg.getTopic());
+                w.writeByte(msg.isCleanSession() ? 1 : 0);
+                w.writeStrings(msg.getTopics());
+                w.writeVarInt(msg.getType());
+            }
+            case RETAIN_TOPIC -> {
+                var msg = (RetainTopicMsg) target;
+                w.writeString(msg.getTopic());
+                w.writeVarInt(msg.getType());
+            }
+            case CLIENT_ROUTE -> {
+                var msg = (ClientRouteMsg) target;
+                w.writeString(msg.getClientId());
+                w.writeVarInt(msg.getType());
+            }
+            case TOPIC_FILTER_ROUTE -> {
+                var msg = (TopicFilterRouteMsg) target;
+                w.writeString(msg.getTopicFilter());
+                w.writeVarInt(msg.getType());
+            }
+            default -> {
+                var auth = (Authentication) target;
+                w.writeString(auth.getClientId());
+                w.writeStrings(auth.getAuthorizedSub());
+                w.writeStrings(auth.getAuthorizedPub());
+            }
+        }
+        w.writeLength(lengthIndex, w.position - start);
+    }
+
+    private Object readObject(Reader r) {
+        var type = r.readByte();
+        if (type == 0) {
+            return null;
+        }
+
+        var length = r.readLength();
+        var end = r.position + length;
+        var outerLimit = r.limit;
+        r.limit = end;
+        Object result = switch (type) {
+            case STRING -> r.readString();
+            case PUB_MSG -> readPubMsg(r);
+            case SESSION -> readSession(r);
+            case INTERNAL_MESSAGE -> {
+                var im = new InternalMessage<>();
+                im.setData(readObject(r));
+                im.setTimestamp(r.readVarLong());
+                im.setBrokerId(r.readString());
+                yield im;
+            }
+            case CLIENT_SUB_OR_UNSUB -> {
+                var msg = new ClientSubOrUnsubMsg();
+                msg.setClientId(r.readString());
+                msg.setQos(r.readVarInt());
+                msg.setTopic(r.readString());
+                msg.setCleanSession(r.readByte() == 1);
+                msg.setTopics(r.readStrings());
+                msg.setType(r.readVarInt());
+                yield msg;
+            }
+            case RETAIN_TOPIC -> new RetainTopicMsg(r.readString(), r.readVarInt());
+            case CLIENT_ROUTE -> new ClientRouteMsg(r.readString(), r.readVarInt());
+            case TOPIC_FILTER_ROUTE -> new TopicFilterRouteMsg(r.readString(), r.readVarInt());
+            case AUTHENTICATION -> {
+                var auth = Authentication.of(r.readString());
+                auth.setAuthorizedSub(r.readStrings());
+                auth.setAuthorizedPub(r.readStrings());
+                yield auth;
+            }
+            default -> throw new SerializeException("未知的序列化类型: " + type);
+        };
+
+        // 跳过新版本追加的字段
+        r.position = end;
+        r.limit = outerLimit;
+        return result;
+    }
+
+    private void writePubMsg(Writer w, PubMsg pubMsg) {
+        int flags = 0;
+        if (pubMsg.isRetain()) {
+            flags |= RETAIN;
+        }
+        if (pubMsg.isWillFlag()) {
+            flags |= WILL_FLAG;
+        }
+        if (pubMsg.isDup()) {
+            flags |= DUP;
+        }
+        if (pubMsg.isPayloadSharable()) {
+            flags |= PAYLOAD_SHARABLE;
+        }
+        w.writeByte(flags);
+        w.writeByte(pubMsg.getQoS());
+        w.writeVarInt(pubMsg.getMessageId());
+        w.writeString(pubMsg.getTopic());
+        w.writeString(pubMsg.getUuid());
+        w.writeString(pubMsg.getAppointedClientId());
+        w.writeVarLong(pubMsg.getExpireAt());
+        w.writeBytes(pubMsg.getPayload());
+    }
+
+    private PubMsg readPubMsg(Reader r) {
+        var flags = r.readByte();
+        return new PubMsg()
+                .setRetain((flags & RETAIN) != 0)
+                .setWillFlag((flags & WILL_FLAG) != 0)
+                .setDup((flags & DUP) != 0)
+                .setPayloadSharable((flags & PAYLOAD_SHARABLE) != 0)
+                .setQoS(r.readByte())
+                .setMessageId(r.readVarInt())
+                .setTopic(r.readString())
+                .setUuid(r.readString())
+                .setAppointedClientId(r.readString())
+                .setExpireAt(r.readVarLong())
+                .setPayload(r.readBytes());
+    }
+
+    private void writeSession(Writer w, Session session) {
+        w.writeString(session.getClientId());
+        w.writeByte(Boolean.TRUE.equals(session.getCleanSession()) ? 1 : 0);
+        w.writeByte(session.getVersion() == null ? 0 : session.getVersion().protocolLevel());
+        // messageId 初始值为 -1
+        w.writeVarLong(session.getMessageId() + 1L);
+    }
+
+    private Session readSession(Reader r) {
+        var clientId = r.readString();
+        var cleanSession = r.readByte() == 1;
+        var level = (byte) r.readByte();
+        MqttVersion version = null;
+        for (var v : MqttVersion.values()) {
+            if (v.protocolLevel() == level) {
+                version = v;
+                break;
+            }
+        }
+        var session = Session.of(clientId, cleanSession, version);
+        session.setMessageId((int) (r.readVarLong() - 1));
+        return session;
+    }
+
+    /**
+     * 可复用的写缓冲区
+     */
+    private static final class Writer {
+
+        private byte[] buf = new byte[INITIAL_CAPACITY];
+        private int position;
+
+        private void ensure(int n) {
+            if (position + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, position + n));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[position++] = (byte) b;
+        }
+
+        private void writeVarInt(int v) {
+            writeVarLong(v & 0xffffffffL);
+        }
+
+        private void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[position++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[position++] = (byte) v;
+        }
+
+        /**
+         * 回填对象长度. index 处预留了 1 字节, 长度的 varint 编码超过 1 字节时将对象字段整体后移
+         *
+         * @param index  预留的长度位置
+         * @param length 对象字段的字节数
+         */
+        private void writeLength(int index, int length) {
+            int size = 1;
+            for (int v = length >>> 7; v != 0; v >>>= 7) {
+                size++;
+            }
+            if (size > 1) {
+                ensure(size - 1);
+                System.arraycopy(buf, index + 1, buf, index + size, length);
+                position += size - 1;
+            }
+            for (int v = length; ; v >>>= 7) {
+                if ((v & ~0x7f) == 0) {
+                    buf[index++] = (byte) v;
+                    return;
+                }
+                buf[index++] = (byte) ((v & 0x7f) | 0x80);
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            if (bytes == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void writeString(String s) {
+            writeBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeStrings(List<String> list) {
+            if (list == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(list.size() + 1);
+            for (var s : list) {
+                writeString(s);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, position);
+        }
+
+        private void reset() {
+            position = 0;
+            if (buf.length > MAX_RETAINED_CAPACITY) {
+                buf = new byte[INITIAL_CAPACITY];
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] buf;
+        private int position;
+        /** 当前对象的结束位置 */
+        private int limit;
+
+        private Reader(byte[] buf) {
+            this.buf = buf;
+            this.limit = buf.length;
+        }
+
+        /**
+         * 对象已无剩余字节时(旧版本数据), 新增字段取默认值
+         */
+        private boolean exhausted() {
+            return position >= limit;
+        }
+
+        private int readByte() {
+            if (exhausted()) {
+                return 0;
+            }
+            return buf[position++] & 0xff;
+        }
+
+        private int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        private long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64 && !exhausted(); shift += 7) {
+                byte b = buf[position++];
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 读取长度前缀并按当前对象的剩余字节校验
+         *
+         * @return 长度
+         * @throws SerializeException 长度为负或超出剩余字节
+         */
+        private int readLength() {
+            var n = readVarLong();
+            if (n < 0 || n > limit - position) {
+                throw new SerializeException(String.format("长度非法: %d, 剩余 %d 字节", n, limit - position));
+            }
+            return (int) n;
+        }
+
+        /**
+         * 读取 (长度 + 1) 前缀
+         *
+         * @return 长度 + 1, 0 表示 null
+         */
+        private int readNullableLength() {
+            var n = readVarLong();
+            if (n < 0 || n - 1 > limit - position) {
+                throw new SerializeException(String.format("长度非法: %d, 剩余 %d 字节", n - 1, limit - position));
+            }
+            return (int) n;
+        }
+
+        private byte[] readBytes() {
+            var n = readNullableLength();
+            if (n == 0) {
+                return null;
+            }
+            var bytes = Arrays.copyOfRange(buf, position, position + n - 1);
+            position += n - 1;
+            return bytes;
+        }
+
+        private String readString() {
+            var n = readNullableLength();
+            if (n == 0) {
+                return null;
+            }
+            var s = new String(buf, position, n - 1, StandardCharsets.UTF_8);
+            position += n - 1;
+            return s;
+        }
+
+        private List<String> readStrings() {
+            // 每个元素至少占 1 字节, 元素数量同样不能超出剩余字节
+            var n = readNullableLength();
+            if (n == 0) {
+                return null;
+            }
+            var list = new ArrayList<String>(n - 1);
+            for (int i = 1; i < n; i++) {
+                list.add(readString());
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * broker 运行指标, 随 {@link TopicUtils#BROKER_STATUS} 系统主题定时发布.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public final class BrokerMetrics {
+    //@formatter:off
+
+    /** 离线队列溢出时按 drop_oldest 策略丢弃的消息数量 */
+    public static final AtomicLong OFFLINE_DROPPED_OLDEST = new AtomicLong(0);
+    /** 离线队列溢出时按 drop_newest 策略丢弃(未保存)的消息数量 */
+    public static final AtomicLong OFFLINE_DROPPED_NEWEST = new AtomicLong(0);
+    /** 离线队列按 conflate 策略被同主题新消息替换的消息数量 */
+    public static final AtomicLong OFFLINE_CONFLATED = new AtomicLong(0);
+    /** 共享载荷本地缓存命中次数 */
+    public static final AtomicLong PAYLOAD_CACHE_HITS = new AtomicLong(0);
+    /** 共享载荷本地缓存未命中(回源 redis)次数 */
+    public static final AtomicLong PAYLOAD_CACHE_MISSES = new AtomicLong(0);
+    /** 共享载荷本地缓存因容量限制淘汰的条目数量 */
+    public static final AtomicLong PAYLOAD_CACHE_EVICTIONS = new AtomicLong(0);
+
+    //@formatter:on
+
+    private BrokerMetrics() {
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 集群消息微批处理器.
+ * <p>
+ * 按 channel 累积消息帧, 数量达到 maxSize 或首条消息等待超过 maxDelay 时合并为一个批量帧
+ * ({@link InternalMessageCodec#encodeBatch(List)}) 发送. 发送在 channel 对应的锁内执行, 同一 channel 的消息保持发送顺序.
+ *
+ * @param <K> channel 类别, 如 redis channel 或 kafka topic partition
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+@Slf4j
+public class InternalMessageBatcher<K> {
+
+    private final BiConsumer<K, byte[]> sender;
+    private final int maxSize;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService scheduledExecutor;
+    /** channel -> 待发送批次 */
+    private final Map<K, Batch> batches = new ConcurrentHashMap<>();
+
+    /**
+     * @param sender   发送函数, 参数为 channel 及消息帧
+     * @param maxSize  单批消息数量上限
+     * @param maxDelay 首条消息最长等待时间
+     */
+    public InternalMessageBatcher(BiConsumer<K, byte[]> sender, int maxSize, Duration maxDelay) {
+        Assert.notNull(sender, "sender can't be null");
+        Assert.isTrue(maxSize > 0, "maxSize 必须大于 0");
+        Assert.isTrue(maxDelay != null && !maxDelay.isNegative(), "maxDelay 不能为负数");
+
+        this.sender = sender;
+        this.maxSize = maxSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "internal-message-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 添加消息帧
+     *
+     * @param channel 推送频道
+     * @param frame   消息帧
+     */
+    public void add(K channel, byte[] frame) {
+        var batch = batches.computeIfAbsent(channel, Batch::new);
+        synchronized (batch) {
+            batch.frames.add(frame);
+            if (batch.frames.size() >= maxSize) {
+                batch.flush();
+            } else if (batch.frames.size() == 1) {
+                scheduledExecutor.schedule(batch::flushIfPresent, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * 发送全部待发送批次并停止定时任务
+     */
+    public void close() {
+        scheduledExecutor.shutdown();
+        batches.values().forEach(Batch::flushIfPresent);
+    }
+
+    private class Batch {
+
+        private final K channel;
+        private List<byte[]> frames = new ArrayList<>();
+
+        Batch(K channel) {
+            this.channel = channel;
+        }
+
+        void flushIfPresent() {
+            synchronized (this) {
+                flush();
+            }
+        }
+
+        /**
+         * 发送当前批次, 调用方需持有本对象的锁
+         */
+        private void flush() {
+            if (frames.isEmpty()) {
+                return;
+            }
+            var batch = InternalMessageCodec.encodeBatch(frames);
+            frames = new ArrayList<>();
+            try {
+                sender.accept(channel, batch);
+            } catch (Exception e) {
+                log.error(String.format("集群消息批量发送失败, channel: %s", channel), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.entity.InternalMessage;
+import com.jun.mqttx.exception.SerializeException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 集群消息帧编解码工具.
+ * <p>
+ * 帧格式: 固定头部 + 消息体, 消息体为 {@link InternalMessage#getData()} 经 {@link Serializer} 序列化后的字节.
+ * <pre>
+ * +-------+---------+------+-----------+----------------+----------+------+
+ * | magic | version | type | timestamp | brokerIdLength | brokerId | body |
+ * |   2   |    1    |  1   |     8     |       1        |    n     |  ... |
+ * +-------+---------+------+-----------+----------------+----------+------+
+ * </pre>
+ * 接收方仅读取头部即可判断消息来源及类别, 本节点发出的消息无需解码消息体即可丢弃, 其余消息体只解码一次.
+ * <p>
+ * 批量帧({@link #encodeBatch(List)})的 type 为 0, 头部取自第一条消息帧, 消息体为多个 [4 字节长度 + 消息帧].
+ * <p>
+ * 不含 magic 的消息按旧格式(整体序列化的 {@link InternalMessage})处理, 兼容外部系统直接发布的集群消息,
+ * 例如 {@link InternalMessageEnum#ALTER_USER_AUTHORIZED_TOPICS}.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public final class InternalMessageCodec {
+
+    private static final byte MAGIC_0 = (byte) 0xC7;
+    private static final byte MAGIC_1 = (byte) 0x4D;
+    private static final byte VERSION = 1;
+    private static final int TYPE_OFFSET = 3;
+    private static final int TIMESTAMP_OFFSET = 4;
+    private static final int BROKER_ID_OFFSET = 12;
+    private static final int MAX_BROKER_ID_LENGTH = 255;
+    private static final byte BATCH_TYPE = 0;
+
+    private InternalMessageCodec() {
+    }
+
+    /**
+     * 编码集群消息
+     *
+     * @param im         {@link InternalMessage}
+     * @param type       消息类别
+     * @param serializer 消息体序列化器
+     * @return 消息帧
+     */
+    public static byte[] encode(InternalMessage<?> im, InternalMessageEnum type, Serializer serializer) {
+        byte[] brokerId = im.getBrokerId() == null ? new byte[0] : im.getBrokerId().getBytes(StandardCharsets.UTF_8);
+        if (brokerId.length > MAX_BROKER_ID_LENGTH) {
+            throw new SerializeException("brokerId 长度超出限制: " + MAX_BROKER_ID_LENGTH);
+        }
+        byte[] body = im.getData() == null ? new byte[0] : serializer.serialize(im.getData());
+
+        byte[] frame = new byte[BROKER_ID_OFFSET + 1 + brokerId.length + body.length];
+        frame[0] = MAGIC_0;
+        frame[1] = MAGIC_1;
+        frame[2] = VERSION;
+        frame[TYPE_OFFSET] = (byte) type.getType();
+        long timestamp = im.getTimestamp();
+        for (int i = 7; i >= 0; i--) {
+            frame[TIMESTAMP_OFFSET + i] = (byte) timestamp;
+            timestamp >>>= 8;
+        }
+        frame[BROKER_ID_OFFSET] = (byte) brokerId.length;
+        System.arraycopy(brokerId, 0, frame, BROKER_ID_OFFSET + 1, brokerId.length);
+        System.arraycopy(body, 0, frame, BROKER_ID_OFFSET + 1 + brokerId.length, body.length);
+        return frame;
+    }
+
+    /**
+     * 合并同一 broker、同一 channel 的多个消息帧, 仅一个消息帧时原样返回
+     *
+     * @param frames 消息帧, 需满足 {@link #isFramed(byte[])}
+     * @return 批量帧
+     */
+    public static byte[] encodeBatch(List<byte[]> frames) {
+        byte[] first = frames.get(0);
+        if (frames.size() == 1) {
+            return first;
+        }
+
+        int headerLength = BROKER_ID_OFFSET + 1 + (first[BROKER_ID_OFFSET] & 0xff);
+        int length = headerLength;
+        for (byte[] frame : frames) {
+            length += 4 + frame.length;
+        }
+        byte[] batch = new byte[length];
+        System.arraycopy(first, 0, batch, 0, headerLength);
+        batch[TYPE_OFFSET] = BATCH_TYPE;
+        int offset = headerLength;
+        for (byte[] frame : frames) {
+            int len = frame.length;
+            batch[offset] = (byte) (len >>> 24);
+            batch[offset + 1] = (byte) (len >>> 16);
+            batch[offset + 2] = (byte) (len >>> 8);
+            batch[offset + 3] = (byte) len;
+            System.arraycopy(frame, 0, batch, offset + 4, len);
+            offset += 4 + len;
+        }
+        return batch;
+    }
+
+    /**
+     * 判断消息帧是否为批量帧
+     *
+     * @param frame 消息帧, 需满足 {@link #isFramed(byte[])}
+     * @return true if batch
+     */
+    public static boolean isBatch(byte[] frame) {
+        return frame[TYPE_OFFSET] == BATCH_TYPE;
+    }
+
+    /**
+     * 拆分批量帧
+     *
+     * @param batch 批量帧, 需满足 {@link #isBatch(byte[])}
+     * @return 消息帧列表
+     * @throws SerializeException 批量帧长度不合法
+     */
+    public static List<byte[]> unpackBatch(byte[] batch) {
+        int offset = BROKER_ID_OFFSET + 1 + (batch[BROKER_ID_OFFSET] & 0xff);
+        var frames = new ArrayList<byte[]>();
+        while (offset < batch.length) {
+            if (offset + 4 > batch.length) {
+                throw new SerializeException("批量帧长度不合法");
+            }
+            int len = ((batch[offset] & 0xff) << 24) | ((batch[offset + 1] & 0xff) << 16)
+                    | ((batch[offset + 2] & 0xff) << 8) | (batch[offset + 3] & 0xff);
+            offset += 4;
+            if (len < 0 || len > batch.length - offset) {
+                throw new SerializeException("批量帧长度不合法");
+            }
+            frames.add(Arrays.copyOfRange(batch, offset, offset + len));
+            offset += len;
+        }
+        return frames;
+    }
+
+    /**
+     * 判断是否为本工具编码的消息帧
+     *
+     * @param frame 消息
+     * @return true if framed
+     */
+    public static boolean isFramed(byte[] frame) {
+        return frame.length > BROKER_ID_OFFSET && frame[0] == MAGIC_0 && frame[1] == MAGIC_1 && frame[2] == VERSION
+                && frame.length > BROKER_ID_OFFSET + (frame[BROKER_ID_OFFSET] & 0xff);
+    }
+
+    /**
+     * 比较消息帧头部中的 brokerId, 不解码消息体
+     *
+     * @param frame    消息帧, 需满足 {@link #isFramed(byte[])}
+     * @param brokerId UTF-8 编码的 brokerId
+     * @return true if frame was published by brokerId
+     */
+    public static boolean isFrom(byte[] frame, byte[] brokerId) {
+        int len = frame[BROKER_ID_OFFSET] & 0xff;
+        return len == brokerId.length && Arrays.equals(frame, BROKER_ID_OFFSET + 1, BROKER_ID_OFFSET + 1 + len,
+                brokerId, 0, len);
+    }
+
+    /**
+     * 读取消息帧头部中的消息类别
+     *
+     * @param frame 消息帧, 需满足 {@link #isFramed(byte[])}
+     * @return {@link InternalMessageEnum}, 未知类别返回 null
+     */
+    public static InternalMessageEnum type(byte[] frame) {
+        return InternalMessageEnum.ofType(frame[TYPE_OFFSET] & 0xff);
+    }
+
+    /**
+     * 解码消息帧
+     *
+     * @param frame      消息帧, 需满足 {@link #isFramed(byte[])}
+     * @param dataType   消息体类别
+     * @param serializer 消息体序列化器
+     * @param <T>        {@link InternalMessage#getData()} 类别
+     * @return {@link InternalMessage}
+     */
+    public static <T> InternalMessage<T> decode(byte[] frame, Class<T> dataType, Serializer serializer) {
+        long timestamp = 0;
+        for (int i = 0; i < 8; i++) {
+            timestamp = (timestamp << 8) | (frame[TIMESTAMP_OFFSET + i] & 0xff);
+        }
+        int len = frame[BROKER_ID_OFFSET] & 0xff;
+        String brokerId = new String(frame, BROKER_ID_OFFSET + 1, len, StandardCharsets.UTF_8);
+        int bodyOffset = BROKER_ID_OFFSET + 1 + len;
+        T data = bodyOffset == frame.length ? null :
+                serializer.deserialize(Arrays.copyOfRange(frame, bodyOffset, frame.length), dataType);
+        return new InternalMessage<>(data, timestamp, brokerId);
+    }
+
+    /**
+     * 解码旧格式(整体序列化)的集群消息
+     *
+     * @param msg        消息
+     * @param dataType   {@link InternalMessage#getData()} 类别
+     * @param serializer 序列化器
+     * @param <T>        {@link InternalMessage#getData()} 类别
+     * @return {@link InternalMessage}
+     */
+    public static <T> InternalMessage<T> decodeLegacy(byte[] msg, Class<T> dataType, Serializer serializer) {
+        if (serializer instanceof JsonSerializer) {
+            JsonNode node = JSON.readTree(msg);
+            JsonNode data = node.get("data");
+            return new InternalMessage<>(data == null || data.isNull() ? null : JSON.treeToValue(data, dataType),
+                    node.path("timestamp").asLong(), node.hasNonNull("brokerId") ? node.get("brokerId").asText() : null);
+        }
+
+        //noinspection unchecked
+        return serializer.deserialize(msg, InternalMessage.class);
+    }
+}
@@ -17,24 +17,41 @@
 package com.jun.mqttx.utils;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.entity.Session;
+import io.netty.handler.codec.mqtt.MqttVersion;
 import io.netty.util.concurrent.FastThreadLocal;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Map;
 
 /**
  * 基于 <strong>kryo</strong> 序列化框架实现
+ * <p>
+ * kryo 默认的 {@link FieldSerializer} 按字段顺序读写, 增删字段后无法读取已保存的数据. 持久化的实体因此注册为
+ * {@link CompatibleFieldSerializer}(写入字段名), 并以注册 id 标记类型; 旧版本以类名标记类型写入的数据由
+ * {@link LegacyClassResolver} 按旧版本字段读取, 无需迁移.
  *
  * @since 1.0.7
  */
 public class KryoSerializer implements Serializer {
 
+    /** 持久化实体的注册 id, 不可修改 */
+    private static final int PUB_MSG_ID = 100, SESSION_ID = 101;
+
     private final FastThreadLocal<Kryo> holder = new FastThreadLocal<>() {
         @Override
         protected Kryo initialValue() {
-            Kryo kryo = new Kryo();
+            Kryo kryo = new Kryo(new LegacyClassResolver(), null);
             kryo.setRegistrationRequired(false);
+            kryo.register(PubMsg.class, new CompatibleFieldSerializer<>(kryo, PubMsg.class), PUB_MSG_ID);
+            kryo.register(Session.class, new CompatibleFieldSerializer<>(kryo, Session.class), SESSION_ID);
             return kryo;
         }
     };
@@ -57,4 +74,71 @@ public class KryoSerializer implements Serializer {
         //noinspection unchecked
         return (T) kryo.readClassAndObject(new Input(bytes));
     }
+
+    /**
+     * 以类名标记类型的持久化实体为旧版本写入, 按旧版本的字段读取
+     */
+    private static final class LegacyClassResolver extends DefaultClassResolver {
+
+        private Registration legacyPubMsg, legacySession;
+
+        @Override
+        protected Registration readName(Input input) {
+            var registration = super.readName(input);
+            if (registration != null && registration.getType() == PubMsg.class) {
+                if (legacyPubMsg == null) {
+                    // 1.2.3 之前的版本不含 expireAt
+                    var serializer = new FieldSerializer<>(kryo, PubMsg.class);
+                    serializer.removeField("expireAt");
+                    legacyPubMsg = new Registration(PubMsg.class, serializer, NAME);
+                }
+                return legacyPubMsg;
+            }
+            if (registration != null && registration.getType() == Session.class) {
+                if (legacySession == null) {
+                    legacySession = new Registration(Session.class, new LegacySessionSerializer(kryo), NAME);
+                }
+                return legacySession;
+            }
+            return registration;
+        }
+    }
+
+    /**
+     * 1.2.3 之前版本的 {@link Session}, pubMsgStore 尚未声明为 transient. 字段名及类型与旧版本一致, 仅用于读取
+     */
+    @SuppressWarnings("unused")
+    private static final class LegacySession {
+
+        private MqttVersion version;
+        private String clientId;
+        private Boolean cleanSession;
+        private Map<Integer, PubMsg> pubMsgStore;
+        private int messageId;
+    }
+
+    /**
+     * 按旧版本字段读取 {@link Session}, pubMsgStore 读取后丢弃: cleanSession 会话不会被恢复
+     */
+    private static final class LegacySessionSerializer extends com.esotericsoftware.kryo.Serializer<Session> {
+
+        private final FieldSerializer<LegacySession> serializer;
+
+        private LegacySessionSerializer(Kryo kryo) {
+            this.serializer = new FieldSerializer<>(kryo, LegacySession.class);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, Session session) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Session read(Kryo kryo, Input input, Class<? extends Session> type) {
+            var legacy = serializer.read(kryo, input, LegacySession.class);
+            var session = Session.of(legacy.clientId, Boolean.TRUE.equals(legacy.cleanSession), legacy.version);
+            session.setMessageId(legacy.messageId);
+            return session;
+        }
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+/**
+ * 覆盖整个 messageId 空间(0 ~ 65535)的位图, 用于替代 {@code Set<Integer>} 记录 messageId, 避免装箱及节点分配.
+ * <p>
+ * 位图按块延迟分配: 共 64 块, 每块 1024 bit(16 个 long), 只有 messageId 落入的块才会分配内存. messageId 通常连续递增,
+ * 同一时刻活跃的 messageId 集中在少数块内. 非线程安全, 与 {@link com.jun.mqttx.entity.Session} 一样依赖 channel 绑定的
+ * EventLoop 保证访问顺序.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public final class MessageIdBitSet {
+    //@formatter:off
+
+    private static final int BLOCK_SHIFT = 10;
+    private static final int BLOCK_COUNT = 1 << (16 - BLOCK_SHIFT);
+    private static final int WORDS_PER_BLOCK = (1 << BLOCK_SHIFT) >>> 6;
+    private static final int WORD_MASK = WORDS_PER_BLOCK - 1;
+
+    private final long[][] blocks = new long[BLOCK_COUNT][];
+    /** 已置位数量 */
+    private int size;
+
+    //@formatter:on
+
+    /**
+     * 置位
+     *
+     * @param messageId 消息id
+     * @return true if messageId was not already present
+     */
+    public boolean add(int messageId) {
+        final int id = messageId & 0xffff;
+        long[] block = blocks[id >>> BLOCK_SHIFT];
+        if (block == null) {
+            block = blocks[id >>> BLOCK_SHIFT] = new long[WORDS_PER_BLOCK];
+        }
+        final int word = (id >>> 6) & WORD_MASK;
+        final long mask = 1L << id;
+        if ((block[word] & mask) != 0) {
+            return false;
+        }
+        block[word] |= mask;
+        size++;
+        return true;
+    }
+
+    /**
+     * 清除置位, 块内全部清空后释放该块
+     *
+     * @param messageId 消息id
+     * @return true if messageId was present
+     */
+    public boolean remove(int messageId) {
+        final int id = messageId & 0xffff;
+        final long[] block = blocks[id >>> BLOCK_SHIFT];
+        if (block == null) {
+            return false;
+        }
+        final int word = (id >>> 6) & WORD_MASK;
+        final long mask = 1L << id;
+        if ((block[word] & mask) == 0) {
+            return false;
+        }
+        block[word] &= ~mask;
+        if (--size == 0 || (block[word] == 0 && isEmpty(block))) {
+            blocks[id >>> BLOCK_SHIFT] = null;
+        }
+        return true;
+    }
+
+    /**
+     * 判断是否置位
+     *
+     * @param messageId 消息id
+     * @return true if messageId is present
+     */
+    public boolean contains(int messageId) {
+        final int id = messageId & 0xffff;
+        final long[] block = blocks[id >>> BLOCK_SHIFT];
+        return block != null && (block[(id >>> 6) & WORD_MASK] & (1L << id)) != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean isEmpty(long[] block) {
+        for (long w : block) {
+            if (w != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+/**
+ * 以 messageId 为下标的环形数组, 用于替代 {@code Map<Integer, E>} 保存 qos1,2 飞行窗口内的消息.
+ * <p>
+ * 同一会话分配的 messageId 单调递增(16 bit 回绕), 飞行窗口内的 messageId 集中在 [oldest, newest] 区间, 槽位由
+ * {@code messageId & mask} 直接定位: 插入与确认均为 O(1) 且无装箱. 区间跨度超过容量时数组按 2 的幂扩容, 最大 65536;
+ * 窗口清空后恢复初始容量, 保证每个会话的内存占用可预期. 非线程安全, 依赖 channel 绑定的 EventLoop 保证访问顺序.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public final class MessageIdRing<E> {
+    //@formatter:off
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 16;
+    private static final int ID_MASK = 0xffff;
+
+    private Object[] slots = new Object[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    /** 窗口内最早的 messageId */
+    private int oldest;
+    private int size;
+
+    //@formatter:on
+
+    /**
+     * 保存元素, messageId 已存在时覆盖
+     *
+     * @param messageId 消息id
+     * @param e         元素
+     */
+    public void put(int messageId, E e) {
+        final int id = messageId & ID_MASK;
+        if (size == 0) {
+            oldest = id;
+        } else {
+            int span = (id - oldest) & ID_MASK;
+            if (span > mask) {
+                grow(span + 1);
+            }
+        }
+        if (slots[id & mask] == null) {
+            size++;
+        }
+        slots[id & mask] = e;
+    }
+
+    /**
+     * 获取元素
+     *
+     * @param messageId 消息id
+     * @return 元素, 不存在时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int messageId) {
+        if (size == 0 || ((messageId - oldest) & ID_MASK) > mask) {
+            return null;
+        }
+        return (E) slots[messageId & mask];
+    }
+
+    /**
+     * 移除元素
+     *
+     * @param messageId 消息id
+     * @return 被移除的元素, 不存在时返回 null
+     */
+    public E remove(int messageId) {
+        final E e = get(messageId);
+        if (e == null) {
+            return null;
+        }
+        slots[messageId & mask] = null;
+        if (--size == 0) {
+            if (slots.length > INITIAL_CAPACITY) {
+                slots = new Object[INITIAL_CAPACITY];
+                mask = INITIAL_CAPACITY - 1;
+            }
+        } else if ((messageId & ID_MASK) == oldest) {
+            // 确认通常按发送顺序到达, 前移的距离均摊为 O(1)
+            do {
+                oldest = (oldest + 1) & ID_MASK;
+            } while (slots[oldest & mask] == null);
+        }
+        return e;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = slots.length;
+        while (capacity < minCapacity && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+
+        Object[] newSlots = new Object[capacity];
+        int newMask = capacity - 1;
+        for (int i = 0, id = oldest; i <= mask; i++, id = (id + 1) & ID_MASK) {
+            newSlots[id & newMask] = slots[id & mask];
+        }
+        slots = newSlots;
+        mask = newMask;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.utils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+
+/**
+ * netty 集群节点握手工具, 基于共享密钥 {@code mqttx.cluster.peer-secret} 的质询应答.
+ * <ol>
+ *     <li>监听方在连接建立后发送 {@link #CHALLENGE_LENGTH} 字节随机数</li>
+ *     <li>连接方回复 HMAC-SHA256(secret, 随机数)</li>
+ *     <li>监听方校验通过后回复空报文, 连接方收到后开始发送消息帧; 校验失败或超时即关闭连接</li>
+ * </ol>
+ * 密钥本身不在网络上传输, 每次连接的随机数不同, 截获的应答无法重放.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public final class PeerHandshake {
+
+    public static final int CHALLENGE_LENGTH = 32;
+    public static final int RESPONSE_LENGTH = 32;
+    /** 握手超时 */
+    public static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PeerHandshake() {
+    }
+
+    /**
+     * 生成质询随机数
+     *
+     * @return 随机数
+     */
+    public static byte[] challenge() {
+        var challenge = new byte[CHALLENGE_LENGTH];
+        RANDOM.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * 计算质询应答
+     *
+     * @param secret    共享密钥
+     * @param challenge 质询随机数
+     * @return HMAC-SHA256(secret, challenge)
+     */
+    public static byte[] response(String secret, byte[] challenge) {
+        try {
+            var mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 校验质询应答, 比较耗时与内容无关
+     *
+     * @param secret    共享密钥
+     * @param challenge 质询随机数
+     * @param response  对方的应答
+     * @return true if response matches
+     */
+    public static boolean verify(String secret, byte[] challenge, byte[] response) {
+        return MessageDigest.isEqual(response(secret, challenge), response);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import io.lettuce.core.codec.CRC16;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 客户端相关 redis key 生成工具.
+ * <p>
+ * 开启 hash tag 时客户端按 clientId 的 CRC16 分配到固定数量的桶中, 桶编号以 <code>{bucket}</code> 形式出现在 key 中, redis
+ * cluster 只对花括号内的内容计算 slot. 同一客户端的会话、messageId、pubMsg、pubRel 等 key 因此位于同一 slot, 可以在同一
+ * pipeline、事务或 lua 脚本中操作; 同一桶内的多个客户端也位于同一 slot, 扇出保存时每个桶只需一次脚本调用, 过期索引、共享载荷等
+ * 跨客户端的 key 同样按桶存放.
+ * <p>
+ * 不使用 <code>{clientId}</code> 作为 hash tag: 每个客户端独占一个 slot 时, 任何涉及多个客户端的脚本都会触发 CROSSSLOT.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public final class RedisKeyUtils {
+
+    private RedisKeyUtils() {
+    }
+
+    /**
+     * 客户端所在的桶
+     *
+     * @param clientId 客户端 id
+     * @param buckets  桶数量, 必须大于 0
+     * @return 桶编号, [0, buckets)
+     */
+    public static int bucket(String clientId, int buckets) {
+        return CRC16.crc16(clientId.getBytes(StandardCharsets.UTF_8)) % buckets;
+    }
+
+    /**
+     * 客户端 key
+     *
+     * @param prefix   key 前缀
+     * @param clientId 客户端 id
+     * @param buckets  hash tag 桶数量, 小于等于 0 表示不使用 hash tag
+     * @return redis key
+     */
+    public static String clientKey(String prefix, String clientId, int buckets) {
+        return buckets > 0 ? bucketKey(prefix, bucket(clientId, buckets)) + clientId : prefix + clientId;
+    }
+
+    /**
+     * 桶 key, 与桶内客户端的 key 位于同一 slot
+     *
+     * @param prefix key 前缀
+     * @param bucket 桶编号
+     * @return redis key
+     */
+    public static String bucketKey(String prefix, int bucket) {
+        return prefix + '{' + bucket + '}';
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 主题前缀树, 按主题层级组织, 用于根据 topicFilter 查找匹配的主题, 代价与匹配结果数量相关而非主题总量. 也可用于保存
+ * topicFilter, 通过 {@link #matchFilters(String)} 查找与主题匹配的 topicFilter.
+ * <p>
+ * 通配符匹配规则与 {@link TopicUtils#match(String, String)} 一致, 另外遵循协议要求, 首层通配符不匹配以 {@code $} 开头的主题:
+ * <pre>
+ * The Server MUST NOT match Topic Filters starting with a wildcard character (# or +) with Topic Names beginning
+ * with a $ character [MQTT-4.7.2-1].
+ * </pre>
+ * 写操作互斥, 读操作无锁.
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+public final class TopicTrie {
+    //@formatter:off
+
+    private static final String SEPARATOR = "/";
+    private static final String MULTI_LEVEL = "#", SINGLE_LEVEL = "+";
+
+    private final Node root = new Node();
+    /** 主题数量 */
+    private int size;
+
+    //@formatter:on
+
+    /**
+     * 添加主题
+     *
+     * @param topic 主题, 不含通配符
+     * @return true if topic was not already present
+     */
+    public synchronized boolean add(String topic) {
+        var node = root;
+        for (var level : topic.split(SEPARATOR, -1)) {
+            node = node.children.computeIfAbsent(level, k -> new Node());
+        }
+        if (node.topic != null) {
+            return false;
+        }
+        node.topic = topic;
+        size++;
+        return true;
+    }
+
+    /**
+     * 移除主题, 并清理不再包含主题的节点
+     *
+     * @param topic 主题
+     * @return true if topic was present
+     */
+    public synchronized boolean remove(String topic) {
+        var levels = topic.split(SEPARATOR, -1);
+        var path = new Node[levels.length + 1];
+        path[0] = root;
+        for (int i = 0; i < levels.length; i++) {
+            path[i + 1] = path[i].children.get(levels[i]);
+            if (path[i + 1] == null) {
+                return false;
+            }
+        }
+
+        var node = path[levels.length];
+        if (node.topic == null) {
+            return false;
+        }
+        node.topic = null;
+        size--;
+
+        for (int i = levels.length; i > 0 && path[i].topic == null && path[i].children.isEmpty(); i--) {
+            path[i - 1].children.remove(levels[i - 1]);
+        }
+        return true;
+    }
+
+    /**
+     * 清空全部主题
+     */
+    public synchronized void clear() {
+        root.children.clear();
+        size = 0;
+    }
+
+    /**
+     * 查找与 topicFilter 匹配的全部主题
+     *
+     * @param topicFilter 订阅主题, 可包含通配符
+     * @return 匹配的主题列表
+     */
+    public List<String> match(String topicFilter) {
+        var result = new ArrayList<String>();
+        match(root, topicFilter.split(SEPARATOR, -1), 0, result);
+        return result;
+    }
+
+    /**
+     * 查找与主题匹配的全部 topicFilter, 仅用于保存 topicFilter 的前缀树. 与订阅匹配 {@link TopicUtils#match(String, String)}
+     * 保持一致, 首层通配符同样匹配以 {@code $} 开头的主题
+     *
+     * @param topic 发布消息的主题, 不含通配符
+     * @return 匹配的 topicFilter 列表
+     */
+    public List<String> matchFilters(String topic) {
+        var result = new ArrayList<String>();
+        matchFilters(root, topic.split(SEPARATOR, -1), 0, result);
+        return result;
+    }
+
+    /**
+     * 全部主题
+     *
+     * @return 主题列表
+     */
+    public List<String> topics() {
+        var result = new ArrayList<String>();
+        collect(root, result);
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void match(Node node, String[] levels, int i, List<String> result) {
+        if (i == levels.length) {
+            var topic = node.topic;
+            if (topic != null) {
+                result.add(topic);
+            }
+            return;
+        }
+
+        var level = levels[i];
+        if (MULTI_LEVEL.equals(level)) {
+            // "sport/#" 同样匹配 "sport"
+            if (i > 0 && node.topic != null) {
+                result.add(node.topic);
+            }
+            for (var e : node.children.entrySet()) {
+                if (i > 0 || !isSysLevel(e.getKey())) {
+                    collect(e.getValue(), result);
+                }
+            }
+        } else if (SINGLE_LEVEL.equals(level)) {
+            for (var e : node.children.entrySet()) {
+                if (i > 0 || !isSysLevel(e.getKey())) {
+                    match(e.getValue(), levels, i + 1, result);
+                }
+            }
+        } else {
+            var child = node.children.get(level);
+            if (child != null) {
+                match(child, levels, i + 1, result);
+            }
+        }
+    }
+
+    private void matchFilters(Node node, String[] levels, int i, List<String> result) {
+        // "sport/#" 同样匹配 "sport"
+        var multi = node.children.get(MULTI_LEVEL);
+        if (multi != null && multi.topic != null) {
+            result.add(multi.topic);
+        }
+        if (i == levels.length) {
+            var topicFilter = node.topic;
+            if (topicFilter != null) {
+                result.add(topicFilter);
+            }
+            return;
+        }
+
+        var single = node.children.get(SINGLE_LEVEL);
+        if (single != null) {
+            matchFilters(single, levels, i + 1, result);
+        }
+        var child = node.children.get(levels[i]);
+        if (child != null) {
+            matchFilters(child, levels, i + 1, result);
+        }
+    }
+
+    private void collect(Node node, List<String> result) {
+        var topic = node.topic;
+        if (topic != null) {
+            result.add(topic);
+        }
+        for (var child : node.children.values()) {
+            collect(child, result);
+        }
+    }
+
+    private boolean isSysLevel(String level) {
+        return level.startsWith("$");
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new ConcurrentHashMap<>(4);
+        /** 以当前节点结尾的主题, null 表示当前节点仅为路径 */
+        private volatile String topic;
+    }
+}
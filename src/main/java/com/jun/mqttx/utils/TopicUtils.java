@@ -69,6 +69,8 @@ public class TopicUtils {
      *  </pre>
      */
     public static final String BROKER_CLIENT_DISCONNECT = SYS_TOPIC_BROKER + "%s/clients/%s/disconnected";
+    /** 集群 broker 失效通知主题, 参数为失效 broker 的 brokerId */
+    public static final String BROKER_DEAD = SYS_TOPIC_BROKER + "%s/dead";
     //@formatter:on
 
     /**
@@ -0,0 +1,37 @@
+-- broker 心跳及失效检测脚本. 心跳时间取 redis 服务器时间, 不受各节点时钟偏差影响.
+--
+-- KEYS[1] 心跳 hash: brokerId -> 最近一次心跳时间(毫秒); 另含失效标记 'evicted:' .. brokerId -> 判定时间(毫秒)
+-- ARGV[1] 当前 brokerId, ARGV[2] 心跳超时(毫秒), 0 表示本次不检测失效, ARGV[3] 失效标记保留时间(毫秒)
+-- 返回 {当前 broker 是否被其它节点判定失效(1 | 0), 失效 brokerId...}
+-- 心跳超时的 broker 由检测到的节点删除并写入失效标记, 因此每个失效 broker 只会被一个节点判定; 失效标记由被判定的
+-- broker 在下一次心跳时读取并删除, 超过保留时间仍未被读取(broker 已下线)的标记由任意节点删除. redis 数据丢失时心跳与
+-- 标记一同丢失, 不会被误认为已被判定失效.
+
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+local EVICTED = 'evicted:'
+local time = redis.call('TIME')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local timeout = tonumber(ARGV[2])
+local evictedTtl = tonumber(ARGV[3])
+redis.call('HSET', KEYS[1], ARGV[1], now)
+local evicted = redis.call('HDEL', KEYS[1], EVICTED .. ARGV[1])
+
+local result = { evicted }
+local entries = redis.call('HGETALL', KEYS[1])
+for i = 1, #entries, 2 do
+    local field = entries[i]
+    local value = tonumber(entries[i + 1])
+    if string.sub(field, 1, #EVICTED) == EVICTED then
+        if value == nil or now - value > evictedTtl then
+            redis.call('HDEL', KEYS[1], field)
+        end
+    elseif timeout > 0 and now - value > timeout then
+        redis.call('HDEL', KEYS[1], field)
+        redis.call('HSET', KEYS[1], EVICTED .. field, now)
+        table.insert(result, field)
+    end
+end
+return result
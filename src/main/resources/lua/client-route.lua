@@ -0,0 +1,10 @@
+-- 客户端路由注销脚本, 仅当路由仍指向当前 broker 时删除, 避免覆盖客户端在其它 broker 上的新连接.
+--
+-- KEYS[1] 路由表 hash: clientId -> brokerId
+-- ARGV[1] clientId, ARGV[2] brokerId
+-- 返回删除数量
+
+if redis.call('HGET', KEYS[1], ARGV[1]) == ARGV[2] then
+    return redis.call('HDEL', KEYS[1], ARGV[1])
+end
+return 0
@@ -0,0 +1,282 @@
+-- 客户端离线消息(publish message)存储脚本, 保证队列长度、字节数限制、溢出策略及共享载荷引用计数的原子性.
+--
+-- 单个客户端的存储结构:
+-- 消息 hash: messageId -> 序列化后的消息
+-- 顺序索引 zset: messageId, score 为写入序号
+-- 元数据 hash:
+--         messageId -> "size|uniqueId|topic"
+--         i:messageId -> 1, 已下发给在线客户端、等待确认的消息(in-flight)
+--         bytes     -> 队列中非 in-flight 消息的总字节数
+--         inflight  -> in-flight 消息数量
+--         seq       -> 写入序号
+--         t:topic   -> 该主题最新消息 messageId (conflate 策略)
+-- 共享载荷 hash(payloadPrefix .. uniqueId):
+--         p -> 载荷
+--         r -> 引用计数, 随消息的保存及移除在本脚本内增减, 归零时删除载荷
+--
+-- 队列长度、字节数限制只统计非 in-flight 消息, 溢出时也只淘汰非 in-flight 消息: in-flight 消息已经下发, 客户端重连后必须
+-- 补发, 不能因为后续的离线消息被淘汰. in-flight 消息总是保存.
+--
+-- 早期版本写入的消息没有元数据, 脚本无法得知其 uniqueId, 移除时将序列化的消息返回给调用方, 由调用方解析后通过 release
+-- 操作释放共享载荷的引用.
+--
+-- 共享载荷 key 由 payloadPrefix 与消息元数据中的 uniqueId 拼接而成, 无法事先通过 KEYS 声明. 开启 hash tag 时 payloadPrefix
+-- 带有客户端所在桶的 hash tag, 与其它 KEYS 位于同一 slot, 满足 redis cluster 的要求.
+--
+-- 所有操作的返回值均以 {被删除载荷的 uniqueId 数组, 被移除的早期版本消息数组} 结尾.
+--
+-- ARGV[1] 操作: save | saveAll | remove | clear | release
+-- save:    KEYS[1] 消息 hash, KEYS[2] 顺序索引, KEYS[3] 元数据
+--          ARGV[2] messageId, ARGV[3] 消息, ARGV[4] 消息字节数, ARGV[5] topic, ARGV[6] uniqueId(非共享载荷为空串),
+--          ARGV[7] 最大长度(0 不限), ARGV[8] 最大字节数(0 不限), ARGV[9] 溢出策略 drop_oldest | drop_newest | conflate,
+--          ARGV[10] 共享载荷(非共享载荷为空串), ARGV[11] payloadPrefix, ARGV[12] 是否 in-flight(1 | 0)
+--          返回 {是否保存, drop_oldest 数量, drop_newest 数量, conflate 数量, freed, legacy}
+-- saveAll: 同一消息扇出给多个离线客户端, messageId 由脚本分配, 消息只序列化一次(messageId 以 hash field 为准)
+--          KEYS[1] 过期索引 zset, 之后每个客户端依次为: 消息 hash, 顺序索引, 元数据, messageId 计数器
+--          ARGV[2] ~ ARGV[8] 同 save 的 ARGV[3] ~ ARGV[9], ARGV[9] 过期时间戳(0 不过期), ARGV[10] 共享载荷(非共享载荷为空串),
+--          ARGV[11] payloadPrefix, ARGV[12]... 客户端 id. 共享载荷的引用计数按保存成功的客户端数量增加
+--          返回每个客户端依次 {messageId, 是否保存, drop_oldest 数量, drop_newest 数量, conflate 数量}, 之后为 freed, legacy
+-- remove:  KEYS 同 save, ARGV[2] messageId, ARGV[3] payloadPrefix, 返回 {freed, legacy}
+-- clear:   KEYS 同 save, ARGV[2] payloadPrefix, 返回 {freed, legacy}
+-- release: KEYS 同 save(仅用于定位 slot), ARGV[2] payloadPrefix, ARGV[3]... uniqueId, 返回 {freed, legacy}
+
+local op = ARGV[1]
+local freed, legacy = {}, {}
+
+-- 释放被移除消息对共享载荷的引用, 载荷被删除时将 uniqueId 追加到 freed
+local function release(payloadPrefix, uniqueId, count)
+    if uniqueId == '' then
+        return
+    end
+    local key = payloadPrefix .. uniqueId
+    if redis.call('EXISTS', key) == 0 then
+        return
+    end
+    if redis.call('HINCRBY', key, 'r', -count) <= 0 then
+        redis.call('DEL', key)
+        table.insert(freed, uniqueId)
+    end
+end
+
+-- 增加共享载荷的引用, 载荷不存在时写入
+local function retain(payloadPrefix, uniqueId, payload, count)
+    if uniqueId == '' or count == 0 then
+        return
+    end
+    local key = payloadPrefix .. uniqueId
+    redis.call('HSETNX', key, 'p', payload)
+    redis.call('HINCRBY', key, 'r', count)
+end
+
+-- 按 uniqueId 合并后批量释放
+local function releaseAll(payloadPrefix, uniqueIds)
+    local counts = {}
+    for _, uniqueId in ipairs(uniqueIds) do
+        counts[uniqueId] = (counts[uniqueId] or 0) + 1
+    end
+    for uniqueId, count in pairs(counts) do
+        release(payloadPrefix, uniqueId, count)
+    end
+end
+
+-- 移除单条消息, 其 uniqueId 追加到 released; 没有元数据的早期版本消息追加到 legacy
+local function removeMessage(msgKey, indexKey, metaKey, id, released)
+    local meta = redis.call('HGET', metaKey, id)
+    if not meta then
+        local msg = redis.call('HGET', msgKey, id)
+        if msg then
+            table.insert(legacy, msg)
+        end
+    end
+    redis.call('HDEL', msgKey, id)
+    redis.call('ZREM', indexKey, id)
+    if not meta then
+        return
+    end
+
+    redis.call('HDEL', metaKey, id)
+    local p1 = string.find(meta, '|', 1, true)
+    local p2 = string.find(meta, '|', p1 + 1, true)
+    local topicField = 't:' .. string.sub(meta, p2 + 1)
+    if redis.call('HDEL', metaKey, 'i:' .. id) == 1 then
+        redis.call('HINCRBY', metaKey, 'inflight', -1)
+    else
+        redis.call('HINCRBY', metaKey, 'bytes', -tonumber(string.sub(meta, 1, p1 - 1)))
+    end
+    if redis.call('HGET', metaKey, topicField) == id then
+        redis.call('HDEL', metaKey, topicField)
+    end
+    table.insert(released, string.sub(meta, p1 + 1, p2 - 1))
+end
+
+-- 最早写入的非 in-flight 消息
+local function oldestQueued(indexKey, metaKey)
+    local offset = 0
+    while true do
+        local ids = redis.call('ZRANGE', indexKey, offset, offset + 15)
+        if #ids == 0 then
+            return nil
+        end
+        for _, id in ipairs(ids) do
+            if redis.call('HEXISTS', metaKey, 'i:' .. id) == 0 then
+                return id
+            end
+        end
+        offset = offset + #ids
+    end
+end
+
+-- 保存单条消息, 被移除消息的 uniqueId 追加到 released, 返回 {是否保存, drop_oldest 数量, drop_newest 数量, conflate 数量}
+local function saveMessage(msgKey, indexKey, metaKey, id, msg, size, topic, uniqueId, maxLength, maxBytes, policy, inflight, released)
+    local result = { 0, 0, 0, 0 }
+
+    -- 单条消息已超出字节数限制, 无需淘汰其它消息
+    if not inflight and maxBytes > 0 and size > maxBytes then
+        result[3] = 1
+        return result
+    end
+
+    -- messageId 被复用, 旧消息直接覆盖
+    if redis.call('HEXISTS', msgKey, id) == 1 then
+        removeMessage(msgKey, indexKey, metaKey, id, released)
+    end
+
+    if not inflight then
+        -- 同主题只保留最新消息
+        if policy == 'conflate' then
+            local prev = redis.call('HGET', metaKey, 't:' .. topic)
+            if prev then
+                removeMessage(msgKey, indexKey, metaKey, prev, released)
+                result[4] = result[4] + 1
+            end
+        end
+
+        local function overflow()
+            local count = redis.call('ZCARD', indexKey) - tonumber(redis.call('HGET', metaKey, 'inflight') or '0')
+            local bytes = tonumber(redis.call('HGET', metaKey, 'bytes') or '0')
+            return (maxLength > 0 and count + 1 > maxLength) or (maxBytes > 0 and bytes + size > maxBytes), count
+        end
+
+        local full, count = overflow()
+        if full and policy ~= 'drop_newest' then
+            while full and count > 0 do
+                local oldest = oldestQueued(indexKey, metaKey)
+                if not oldest then
+                    break
+                end
+                removeMessage(msgKey, indexKey, metaKey, oldest, released)
+                result[2] = result[2] + 1
+                full, count = overflow()
+            end
+        end
+        if full then
+            result[3] = 1
+            return result
+        end
+    end
+
+    local seq = redis.call('HINCRBY', metaKey, 'seq', 1)
+    redis.call('HSET', msgKey, id, msg)
+    redis.call('ZADD', indexKey, seq, id)
+    redis.call('HSET', metaKey, id, size .. '|' .. uniqueId .. '|' .. topic)
+    if inflight then
+        redis.call('HSET', metaKey, 'i:' .. id, 1)
+        redis.call('HINCRBY', metaKey, 'inflight', 1)
+    else
+        redis.call('HINCRBY', metaKey, 'bytes', size)
+        if policy == 'conflate' then
+            redis.call('HSET', metaKey, 't:' .. topic, id)
+        end
+    end
+    result[1] = 1
+    return result
+end
+
+-- 追加 freed, legacy 后返回
+local function finish(out)
+    table.insert(out, freed)
+    table.insert(out, legacy)
+    return out
+end
+
+if op == 'remove' then
+    local released = {}
+    removeMessage(KEYS[1], KEYS[2], KEYS[3], ARGV[2], released)
+    releaseAll(ARGV[3], released)
+    if redis.call('ZCARD', KEYS[2]) == 0 then
+        redis.call('DEL', KEYS[3])
+    end
+    return finish({})
+end
+
+if op == 'clear' then
+    local released = {}
+    local metas = redis.call('HGETALL', KEYS[3])
+    local ids = {}
+    for i = 1, #metas, 2 do
+        local p1 = string.find(metas[i + 1], '|', 1, true)
+        if p1 and string.sub(metas[i], 1, 2) ~= 't:' then
+            ids[metas[i]] = true
+            table.insert(released, string.sub(metas[i + 1], p1 + 1, string.find(metas[i + 1], '|', p1 + 1, true) - 1))
+        end
+    end
+    for _, id in ipairs(redis.call('HKEYS', KEYS[1])) do
+        if not ids[id] then
+            table.insert(legacy, redis.call('HGET', KEYS[1], id))
+        end
+    end
+    redis.call('DEL', KEYS[1], KEYS[2], KEYS[3])
+    releaseAll(ARGV[2], released)
+    return finish({})
+end
+
+if op == 'release' then
+    releaseAll(ARGV[2], { unpack(ARGV, 3) })
+    return finish({})
+end
+
+if op == 'saveAll' then
+    local msg, size, topic, uniqueId = ARGV[2], tonumber(ARGV[3]), ARGV[4], ARGV[5]
+    local maxLength, maxBytes, policy, expireAt = tonumber(ARGV[6]), tonumber(ARGV[7]), ARGV[8], tonumber(ARGV[9])
+    local payloadPrefix = ARGV[11]
+    local out, released, stored = {}, {}, 0
+    for i = 12, #ARGV do
+        local k = 2 + (i - 12) * 4
+        local clientId = ARGV[i]
+
+        -- SUBSCRIBE, UNSUBSCRIBE, and PUBLISH (in cases where QoS > 0) Control Packets MUST contain a
+        -- non-zero 16-bit Packet Identifier [MQTT-2.3.1-1].
+        local seq = redis.call('INCR', KEYS[k + 3])
+        if seq % 65536 == 0 then
+            seq = redis.call('INCR', KEYS[k + 3])
+        end
+        local id = tostring(seq % 65536)
+
+        local result = saveMessage(KEYS[k], KEYS[k + 1], KEYS[k + 2], id, msg, size, topic, uniqueId, maxLength, maxBytes,
+                policy, false, released)
+        if result[1] == 1 then
+            if expireAt > 0 then
+                redis.call('ZADD', KEYS[1], expireAt, id .. ':' .. clientId)
+            end
+            stored = stored + 1
+        end
+
+        table.insert(out, tonumber(id))
+        for j = 1, 4 do
+            table.insert(out, result[j])
+        end
+    end
+    retain(payloadPrefix, uniqueId, ARGV[10], stored)
+    releaseAll(payloadPrefix, released)
+    return finish(out)
+end
+
+-- save
+local released = {}
+local result = saveMessage(KEYS[1], KEYS[2], KEYS[3], ARGV[2], ARGV[3], tonumber(ARGV[4]), ARGV[5], ARGV[6],
+        tonumber(ARGV[7]), tonumber(ARGV[8]), ARGV[9], ARGV[12] == '1', released)
+if result[1] == 1 then
+    retain(ARGV[11], ARGV[6], ARGV[10], 1)
+end
+releaseAll(ARGV[11], released)
+return finish(result)
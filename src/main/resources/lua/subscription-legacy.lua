@@ -0,0 +1,11 @@
+-- 旧版本订阅清理脚本, 仅当订阅仍为旧版本保存的 cleanSession 非共享订阅时删除, 避免误删客户端之后以非 cleanSession
+-- 会话建立的同名订阅.
+--
+-- KEYS[1] 主题订阅 hash: clientId -> qos,cleanSession
+-- ARGV[1] clientId, ARGV[2] 加载时读取到的值
+-- 返回删除数量
+
+if redis.call('HGET', KEYS[1], ARGV[1]) == ARGV[2] then
+    return redis.call('HDEL', KEYS[1], ARGV[1])
+end
+return 0
@@ -0,0 +1,19 @@
+-- 订阅变更日志追加脚本, 保证日志序号连续递增. 每个主题追加一条记录, 记录首个字段为序号.
+--
+-- KEYS[1] 订阅变更日志 stream
+-- ARGV[1] stream 最大长度(近似裁剪), ARGV[2] brokerId, ARGV[3] 类型 1 订阅 | 2 解除订阅,
+-- ARGV[4] clientId, ARGV[5] qos, ARGV[6] cleanSession(1 | 0), ARGV[7]... 主题
+-- 返回最后一条记录的序号
+
+local seq = 0
+local last = redis.call('XREVRANGE', KEYS[1], '+', '-', 'COUNT', 1)
+if #last > 0 then
+    seq = tonumber(last[1][2][2])
+end
+
+for i = 7, #ARGV do
+    seq = seq + 1
+    redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', 'seq', seq, 'b', ARGV[2], 't', ARGV[3],
+            'c', ARGV[4], 'q', ARGV[5], 's', ARGV[6], 'f', ARGV[i])
+end
+return seq
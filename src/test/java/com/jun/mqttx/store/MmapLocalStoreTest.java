@@ -0,0 +1,224 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link MmapLocalStore} 回放、崩溃恢复及压缩测试
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+class MmapLocalStoreTest {
+
+    /** key "k", field "fN", 8 字节值的记录长度, 一个日志段容纳两条 */
+    private static final int RECORD = 28;
+    private static final int SEGMENT_SIZE = 64;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reopen() throws IOException {
+        var store = open();
+        store.put("a", "1", bytes(1));
+        store.put("a", "2", bytes(2));
+        store.put("a", "1", bytes(3));
+        store.put("b", "1", bytes(4));
+        store.put("c", "1", bytes(5));
+        store.remove("b", "1");
+        store.delete("c");
+        store.increment("d", "n", 5);
+        store.increment("d", "n", 2);
+        store.close();
+
+        store = open();
+        assertEntries(store, "a", Map.entry("2", bytes(2)), Map.entry("1", bytes(3)));
+        assertNull(store.get("b", "1"));
+        assertNull(store.get("c", "1"));
+        assertEquals(10, store.increment("d", "n", 3));
+        assertEquals(List.of("a", "d"), store.keys("").stream().sorted().toList());
+        store.close();
+    }
+
+    @Test
+    void truncateTornTail() throws IOException {
+        var store = open();
+        put(store, 1, 3);
+        store.close();
+
+        // 最后一个日志段写入中断: length 已写入, 记录体不完整
+        var last = segments().get(segments().size() - 1);
+        try (var file = new RandomAccessFile(last.toFile(), "rw")) {
+            file.seek(RECORD);
+            file.writeInt(RECORD - 8);
+            file.writeInt(0x12345678);
+            file.write(new byte[]{1, 0, 1, 'k'});
+        }
+
+        store = open();
+        assertFields(store, 1, 3);
+        store.put("k", "f4", bytes(4));
+        store.close();
+
+        store = open();
+        assertFields(store, 1, 4);
+        store.close();
+    }
+
+    @Test
+    void truncateCorruptedSegment() throws IOException {
+        var store = open();
+        put(store, 1, 6);
+        store.close();
+        assertEquals(3, segments().size());
+
+        // 第一个日志段的第二条记录 crc 不匹配
+        try (var file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            file.seek(RECORD + 4);
+            file.writeInt(0);
+        }
+
+        store = open();
+        assertArrayEquals(bytes(1), store.get("k", "f1"));
+        assertNull(store.get("k", "f2"));
+        for (int i = 3; i <= 6; i++) {
+            assertArrayEquals(bytes(i), store.get("k", "f" + i));
+        }
+        store.close();
+    }
+
+    @Test
+    void compactAndReopen() throws IOException {
+        var store = open();
+        put(store, 1, 4);
+        for (int i = 0; i < 10; i++) {
+            store.put("k", "f2", bytes(100 + i));
+        }
+        store.remove("k", "f3");
+        var before = segments().size();
+        store.compactIfNecessary();
+        assertTrue(segments().size() < before);
+        assertEntries(store, "k", Map.entry("f1", bytes(1)), Map.entry("f4", bytes(4)), Map.entry("f2", bytes(109)));
+        store.put("k", "f5", bytes(5));
+        store.close();
+
+        store = open();
+        assertEntries(store, "k", Map.entry("f1", bytes(1)), Map.entry("f4", bytes(4)), Map.entry("f2", bytes(109)),
+                Map.entry("f5", bytes(5)));
+        store.close();
+    }
+
+    @Test
+    void crashBeforeDeletingOldSegments(@TempDir Path backup) throws IOException {
+        var store = open();
+        put(store, 1, 4);
+        for (int i = 0; i < 10; i++) {
+            store.put("k", "f2", bytes(100 + i));
+        }
+        store.remove("k", "f3");
+        store.close();
+        var old = segments();
+        for (var path : old) {
+            Files.copy(path, backup.resolve(path.getFileName()));
+        }
+
+        store = open();
+        store.compactIfNecessary();
+        // 压缩之后的写入必须在回放时覆盖旧日志段
+        store.put("k", "f1", bytes(11));
+        store.remove("k", "f4");
+        store.close();
+
+        // 新日志段已写入, 旧日志段尚未删除
+        for (var path : old) {
+            Files.copy(backup.resolve(path.getFileName()), path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        assertTrue(segments().size() > old.size());
+
+        store = open();
+        assertEntries(store, "k", Map.entry("f2", bytes(109)), Map.entry("f1", bytes(11)));
+        store.close();
+    }
+
+    @Test
+    void unsignedNameLength() throws IOException {
+        var key = "k".repeat(40000);
+        var field = "f".repeat(0xffff);
+        var store = open();
+        store.put(key, field, bytes(1));
+        assertThrows(IllegalArgumentException.class, () -> store.put(key, field + "f", bytes(2)));
+        store.close();
+
+        var reopened = open();
+        assertArrayEquals(bytes(1), reopened.get(key, field));
+        reopened.close();
+    }
+
+    private MmapLocalStore open() throws IOException {
+        return new MmapLocalStore(dir, SEGMENT_SIZE, Duration.ofHours(1), Duration.ofHours(1), 0);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.sorted().toList();
+        }
+    }
+
+    private static void put(MmapLocalStore store, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            store.put("k", "f" + i, bytes(i));
+        }
+    }
+
+    private static void assertFields(MmapLocalStore store, int from, int to) {
+        assertEquals(to - from + 1, store.entries("k").size());
+        for (int i = from; i <= to; i++) {
+            assertArrayEquals(bytes(i), store.get("k", "f" + i));
+        }
+    }
+
+    @SafeVarargs
+    private static void assertEntries(MmapLocalStore store, String key, Map.Entry<String, byte[]>... expected) {
+        var entries = store.entries(key);
+        assertEquals(expected.length, entries.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getKey(), entries.get(i).getKey());
+            assertArrayEquals(expected[i].getValue(), entries.get(i).getValue());
+        }
+    }
+
+    private static byte[] bytes(long value) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.utils;
+
+import com.jun.mqttx.entity.*;
+import com.jun.mqttx.exception.SerializeException;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link BinarySerializer} 往返及新旧版本兼容性测试
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+class BinarySerializerTest {
+
+    private static final int VERSION = 1, STRING = 1, PUB_MSG = 2, INTERNAL_MESSAGE = 4, RETAIN_TOPIC = 6;
+
+    private final BinarySerializer serializer = new BinarySerializer();
+
+    @Test
+    void roundTrip() {
+        var pubMsg = new PubMsg()
+                .setQoS(2)
+                .setMessageId(65535)
+                .setTopic("a/b/中文")
+                .setRetain(true)
+                .setDup(true)
+                .setPayloadSharable(true)
+                .setUuid("uuid")
+                .setAppointedClientId("client")
+                .setExpireAt(System.currentTimeMillis())
+                .setPayload(new byte[]{1, 2, 3});
+        assertEquals(pubMsg, roundTrip(pubMsg, PubMsg.class));
+        assertEquals(new PubMsg().setTopic("t"), roundTrip(new PubMsg().setTopic("t"), PubMsg.class));
+
+        var session = Session.of("client", false, MqttVersion.MQTT_5);
+        session.setMessageId(12345);
+        assertEquals(session, roundTrip(session, Session.class));
+
+        var sub = new ClientSubOrUnsubMsg();
+        sub.setClientId("client");
+        sub.setQos(1);
+        sub.setTopic("a/+");
+        sub.setCleanSession(true);
+        sub.setTopics(List.of("a", "b/#"));
+        sub.setType(2);
+        var im = new InternalMessage<>(sub, 1L << 40, "broker-1");
+        assertEquals(im, roundTrip(im, InternalMessage.class));
+
+        var auth = Authentication.of("client");
+        auth.setAuthorizedSub(List.of("s/#"));
+        auth.setAuthorizedPub(List.of());
+        assertEquals(auth, roundTrip(auth, Authentication.class));
+
+        assertEquals(new RetainTopicMsg("r", 1), roundTrip(new RetainTopicMsg("r", 1), RetainTopicMsg.class));
+        assertEquals(new ClientRouteMsg("c", 2), roundTrip(new ClientRouteMsg("c", 2), ClientRouteMsg.class));
+        assertEquals(new TopicFilterRouteMsg("f/#", 1), roundTrip(new TopicFilterRouteMsg("f/#", 1), TopicFilterRouteMsg.class));
+        assertEquals("string", roundTrip("string", String.class));
+        assertNull(roundTrip(null, PubMsg.class));
+    }
+
+    @Test
+    void compactLength() {
+        // 小对象的长度只占 1 字节: version + type + length + (长度 + 1) + "ab"
+        assertEquals(6, serializer.serialize("ab").length);
+
+        // 长度需要多字节 varint 时字段后移, 嵌套对象同样如此
+        for (var size : new int[]{126, 127, 128, 300, 16384, 70000}) {
+            var payload = new byte[size];
+            Arrays.fill(payload, (byte) size);
+            var pubMsg = new PubMsg().setTopic("t").setPayload(payload);
+            var im = new InternalMessage<>(pubMsg, 1L, "b");
+            var actual = roundTrip(im, InternalMessage.class);
+            assertEquals(im, actual);
+        }
+    }
+
+    @Test
+    void readOldDataMissingTrailingFields() {
+        // 旧版本 PubMsg 只有 flags, qos, messageId, topic, 之后的字段取默认值
+        var fields = new Buf().b(0).b(1).b(7).str("a/b").bytes();
+        var bytes = new Buf().b(VERSION).b(PUB_MSG).b(fields.length).raw(fields).bytes();
+        var pubMsg = serializer.deserialize(bytes, PubMsg.class);
+        assertEquals(1, pubMsg.getQoS());
+        assertEquals(7, pubMsg.getMessageId());
+        assertEquals("a/b", pubMsg.getTopic());
+        assertNull(pubMsg.getUuid());
+        assertNull(pubMsg.getPayload());
+        assertEquals(0, pubMsg.getExpireAt());
+    }
+
+    @Test
+    void readNewDataWithExtraFields() {
+        // 新版本在嵌套对象及外层对象末尾都追加了字段, 读取时跳过且不影响后续字段
+        var retain = new Buf().str("r").b(2).str("extra").b(9).bytes();
+        var fields = new Buf().b(RETAIN_TOPIC).b(retain.length).raw(retain).b(42).str("broker").str("extra").bytes();
+        var bytes = new Buf().b(VERSION).b(INTERNAL_MESSAGE).b(fields.length).raw(fields).bytes();
+        var im = serializer.deserialize(bytes, InternalMessage.class);
+        assertEquals(new RetainTopicMsg("r", 2), im.getData());
+        assertEquals(42, im.getTimestamp());
+        assertEquals("broker", im.getBrokerId());
+    }
+
+    @Test
+    void rejectCorruptedData() {
+        // 字符串长度超出对象剩余字节
+        var fields = new Buf().b(101).raw("ab".getBytes(StandardCharsets.UTF_8)).bytes();
+        var bytes = new Buf().b(VERSION).b(STRING).b(fields.length).raw(fields).bytes();
+        assertThrows(SerializeException.class, () -> serializer.deserialize(bytes, String.class));
+
+        // 对象长度超出数据长度
+        var truncated = Arrays.copyOf(serializer.serialize(new RetainTopicMsg("topic", 1)), 5);
+        assertThrows(SerializeException.class, () -> serializer.deserialize(truncated, RetainTopicMsg.class));
+
+        // 元素数量超出剩余字节
+        var list = new Buf().str("client").b(0xff).b(0xff).b(0xff).b(0x7f).bytes();
+        var auth = new Buf().b(VERSION).b(7).b(list.length).raw(list).bytes();
+        assertThrows(SerializeException.class, () -> serializer.deserialize(auth, Authentication.class));
+
+        assertThrows(SerializeException.class, () -> serializer.deserialize(new byte[]{2}, String.class));
+    }
+
+    private <T> T roundTrip(Object target, Class<T> clazz) {
+        return serializer.deserialize(serializer.serialize(target), clazz);
+    }
+
+    /**
+     * 按序列化格式手工构造数据
+     */
+    private static final class Buf {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private Buf b(int b) {
+            out.write(b);
+            return this;
+        }
+
+        private Buf raw(byte[] bytes) {
+            out.writeBytes(bytes);
+            return this;
+        }
+
+        private Buf str(String s) {
+            var bytes = s.getBytes(StandardCharsets.UTF_8);
+            return b(bytes.length + 1).raw(bytes);
+        }
+
+        private byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+}
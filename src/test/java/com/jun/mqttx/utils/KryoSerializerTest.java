@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import com.jun.mqttx.entity.InternalMessage;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.entity.Session;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * {@link KryoSerializer} 往返及旧版本数据读取测试
+ *
+ * @author Jun
+ * @since 1.2.3
+ */
+class KryoSerializerTest {
+
+    private final KryoSerializer serializer = new KryoSerializer();
+
+    @Test
+    void roundTrip() {
+        var pubMsg = pubMsg().setExpireAt(System.currentTimeMillis());
+        assertEquals(pubMsg, serializer.deserialize(serializer.serialize(pubMsg), PubMsg.class));
+
+        var im = new InternalMessage<>(pubMsg, 1L << 40, "broker-1");
+        assertEquals(im, serializer.deserialize(serializer.serialize(im), InternalMessage.class));
+
+        var session = Session.of("client", false, MqttVersion.MQTT_5);
+        session.setMessageId(12345);
+        assertEquals(session, serializer.deserialize(serializer.serialize(session), Session.class));
+    }
+
+    @Test
+    void readLegacyPubMsg() {
+        // 旧版本: 默认 FieldSerializer, 以类名标记类型, 不含 expireAt
+        var kryo = new Kryo();
+        kryo.setRegistrationRequired(false);
+        var legacy = new FieldSerializer<>(kryo, PubMsg.class);
+        legacy.removeField("expireAt");
+        kryo.addDefaultSerializer(PubMsg.class, legacy);
+
+        var pubMsg = pubMsg();
+        assertEquals(pubMsg, serializer.deserialize(write(kryo, pubMsg), PubMsg.class));
+        var im = new InternalMessage<>(pubMsg, 1L << 40, "broker-1");
+        assertEquals(im, serializer.deserialize(write(kryo, im), InternalMessage.class));
+    }
+
+    @Test
+    void readLegacySession() {
+        // 旧版本: pubMsgStore 非 transient, 以类名 Session 标记类型
+        var kryo = new Kryo(new DefaultClassResolver() {
+            @Override
+            protected void writeName(Output output, Class type, Registration registration) {
+                super.writeName(output, type == LegacySession.class ? Session.class : type, registration);
+            }
+        }, null);
+        kryo.setRegistrationRequired(false);
+        var legacyPubMsg = new FieldSerializer<>(kryo, PubMsg.class);
+        legacyPubMsg.removeField("expireAt");
+        kryo.addDefaultSerializer(PubMsg.class, legacyPubMsg);
+
+        var legacy = new LegacySession();
+        legacy.version = MqttVersion.MQTT_3_1_1;
+        legacy.clientId = "client";
+        legacy.cleanSession = true;
+        legacy.pubMsgStore = new HashMap<>(Map.of(7, pubMsg()));
+        legacy.messageId = 12345;
+
+        var expected = Session.of("client", true, MqttVersion.MQTT_3_1_1);
+        expected.setMessageId(12345);
+        assertEquals(expected, serializer.deserialize(write(kryo, legacy), Session.class));
+
+        legacy.cleanSession = false;
+        legacy.pubMsgStore = null;
+        expected.setCleanSession(false);
+        assertEquals(expected, serializer.deserialize(write(kryo, legacy), Session.class));
+    }
+
+    static byte[] write(Kryo kryo, Object target) {
+        var bos = new ByteArrayOutputStream();
+        try (var output = new Output(bos)) {
+            kryo.writeClassAndObject(output, target);
+        }
+        return bos.toByteArray();
+    }
+
+    static PubMsg pubMsg() {
+        return new PubMsg()
+                .setQoS(1)
+                .setMessageId(7)
+                .setTopic("a/b")
+                .setRetain(true)
+                .setUuid("uuid")
+                .setAppointedClientId("client")
+                .setPayloadSharable(true)
+                .setPayload(new byte[]{1, 2, 3});
+    }
+
+    /**
+     * 旧版本 {@link Session} 的字段
+     */
+    static class LegacySession {
+
+        MqttVersion version;
+        String clientId;
+        Boolean cleanSession;
+        Map<Integer, PubMsg> pubMsgStore;
+        int messageId;
+    }
+}